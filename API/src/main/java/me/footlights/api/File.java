@@ -18,6 +18,7 @@ package me.footlights.api;
 import java.io.InputStream;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.security.GeneralSecurityException;
 
 
@@ -55,6 +56,12 @@ public interface File
 	 */
 	public InputStream getInputStream();
 
+	/**
+	 * The content of the file, as a read-only channel that can seek to any position without
+	 * reading the content in between.
+	 */
+	public SeekableByteChannel getChannel();
+
 	/** The content of the file. Calling this may be unwise for large files! */
 	public ByteBuffer copyContents() throws java.io.IOException;
 }
@@ -17,6 +17,7 @@ package me.footlights.api;
 
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
 import scala.Either;
 import scala.Option;
@@ -30,6 +31,14 @@ public interface KernelInterface
 	 */
 	public Either<Exception,File> save(ByteBuffer data);
 
+	/**
+	 * Save data to a logical file, reading it from a channel until end-of-stream.
+	 *
+	 * Unlike {@link #save(ByteBuffer)}, the data do not all need to be in memory at once.
+	 * The channel is not closed.
+	 */
+	public Either<Exception,File> save(ReadableByteChannel data);
+
 	/** Open a file by its URN. */
 	public Either<Exception,File> open(URI name);
 
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core;
+
+import java.util.Locale;
+
+
+/**
+ * How hard local storage should work to get writes onto the disk before it moves on.
+ *
+ * Whatever the mode, an explicit flush (e.g. {@link me.footlights.core.data.store.Store#flush})
+ * is a barrier: once it returns, everything written before it is on disk.
+ *
+ * The mode is set by the {@code io.durability} preference ("sync_each", "group_commit" or
+ * "async"); see {@link GroupCommit} for the group commit window.
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+public enum Durability
+{
+	/** Every write is on disk before it completes (concurrent writers can share an fsync). */
+	SYNC_EACH,
+
+	/**
+	 * Writes complete immediately, but are put on disk within a short window (a time or a
+	 * number of bytes); whoever needs to know can wait for that.
+	 */
+	GROUP_COMMIT,
+
+	/** Writes complete immediately, and only reach the disk when the OS or a flush says so. */
+	ASYNC;
+
+	/** The mode named by the {@code io.durability} preference. */
+	public static Durability byDefault(Preferences prefs)
+	{
+		return parse(prefs.getString("io.durability").get());
+	}
+
+	public static Durability parse(String name)
+	{
+		try { return valueOf(name.toUpperCase(Locale.ENGLISH)); }
+		catch (IllegalArgumentException e)
+		{
+			throw new ConfigurationError("Unknown durability mode: '" + name + "'");
+		}
+	}
+}
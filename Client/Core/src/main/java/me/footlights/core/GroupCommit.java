@@ -0,0 +1,287 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Decides when something that is written sequentially (e.g. a log file) should be synced to
+ * disk, according to a {@link Durability} mode.
+ *
+ * Writers count the bytes that they write (in the order that they write them) with
+ * {@link #appended}, then {@link #commit} them. Each commit returns a {@link Future} which
+ * completes once an fsync has covered those bytes:
+ * <ul>
+ *   <li>{@link Durability#SYNC_EACH}: the commit syncs before returning,</li>
+ *   <li>{@link Durability#GROUP_COMMIT}: a sync happens once {@code io.commit.bytes} are
+ *       waiting or {@code io.commit.interval} ms after the first of them was committed,
+ *       whichever comes first,</li>
+ *   <li>{@link Durability#ASYNC}: nothing happens until the next {@link #barrier}.</li>
+ * </ul>
+ * Only one sync runs at a time; anybody who needs one while it is running waits for it to
+ * finish and, if it didn't cover their bytes, runs one more sync on everybody's behalf.
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+public class GroupCommit
+{
+	/** Puts everything written so far on disk. */
+	public interface Syncer { void sync() throws IOException; }
+
+	public static GroupCommit create(Durability mode, Preferences prefs, Syncer syncer)
+	{
+		return new GroupCommit(mode, prefs.getInt("io.commit.interval").get(),
+			prefs.getInt("io.commit.bytes").get(), syncer);
+	}
+
+	public GroupCommit(Durability mode, long interval_ms, long maxBytes, Syncer syncer)
+	{
+		this.mode = mode;
+		this.interval_ms = interval_ms;
+		this.maxBytes = maxBytes;
+		this.syncer = syncer;
+	}
+
+	public Durability mode() { return mode; }
+
+	/** How many times we have actually synced. */
+	public synchronized long syncs() { return syncs; }
+
+
+	/**
+	 * Count some bytes that have just been written (by a writer which holds whatever lock
+	 * orders its writes).
+	 *
+	 * @return   the position to {@link #commit}
+	 */
+	public synchronized long appended(long bytes) { return written += bytes; }
+
+	/**
+	 * Record that everything up to a position is already on disk (e.g. because the writer
+	 * synced a file before moving on to the next one).
+	 */
+	public synchronized void synced(long position)
+	{
+		if (position > synced)
+		{
+			synced = position;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Commit everything up to a position (as returned by {@link #appended}).
+	 *
+	 * @return   a future which completes when the position is on disk
+	 */
+	public Future<Void> commit(long position) throws IOException
+	{
+		switch (mode)
+		{
+			case SYNC_EACH:
+				sync(position);
+				break;
+
+			case GROUP_COMMIT:
+				boolean now;
+				synchronized (this)
+				{
+					now = (written - synced >= maxBytes);
+					if (!now && !scheduled && (synced < position))
+					{
+						scheduled = true;
+						Timer.SCHEDULER.schedule(new Runnable()
+							{
+								@Override public void run() { scheduledSync(); }
+							}, interval_ms, TimeUnit.MILLISECONDS);
+					}
+				}
+
+				if (now) sync(position);
+				break;
+
+			case ASYNC:
+				break;
+		}
+
+		return new Commit(position);
+	}
+
+	/** Put everything that has been appended so far on disk. */
+	public void barrier() throws IOException
+	{
+		long position;
+		synchronized (this) { position = written; }
+		sync(position);
+	}
+
+	/** Put everything up to a position on disk, sharing a sync with other threads if we can. */
+	public void sync(long position) throws IOException
+	{
+		long target;
+		synchronized (this)
+		{
+			while (syncing && (synced < position)) waitForSync();
+			if (synced >= position) return;
+
+			// Whatever has been written by now will be covered by our sync.
+			syncing = true;
+			target = written;
+		}
+
+		IOException error = null;
+		try { syncer.sync(); }
+		catch (IOException e) { error = e; }
+		finally
+		{
+			synchronized (this)
+			{
+				syncing = false;
+				syncs++;
+				if (error == null)
+				{
+					synced = Math.max(synced, target);
+					failure = null;
+				}
+				else failure = error;
+
+				notifyAll();
+			}
+		}
+
+		if (error != null) throw error;
+	}
+
+
+	/** The result of {@link #commit}: done once its position is on disk. */
+	private class Commit implements Future<Void>
+	{
+		Commit(long position) { this.position = position; }
+
+		@Override public boolean isDone()
+		{
+			synchronized (GroupCommit.this) { return (synced >= position); }
+		}
+
+		@Override public Void get() throws ExecutionException, InterruptedException
+		{
+			synchronized (GroupCommit.this)
+			{
+				while (synced < position)
+				{
+					checkFailure();
+					GroupCommit.this.wait();
+				}
+			}
+
+			return null;
+		}
+
+		@Override public Void get(long timeout, TimeUnit unit)
+			throws ExecutionException, InterruptedException, TimeoutException
+		{
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (GroupCommit.this)
+			{
+				while (synced < position)
+				{
+					checkFailure();
+
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) throw new TimeoutException();
+					TimeUnit.NANOSECONDS.timedWait(GroupCommit.this, remaining);
+				}
+			}
+
+			return null;
+		}
+
+		/** Durability can't be cancelled. */
+		@Override public boolean cancel(boolean mayInterrupt) { return false; }
+		@Override public boolean isCancelled() { return false; }
+
+		/** If the latest sync failed, nobody it should have covered is going to get one. */
+		private void checkFailure() throws ExecutionException
+		{
+			if ((failure != null) && !syncing)
+				throw new ExecutionException("Unable to sync", failure);
+		}
+
+		private final long position;
+	}
+
+	/** Run by the timer when a group commit window closes. */
+	private void scheduledSync()
+	{
+		long position;
+		synchronized (this)
+		{
+			scheduled = false;
+			position = written;
+		}
+
+		try { sync(position); }
+		catch (IOException e) { log.log(Level.WARNING, "Error in group commit", e); }
+	}
+
+	private void waitForSync() throws InterruptedIOException
+	{
+		try { wait(); }
+		catch (InterruptedException e) { throw new InterruptedIOException(); }
+	}
+
+
+	/** Shared by all group commits: syncs are short, and there shouldn't be many of them. */
+	private static class Timer
+	{
+		static final ScheduledExecutorService SCHEDULER =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+				{
+					@Override public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, GroupCommit.class.getSimpleName());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	private static final Logger log = Logger.getLogger(GroupCommit.class.getCanonicalName());
+
+	private final Durability mode;
+	private final long interval_ms;
+	private final long maxBytes;
+	private final Syncer syncer;
+
+	// All guarded by this.
+	private long written;
+	private long synced;
+	private boolean syncing;
+	private boolean scheduled;
+	private long syncs;
+	private IOException failure;
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+
+import me.footlights.core.Preferences;
+import me.footlights.core.data.Block;
+
+
+/**
+ * Encrypts and decrypts whole {@link Block}s in counter (CTR) mode, on several threads.
+ *
+ * CBC is inherently serial, so a large block can't use more than one core. In CTR mode,
+ * every cipher block is encrypted under its own counter value, so a large block can be split
+ * into counter ranges which are encrypted or decrypted in parallel.
+ *
+ * Readers need to know which mode a block was encrypted in, and stores may hold blocks in
+ * either. The first cipher block (which holds the {@link Block}'s magic) is therefore
+ * encrypted on its own, exactly as CBC with our all-zero IV would encrypt it, and
+ * counter-mode blocks have a different magic (see {@link Block#isCounterMode}). The rest of
+ * the block is CTR-encrypted, with the counter starting at 1 (the index of the second
+ * cipher block).
+ *
+ * New blocks are encrypted this way if the {@code crypto.sym.mode} preference is "CTR".
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+public final class CounterMode
+{
+	/** The value of {@code crypto.sym.mode} that selects this mode. */
+	public static final String NAME = "CTR";
+
+	/** Should new blocks be encrypted in counter mode? */
+	public static boolean byDefault() { return Defaults.ENABLED; }
+
+	/**
+	 * Encrypt a block whose header has already been marked (see
+	 * {@link Block#setCounterMode}).
+	 *
+	 * @param plaintext    the block's bytes, e.g. from {@link Block#getByteBuffers()}
+	 * @param ciphertext   where to put the ciphertext: its position is not modified
+	 */
+	public static void encrypt(SecretKey key, ByteBuffer[] plaintext, ByteBuffer ciphertext)
+		throws GeneralSecurityException
+	{
+		int length = 0;
+		for (ByteBuffer b : plaintext) length += b.remaining();
+
+		Cipher first = firstBlockCipher(key, SecretKey.Operation.ENCRYPT);
+		try
+		{
+			int blockSize = first.getBlockSize();
+			byte[] header = new byte[blockSize];
+			copy(plaintext, 0, ByteBuffer.wrap(header));
+
+			ByteBuffer out = ciphertext.duplicate();
+			first.doFinal(ByteBuffer.wrap(header), out);
+
+			run(new Ranges(key, SecretKey.Operation.ENCRYPT, plaintext, ciphertext,
+				blockSize, blockSize, length));
+		}
+		finally { CryptoPool.release(first); }
+	}
+
+	/**
+	 * Decrypt a block, if it was encrypted in counter mode.
+	 *
+	 * @return   the plaintext (with the usual {@link Block} magic), or null if the block was
+	 *           not encrypted in counter mode
+	 */
+	public static ByteBuffer decrypt(SecretKey key, ByteBuffer ciphertext)
+		throws GeneralSecurityException
+	{
+		Cipher first = firstBlockCipher(key, SecretKey.Operation.DECRYPT);
+		ByteBuffer plaintext;
+		try
+		{
+			int blockSize = first.getBlockSize();
+			if (ciphertext.remaining() < blockSize) return null;
+
+			ByteBuffer in = ciphertext.duplicate();
+			in.limit(in.position() + blockSize);
+
+			byte[] header = new byte[blockSize];
+			first.doFinal(in, ByteBuffer.wrap(header));
+			if (!Block.isCounterMode(ByteBuffer.wrap(header))) return null;
+
+			plaintext = ByteBuffer.allocate(ciphertext.remaining());
+			plaintext.put(header);
+			plaintext.rewind();
+			Block.setCounterMode(plaintext, false);
+
+			run(new Ranges(key, SecretKey.Operation.DECRYPT,
+				new ByteBuffer[] { ciphertext.duplicate() }, plaintext,
+				blockSize, blockSize, ciphertext.remaining()));
+		}
+		finally { CryptoPool.release(first); }
+
+		return plaintext;
+	}
+
+
+	/**
+	 * The cipher for a block's first cipher block, which is encrypted on its own (as CBC
+	 * with an all-zero IV would) so that it can be decrypted without knowing the mode.
+	 */
+	private static Cipher firstBlockCipher(SecretKey key, SecretKey.Operation operation)
+		throws GeneralSecurityException
+	{
+		return key.newCipherBuilder()
+			.setOperation(operation)
+			.setMode("ECB")
+			.setPaddingScheme("NOPADDING")
+			.build();
+	}
+
+	/** Run a task on the current fork/join pool or, if we aren't in one, the shared workers. */
+	private static void run(Ranges task) throws GeneralSecurityException
+	{
+		try
+		{
+			if (ForkJoinTask.inForkJoinPool()) task.invoke();
+			else CryptoPool.workers().invoke(task);
+		}
+		catch (RuntimeException e)
+		{
+			// ForkJoinPool may wrap (or copy) the exception thrown by the worker thread.
+			for (Throwable t = e; t != null; t = t.getCause())
+				if (t instanceof GeneralSecurityException) throw (GeneralSecurityException) t;
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Copy bytes from a sequence of buffers, starting at an offset within their
+	 * concatenation, until the output buffer is full.
+	 */
+	private static void copy(ByteBuffer[] buffers, int offset, ByteBuffer out)
+	{
+		for (ByteBuffer b : buffers)
+		{
+			if (!out.hasRemaining()) break;
+
+			int len = b.remaining();
+			if (offset >= len) { offset -= len; continue; }
+
+			ByteBuffer slice = b.duplicate();
+			slice.position(slice.position() + offset);
+			slice.limit(slice.position() + Math.min(slice.remaining(), out.remaining()));
+			out.put(slice);
+			offset = 0;
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts a range of a block (at cipher block boundaries), splitting the
+	 * range in half until it is small.
+	 */
+	private static class Ranges extends RecursiveAction
+	{
+		/** The smallest range worth handing to another thread. */
+		static final int RANGE_SIZE = 64 * 1024;
+
+		Ranges(SecretKey key, SecretKey.Operation operation, ByteBuffer[] in, ByteBuffer out,
+				int blockSize, int from, int to)
+		{
+			this.key = key;
+			this.operation = operation;
+			this.in = in;
+			this.out = out;
+			this.blockSize = blockSize;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override protected void compute()
+		{
+			if (to - from > 2 * RANGE_SIZE)
+			{
+				int middle = from + ((to - from) / 2 / blockSize) * blockSize;
+				invokeAll(
+					new Ranges(key, operation, in, out, blockSize, from, middle),
+					new Ranges(key, operation, in, out, blockSize, middle, to));
+				return;
+			}
+
+			if (from >= to) return;
+
+			try
+			{
+				Cipher cipher = key.newCipherBuilder()
+					.setOperation(operation)
+					.setMode(NAME)
+					.setPaddingScheme("NOPADDING")
+					.setIV(counter(from / blockSize, blockSize))
+					.build();
+
+				try
+				{
+					ByteBuffer output = out.duplicate();
+					output.position(output.position() + from);
+					output.limit(output.position() + (to - from));
+
+					// Feed the cipher whichever parts of the input buffers are in our range.
+					int offset = 0;
+					for (ByteBuffer b : in)
+					{
+						int start = Math.max(from - offset, 0);
+						int end = Math.min(to - offset, b.remaining());
+						offset += b.remaining();
+						if (start >= end) continue;
+
+						ByteBuffer slice = b.duplicate();
+						slice.limit(b.position() + end);
+						slice.position(b.position() + start);
+						cipher.update(slice, output);
+					}
+
+					cipher.doFinal(EMPTY.duplicate(), output);
+				}
+				finally { CryptoPool.release(cipher); }
+			}
+			catch (GeneralSecurityException e) { throw new CipherFailure(e); }
+		}
+
+		/** A counter block: a big-endian integer as wide as a cipher block. */
+		private static byte[] counter(long value, int blockSize)
+		{
+			byte[] counter = new byte[blockSize];
+			for (int i = blockSize - 1; (i >= 0) && (value != 0); i--, value >>>= 8)
+				counter[i] = (byte) value;
+
+			return counter;
+		}
+
+		private final SecretKey key;
+		private final SecretKey.Operation operation;
+		private final ByteBuffer[] in;
+		private final ByteBuffer out;
+		private final int blockSize;
+		private final int from;
+		private final int to;
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/** Carries a checked exception out of a {@link RecursiveAction}. */
+	private static class CipherFailure extends RuntimeException
+	{
+		CipherFailure(Throwable cause) { super(cause); }
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** Lazily-read preferences. */
+	private static class Defaults
+	{
+		static final boolean ENABLED = NAME.equalsIgnoreCase(
+			Preferences.getDefaultPreferences().getString("crypto.sym.mode").get());
+	}
+
+	/** Non-instantiable utility class. */
+	private CounterMode() {}
+}
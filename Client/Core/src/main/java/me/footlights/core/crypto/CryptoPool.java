@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+import scala.Option;
+
+import me.footlights.core.Preferences;
+import me.footlights.core.security.CryptoBackend;
+
+
+/**
+ * Thread-confined pools of {@link Cipher}, {@link MessageDigest} and {@link Mac} instances.
+ *
+ * Provider lookups ({@link Cipher#getInstance}, {@link MessageDigest#getInstance}) are
+ * expensive, and neither kind of object is thread-safe, so each thread keeps a few idle
+ * instances of each transformation / algorithm. A borrowed instance belongs to its borrower
+ * until it is released; ciphers must be {@link Cipher#init initialized} by every borrower.
+ *
+ * There is also one shared {@link ForkJoinPool} of worker threads for parallel encryption
+ * (of many blocks, or of one large block in {@link CounterMode}).
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+public final class CryptoPool
+{
+	/** Borrow a {@link Cipher} for a full transformation, e.g. "AES/CBC/NOPADDING". */
+	public static Cipher borrowCipher(String transformation)
+		throws NoSuchAlgorithmException, NoSuchPaddingException
+	{
+		Cipher c = (Cipher) take(ciphers.get(), transformation);
+		return (c == null) ? Cipher.getInstance(transformation) : c;
+	}
+
+	/** Borrow a {@link MessageDigest} (which will be in its initial state). */
+	public static MessageDigest borrowDigest(String algorithm) throws NoSuchAlgorithmException
+	{
+		String name = algorithm.toUpperCase(Locale.ENGLISH);
+		String key = digestKeys.get(name);
+		MessageDigest d = (key == null) ? null : (MessageDigest) take(digests.get(), key);
+		if (d != null) return d;
+
+		d = newDigest(algorithm);
+		digestKeys.put(name, key(d));
+		return d;
+	}
+
+	/**
+	 * Create a {@link MessageDigest} that belongs to the caller (it needn't be released).
+	 *
+	 * Some digests (e.g. BLAKE2b) are only provided by BouncyCastle, so if no installed
+	 * provider knows the algorithm, BouncyCastle is installed and asked directly.
+	 */
+	public static MessageDigest newDigest(String algorithm) throws NoSuchAlgorithmException
+	{
+		try { return MessageDigest.getInstance(algorithm); }
+		catch (NoSuchAlgorithmException e)
+		{
+			Option<Provider> backend = CryptoBackend.get();
+			if (backend.isEmpty()) throw e;
+			return MessageDigest.getInstance(algorithm, backend.get());
+		}
+	}
+
+	/** Borrow a {@link Mac}, which must be {@link Mac#init initialized} by the borrower. */
+	public static Mac borrowMac(String algorithm) throws NoSuchAlgorithmException
+	{
+		Mac m = (Mac) take(macs.get(), algorithm);
+		return (m == null) ? Mac.getInstance(algorithm) : m;
+	}
+
+	/**
+	 * The threads that blocks are encrypted and decrypted on, unless the caller is already
+	 * running on a {@link ForkJoinPool} (or chooses another).
+	 *
+	 * Its parallelism is set by the {@code crypto.threads} preference.
+	 */
+	public static ForkJoinPool workers() { return Workers.POOL; }
+
+	/** Return a {@link Cipher} to the current thread's pool. */
+	public static void release(Cipher c)
+	{
+		if (c != null) give(ciphers.get(), c.getAlgorithm(), c);
+	}
+
+	/** Return a {@link MessageDigest} to the current thread's pool. */
+	public static void release(MessageDigest d)
+	{
+		if (d == null) return;
+
+		d.reset();
+		give(digests.get(), key(d), d);
+	}
+
+	/** Return a {@link Mac} to the current thread's pool. */
+	public static void release(Mac m)
+	{
+		if (m == null) return;
+
+		m.reset();
+		give(macs.get(), m.getAlgorithm(), m);
+	}
+
+
+	/**
+	 * Where to pool a digest.
+	 *
+	 * A digest's name isn't necessarily the one that it was requested by: names are
+	 * case-insensitive ("sha-256" vs "SHA-256"), and BouncyCastle calls all of its BLAKE2b
+	 * variants "BLAKE2B", so the digest length is part of the key.
+	 */
+	private static String key(MessageDigest d)
+	{
+		return d.getAlgorithm().toUpperCase(Locale.ENGLISH) + "/" + d.getDigestLength();
+	}
+
+	private static Object take(Map<String,Deque<Object>> pool, String key)
+	{
+		Deque<Object> idle = pool.get(key);
+		return (idle == null) ? null : idle.poll();
+	}
+
+	private static void give(Map<String,Deque<Object>> pool, String key, Object o)
+	{
+		Deque<Object> idle = pool.get(key);
+		if (idle == null) pool.put(key, idle = new ArrayDeque<Object>(MAX_IDLE));
+		if (idle.size() < MAX_IDLE) idle.push(o);
+	}
+
+	/** Lazily-initialized holder for {@link #workers()}. */
+	private static class Workers
+	{
+		static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1,
+			Preferences.getDefaultPreferences().getInt("crypto.threads").get()));
+	}
+
+	private static final class Pool extends ThreadLocal<Map<String,Deque<Object>>>
+	{
+		@Override protected Map<String,Deque<Object>> initialValue()
+		{
+			return new HashMap<String,Deque<Object>>();
+		}
+	}
+
+	/** How many idle instances of each transformation / algorithm a thread may keep. */
+	private static final int MAX_IDLE = 4;
+
+	private static final Pool ciphers = new Pool();
+	private static final Pool digests = new Pool();
+	private static final Pool macs = new Pool();
+
+	/** Requested digest names (in upper case) and the {@link #key} they are pooled under. */
+	private static final Map<String,String> digestKeys = new ConcurrentHashMap<String,String>();
+
+	/** Non-instantiable utility class. */
+	private CryptoPool() {}
+}
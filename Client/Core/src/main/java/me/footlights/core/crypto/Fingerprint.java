@@ -20,6 +20,10 @@ import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,7 +40,17 @@ import me.footlights.core.ProgrammerError;
 import me.footlights.core.data.FormatException;
 
 
-/** A fingerprint for a number of bytes. */
+/**
+ * A fingerprint for a number of bytes.
+ *
+ * Fingerprints are used as map keys all over the place (block stores, journals, keychains),
+ * so they are kept compact: a one-byte algorithm identifier and the raw digest bytes. The
+ * textual "urn:algorithm:BASE32" form is only generated if somebody asks for it.
+ *
+ * Since every fingerprint names its own algorithm (e.g. "urn:blake2b-256:..."), blocks named
+ * by different algorithms can live side by side in the same store; the
+ * {@code crypto.hash.algorithm} preference only chooses how new blocks are named.
+ */
 public class Fingerprint
 {
 	public static Fingerprint of(byte[] bytes)
@@ -93,126 +107,311 @@ public class Fingerprint
 	public static Fingerprint decode(String algorithmName, String hash)
 		throws NoSuchAlgorithmException
 	{
-		MessageDigest algorithm = MessageDigest.getInstance(algorithmName);
-		final URI uri;
-		try { uri = new URI("urn", algorithmName + ":" + hash, null); }
-		catch (URISyntaxException e) { throw new IllegalArgumentException(e); }
+		return new Fingerprint(Algorithms.id(algorithmName),
+				new Base32().decode(hash.getBytes()));
+	}
+
+	public static Builder newBuilder() { return new Builder(Defaults.ALGORITHM); }
 
-		return new Fingerprint(algorithm,
-				ByteBuffer.wrap(new Base32().decode(hash.getBytes())),
-				uri);
+	/**
+	 * Is a hash algorithm one of the well-known ones, which have fixed identifiers?
+	 *
+	 * Other algorithms are assigned an identifier for the life of the process the first time
+	 * that they are named, so code that handles untrusted names (e.g. a server) should only
+	 * accept well-known algorithms.
+	 */
+	public static boolean isWellKnownAlgorithm(String name)
+	{
+		Byte id = Algorithms.ids.get(name.toLowerCase(Locale.ENGLISH));
+		return (id != null) && Algorithms.isWellKnown(id);
 	}
 
-	public static Builder newBuilder() { return new Builder(Preferences.getDefaultPreferences()); }
+	public URI toURI()
+	{
+		URI u = uri;
+		if (u == null) uri = u = URI.create(encode());
+		return u;
+	}
 
-	public URI toURI() { return uri; }
-	public String encode() { return uri.toString(); }
+	public String encode()
+	{
+		String e = encoded;
+		if (e == null)
+			encoded = e = "urn:" + getAlgorithmName() + ":" +
+				new String(new Base32().encode(digest));
+
+		return e;
+	}
 
-	public MessageDigest getAlgorithm() { return algorithm; }
+	/** The name of the hash algorithm that produced this fingerprint, e.g. "sha-256". */
+	public String getAlgorithmName() { return Algorithms.name(algorithm); }
 
-	public boolean matches(ByteBuffer b) { return (0 == bytes.compareTo(b)); }
-	public boolean matches(byte[] b) { return matches(ByteBuffer.wrap(b)); }
+	/**
+	 * A new instance of the hash algorithm that produced this fingerprint. It belongs to the
+	 * caller, so it doesn't come from (or need to go back to) the {@link CryptoPool}.
+	 *
+	 * If all you want is the algorithm's name, use {@link #getAlgorithmName()}.
+	 */
+	public MessageDigest getAlgorithm()
+	{
+		String name = getAlgorithmName();
+		try { return CryptoPool.newDigest(name); }
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new ProgrammerError("Algorithm '" + name + "' has disappeared", e);
+		}
+	}
 
-	public ByteBuffer getBytes() { return bytes.asReadOnlyBuffer(); }
-	public byte[] copyBytes()
+	public boolean matches(ByteBuffer b)
 	{
-		byte[] copy = new byte[bytes.remaining()];
-		bytes.mark();
-		bytes.get(copy);
-		bytes.reset();
-		return copy;
+		if (b.remaining() != digest.length) return false;
+		for (int i = 0; i < digest.length; i++)
+			if (digest[i] != b.get(b.position() + i)) return false;
+
+		return true;
 	}
 
+	public boolean matches(byte[] b) { return Arrays.equals(digest, b); }
+
+	public ByteBuffer getBytes() { return ByteBuffer.wrap(digest).asReadOnlyBuffer(); }
+	public byte[] copyBytes() { return digest.clone(); }
+
 	public static class Builder
 	{
 		public Fingerprint build()
 		{
-			Preconditions.notNull(bytes);
-
-			ByteBuffer hash = ByteBuffer.wrap(algorithm.digest(bytes));
+			MessageDigest digest = streaming;
+			streaming = null;
 
-			final URI uri;
-			try
+			if (digest == null)
 			{
-				uri = new URI("urn",
-						algorithm.getAlgorithm().toLowerCase() + ":" +
-						new String(new Base32().encode(hash.array())), null);
+				Preconditions.notNull((Object) content);
+				digest = borrowDigest();
 			}
-			catch (URISyntaxException e)
+
+			final byte[] hash;
+			try
 			{
-				throw new ProgrammerError("Failed to make URI for Fingerprint", e);
+				if (content != null)
+					for (ByteBuffer b : content) digest.update(b.duplicate());
+
+				hash = digest.digest();
 			}
+			finally { CryptoPool.release(digest); }
 
-			return new Fingerprint(algorithm, hash, uri);
+			return new Fingerprint(algorithm, hash);
 		}
 
 		public Builder setAlgorithm(String a) throws NoSuchAlgorithmException
 		{
-			algorithm = MessageDigest.getInstance(a);
+			algorithm = Algorithms.id(a);
 			return this;
 		}
 
-		public Builder setContent(byte[] b) { bytes = b; return this; }
+		public Builder setContent(byte[] b) { return setContent(ByteBuffer.wrap(b)); }
 		public Builder setContent(HasBytes h) { return setContent(h.getBytes()); }
-		public Builder setContent(ByteBuffer b)
+		public Builder setContent(ByteBuffer b) { return setContent(new ByteBuffer[] { b }); }
+
+		/**
+		 * Fingerprint the concatenation of several buffers, e.g. the output of
+		 * {@link me.footlights.core.data.Block#getByteBuffers()}.
+		 *
+		 * The buffers' positions are not modified, and they are not copied.
+		 */
+		public Builder setContent(ByteBuffer[] buffers)
 		{
-			if (b.isReadOnly())
-			{
-				bytes = new byte[b.remaining()];
-				b.get(bytes);
-			}
-			else bytes = b.array();
+			content = buffers;
+			return this;
+		}
 
+		/**
+		 * Hash some bytes now, rather than holding on to them until {@link #build()}.
+		 *
+		 * This is for content which is produced incrementally; the buffer's position is not
+		 * modified.
+		 */
+		public Builder update(ByteBuffer b)
+		{
+			if (streaming == null) streaming = borrowDigest();
+			streaming.update(b.duplicate());
 			return this;
 		}
-		
-		private Builder(Preferences preferences)
+
+		private MessageDigest borrowDigest()
 		{
-			try
-			{
-				algorithm = MessageDigest.getInstance(
-					preferences.getString("crypto.hash.algorithm").get());
-			}
+			String name = Algorithms.name(algorithm);
+			try { return CryptoPool.borrowDigest(name); }
 			catch (NoSuchAlgorithmException e)
 			{
-				throw new ConfigurationError("Invalid hash algorithm: " + e);
+				throw new ProgrammerError("Algorithm '" + name + "' has disappeared", e);
 			}
 		}
 
-		private MessageDigest algorithm;
-		private byte[] bytes;
+		private Builder(byte algorithm) { this.algorithm = algorithm; }
+
+		/** The hash algorithm's identifier (see {@link Algorithms}). */
+		private byte algorithm;
+		private ByteBuffer[] content;
+
+		/** A digest which we are feeding incrementally via {@link #update}. */
+		private MessageDigest streaming;
 	}
 
 
-	@Override public String toString() { return uri.toString(); }
-	@Override public int hashCode() { return bytes.duplicate().getInt(); }
+	@Override public String toString() { return encode(); }
+	@Override public int hashCode() { return hash; }
 	@Override public boolean equals(Object o)
 	{
+		if (o == this) return true;
 		if (!(o instanceof Fingerprint)) return false;
 		Fingerprint f = (Fingerprint) o;
 
-		if (!algorithm.getAlgorithm().toLowerCase()
-				.equals(f.algorithm.getAlgorithm().toLowerCase()))
-			return false;
-		if (bytes.compareTo(f.bytes) != 0) return false;
+		return (hash == f.hash)
+			&& (algorithm == f.algorithm)
+			&& Arrays.equals(digest, f.digest);
+	}
 
-		return true;
+	String hex() { return Hex.encodeHexString(digest); }
+
+	/** The identifier of the hash algorithm (see {@link Algorithms}). */
+	byte algorithmId() { return algorithm; }
+
+	/** The raw digest bytes (not a copy, so callers must not modify them). */
+	byte[] digest() { return digest; }
+
+	/**
+	 * A fingerprint from its binary form: a well-known algorithm identifier and a digest
+	 * (which is not copied).
+	 */
+	static Fingerprint fromDigest(byte algorithm, byte[] digest) throws FormatException
+	{
+		String name = Algorithms.name(algorithm);
+		if (!Algorithms.isWellKnown(algorithm) || (name == null))
+			throw new FormatException("Unknown hash algorithm: " + (algorithm & 0xff));
+
+		// A digest of the wrong length could never name anything.
+		int length;
+		try
+		{
+			MessageDigest d = CryptoPool.borrowDigest(name);
+			length = d.getDigestLength();
+			CryptoPool.release(d);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new FormatException("Unsupported hash algorithm: " + name);
+		}
+
+		if (digest.length != length)
+			throw new FormatException("Invalid " + name + " digest length: "
+				+ digest.length + " B (expected " + length + " B)");
+
+		return new Fingerprint(algorithm, digest);
+	}
+
+
+	/** Lazily-read preferences. */
+	private static class Defaults
+	{
+		/** The identifier of the {@code crypto.hash.algorithm} preference. */
+		static final byte ALGORITHM;
+		static
+		{
+			String name =
+				Preferences.getDefaultPreferences().getString("crypto.hash.algorithm").get();
+
+			try { ALGORITHM = Algorithms.id(name); }
+			catch (NoSuchAlgorithmException e)
+			{
+				throw new ConfigurationError("Invalid hash algorithm: " + e);
+			}
+		}
+	}
+
+
+	/**
+	 * Maps hash algorithm names to one-byte identifiers.
+	 *
+	 * Well-known algorithms have fixed identifiers. Other algorithms are assigned identifiers
+	 * (from {@link #FIRST_DYNAMIC} up) the first time that we see them, so those identifiers
+	 * are only meaningful within this process.
+	 */
+	static final class Algorithms
+	{
+		static final int FIRST_DYNAMIC = 0x80;
+
+		/** Look up (or assign) an algorithm's identifier. */
+		static byte id(String name) throws NoSuchAlgorithmException
+		{
+			String key = name.toLowerCase();
+			Byte id = ids.get(key);
+			if (id != null) return id;
+
+			synchronized (Algorithms.class)
+			{
+				id = ids.get(key);
+				if (id != null) return id;
+
+				// Make sure that the algorithm exists before we give it a name.
+				CryptoPool.release(CryptoPool.borrowDigest(key));
+
+				if (next > 0xff)
+					throw new ProgrammerError("Too many hash algorithms (" + ids + ")");
+
+				names[next] = key;
+				id = (byte) next++;
+				ids.put(key, id);
+				return id;
+			}
+		}
+
+		static String name(byte id) { return names[id & 0xff]; }
+
+		/** Does this identifier mean the same thing in every process? */
+		static boolean isWellKnown(byte id) { return (id & 0xff) < FIRST_DYNAMIC; }
+
+		/** Identifiers are array indices: only ever append to this list. */
+		private static final String[] WELL_KNOWN =
+		{
+			"sha-1", "sha-256", "sha-384", "sha-512", "md5", "sha-224",
+			"blake2b-256", "blake2b-512",
+		};
+
+		private static final String[] names = new String[0x100];
+		private static final Map<String,Byte> ids = new ConcurrentHashMap<String,Byte>();
+		private static int next = FIRST_DYNAMIC;
+
+		static
+		{
+			for (int i = 0; i < WELL_KNOWN.length; i++)
+			{
+				names[i] = WELL_KNOWN[i];
+				ids.put(WELL_KNOWN[i], (byte) i);
+			}
+		}
+
+		private Algorithms() {}
 	}
 
-	String hex() { return Hex.encodeHexString(bytes.array()); }
 
-	private Fingerprint(MessageDigest hashAlgorithm, ByteBuffer fingerprintBytes, URI uri)
+	private Fingerprint(byte algorithm, byte[] digest)
 	{
-		Preconditions.check(uri.getScheme().equals("urn"));
+		this.algorithm = algorithm;
+		this.digest = digest;
 
-		this.algorithm = hashAlgorithm;
-		this.bytes = fingerprintBytes;
-		this.uri = uri;
+		// The digest is already uniformly distributed.
+		int h = 0;
+		for (int i = 0; i < Math.min(4, digest.length); i++) h = (h << 8) | (digest[i] & 0xff);
+		this.hash = h;
 	}
 
-	private MessageDigest algorithm;
-	private ByteBuffer bytes;
-	private URI uri;
+	private final byte algorithm;
+	private final byte[] digest;
+	private final int hash;
+
+	/** Textual forms, generated lazily. */
+	private volatile String encoded;
+	private volatile URI uri;
 
 	private static Logger log = Logger.getLogger(Fingerprint.class.getCanonicalName());
 }
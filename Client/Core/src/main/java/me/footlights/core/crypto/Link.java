@@ -31,6 +31,23 @@ import me.footlights.core.data.FormatException;
 
 /**
  * A link between two blocks of data.
+ *
+ * Links are written in a compact binary form whenever both the hash and cipher algorithms
+ * have well-known one-byte identifiers:
+ * <pre>
+ * 'L' 0x02    2 B magic (version 2)
+ * hash        1 B: the fingerprint's algorithm (see {@link Fingerprint.Algorithms})
+ * cipher      1 B: the key's algorithm (see {@link #CIPHERS})
+ * digest      1 B: length of the fingerprint's digest
+ * key         1 B: length of the key
+ * [digest]
+ * [key]
+ * </pre>
+ * Otherwise, they are written in the original format, which names both algorithms (and the
+ * fingerprint) as strings: "LINK\r\n", then lengths (2 B each) of the whole body, the
+ * fingerprint URN and the algorithm name, the key length in bits, and then the body itself.
+ * Both formats can always be read.
+ *
  * @author Jonathan Anderson (jon@footlights.me)
  */
 public class Link implements FootlightsPrimitive
@@ -62,6 +79,11 @@ public class Link implements FootlightsPrimitive
 		{
 			Util.setByteOrder(b);
 
+			if ((b.remaining() >= MAGIC_V2.length)
+			    && (b.get(b.position()) == MAGIC_V2[0])
+			    && (b.get(b.position() + 1) == MAGIC_V2[1]))
+				return parseBinary(b);
+
 			byte[] magic = new byte[MAGIC.length];
 			try
 			{
@@ -117,6 +139,43 @@ public class Link implements FootlightsPrimitive
 			return this;
 		}
 
+		/** Parse the compact, binary (version 2) format. */
+		private Builder parseBinary(ByteBuffer b)
+			throws FormatException, GeneralSecurityException
+		{
+			if (b.remaining() < V2_HEADER_BYTES)
+				throw new FormatException("Link header truncated");
+
+			b.position(b.position() + MAGIC_V2.length);
+			byte hash = b.get();
+			int cipher = b.get() & 0xff;
+			int digestLength = b.get() & 0xff;
+			int keyLength = b.get() & 0xff;
+
+			if (cipher >= CIPHERS.length)
+				throw new FormatException("Unknown cipher: " + cipher);
+
+			if (digestLength == 0) throw new FormatException("Cannot link to nothing");
+
+			if (b.remaining() < digestLength + keyLength)
+				throw new FormatException(
+					"Link body (" + (digestLength + keyLength) + " B) truncated");
+
+			byte[] digest = new byte[digestLength];
+			b.get(digest);
+			fingerprint = Fingerprint.fromDigest(hash, digest);
+
+			byte[] encodedKey = new byte[keyLength];
+			b.get(encodedKey);
+
+			key = SecretKey.newGenerator()
+				.setAlgorithm(CIPHERS[cipher])
+				.setBytes(encodedKey)
+				.generate();
+
+			return this;
+		}
+
 		public Link build() { return new Link(fingerprint, key); }
 
 		private Fingerprint fingerprint;
@@ -141,24 +200,39 @@ public class Link implements FootlightsPrimitive
 		if (ciphertext.remaining() == 0)
 			throw new GeneralSecurityException("Nothing to decrypt!");
 
-		if (cipher == null)
-			cipher = key.newCipherBuilder()
-				.setOperation(SecretKey.Operation.DECRYPT)
-				.build();
+		// Blocks say whether they were encrypted in counter mode; anything else is CBC
+		// (or whatever other mode we have been configured to use).
+		ByteBuffer plaintext = CounterMode.decrypt(key, ciphertext);
+		if (plaintext == null) plaintext = decryptSerially(ciphertext);
+
+		try { return Block.parse(plaintext); }
+		catch (FormatException e)
+		{
+			throw new GeneralSecurityException("Unable to decrypt", e);
+		}
+	}
+
+	/** Decrypt a block that wasn't encrypted in {@link CounterMode}. */
+	private ByteBuffer decryptSerially(ByteBuffer ciphertext) throws GeneralSecurityException
+	{
+		SecretKey.CipherBuilder builder = key.newCipherBuilder()
+			.setOperation(SecretKey.Operation.DECRYPT);
+
+		if (builder.getMode().equals(CounterMode.NAME)) builder.setMode("CBC");
+		Cipher cipher = builder.build();
 
 		int toDecrypt = cipher.getOutputSize(ciphertext.remaining());
 		ByteBuffer plaintext = ByteBuffer.allocate(toDecrypt);
-		int bytes = cipher.doFinal(ciphertext.asReadOnlyBuffer(), plaintext);
+		final int bytes;
+		try { bytes = cipher.doFinal(ciphertext.asReadOnlyBuffer(), plaintext); }
+		finally { CryptoPool.release(cipher); }
+
 		if (bytes != toDecrypt)
 			throw new GeneralSecurityException(
 				"Decrypted wrong number of bytes; expected " + toDecrypt + ", got " + bytes);
 
 		plaintext.flip();
-		try { return Block.parse(plaintext); }
-		catch (FormatException e)
-		{
-			throw new GeneralSecurityException("Unable to decrypt", e);
-		}
+		return plaintext;
 	}
 
 	/**
@@ -180,6 +254,31 @@ public class Link implements FootlightsPrimitive
 
 
 	private ByteBuffer generateRawBytes()
+	{
+		final int cipher = cipherId(key.getAlgorithm());
+		final byte[] keyBytes = key.getKey().getEncoded();
+		if ((cipher < 0) || !Fingerprint.Algorithms.isWellKnown(fingerprint.algorithmId())
+		    || (keyBytes.length > 0xff))
+			return generateTextualBytes();
+
+		final byte[] digest = fingerprint.digest();
+		if ((digest.length == 0) || (digest.length > 0xff)) return generateTextualBytes();
+
+		ByteBuffer buffer = ByteBuffer.allocate(V2_HEADER_BYTES + digest.length + keyBytes.length);
+		buffer.put(MAGIC_V2);
+		buffer.put(fingerprint.algorithmId());
+		buffer.put((byte) cipher);
+		buffer.put((byte) digest.length);
+		buffer.put((byte) keyBytes.length);
+		buffer.put(digest);
+		buffer.put(keyBytes);
+		buffer.flip();
+
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/** The original format, for algorithms that don't have well-known identifiers. */
+	private ByteBuffer generateTextualBytes()
 	{
 		final String name = fingerprint.encode();
 		final String encryptionAlgorithm = key.getAlgorithm();
@@ -233,6 +332,14 @@ public class Link implements FootlightsPrimitive
 
 	static int minimumLength() { return MAGIC.length + 8; }
 
+	private static int cipherId(String algorithm)
+	{
+		for (int i = 0; i < CIPHERS.length; i++)
+			if (CIPHERS[i].equals(algorithm)) return i;
+
+		return -1;
+	}
+
 
 	// Object overrides
 	@Override public String toString()
@@ -255,19 +362,21 @@ public class Link implements FootlightsPrimitive
 		if (!fingerprint.equals(other.fingerprint)) return false;
 		if (!key.getAlgorithm().equals(other.key.getAlgorithm())) return false;
 
-		byte[] myBytes = key.getKey().getEncoded();
-		byte[] otherBytes = other.key.getKey().getEncoded();
-		if (myBytes.length != otherBytes.length) return false;
-		for (int i = 0; i < myBytes.length; i++)
-			if (myBytes[i] != otherBytes[i]) return false;
-
-		return true;
+		// Compare key material without copying it out of the key specs.
+		return key.getKey().equals(other.key.getKey());
 	}
 
 
 	/** The magic bytes at the beginning of a {@link Link}. */
 	private static byte[] MAGIC = new byte[] { 'L', 'I', 'N', 'K', '\r', '\n' };
 
+	/** The magic bytes at the beginning of a binary (version 2) {@link Link}. */
+	private static final byte[] MAGIC_V2 = new byte[] { 'L', 0x02 };
+	private static final int V2_HEADER_BYTES = MAGIC_V2.length + 4;
+
+	/** Ciphers with well-known identifiers (their indices): never reorder! */
+	private static final String[] CIPHERS = { "AES", "Blowfish", "DESede", "Twofish", "Serpent" };
+
 	/** Character set used for byte<->String translation. */
 	private static final String ASCII = "ascii";
 
@@ -277,9 +386,6 @@ public class Link implements FootlightsPrimitive
 	/** Key to decrypt the linked block (or null) */
 	private final SecretKey key;
 
-	/** Cipher used to decrypt the linked block. */
-	private Cipher cipher;
-
 	/** Raw byte representation */
 	private ByteBuffer raw;
 }
@@ -29,12 +29,21 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.commons.codec.binary.Hex;
 
 import me.footlights.core.Preferences;
 
 
-/** A secret, symmetric key. */
+/**
+ * A secret, symmetric key.
+ *
+ * A key is created for every block that we encrypt or link to, so its derived forms (its
+ * fingerprint and URI, which only matter to things like keychains) are only computed when
+ * somebody asks for them.
+ */
 public class SecretKey
 {
 	public enum Operation
@@ -49,9 +58,49 @@ public class SecretKey
 	};
 
 	public String getAlgorithm() { return keySpec.getAlgorithm(); }
-	public Fingerprint getFingerprint() { return fingerprint; }
 	public SecretKeySpec getKey() { return keySpec; }
-	public URI toUri() { return uri; }
+
+	/** A fingerprint of the key itself, calculated on first use. */
+	public Fingerprint getFingerprint()
+	{
+		Fingerprint f = fingerprint;
+		if (f == null)
+			synchronized (this)
+			{
+				if (fingerprint == null)
+				{
+					Fingerprint.Builder builder = fingerprintBuilder;
+					if (builder == null) builder = Fingerprint.newBuilder();
+
+					fingerprint = builder.setContent(keySpec.getEncoded()).build();
+					fingerprintBuilder = null;
+				}
+
+				f = fingerprint;
+			}
+
+		return f;
+	}
+
+	/** The key as a URI (e.g. "AES:0123abcd..."), generated on first use. */
+	public URI toUri()
+	{
+		URI u = uri;
+		if (u == null)
+		{
+			String algorithm = keySpec.getAlgorithm();
+			String keyData = new String(Hex.encodeHex(keySpec.getEncoded()));
+
+			try { uri = u = new URI(algorithm, keyData, null); }
+			catch (URISyntaxException e)
+			{
+				throw new IllegalArgumentException(
+					"Unable to generate symmetric key URI " + algorithm + ":" + keyData, e);
+			}
+		}
+
+		return u;
+	}
 
 	/** Parse a hexadecimal URI. */
 	public static SecretKey parse(URI uri)
@@ -73,7 +122,7 @@ public class SecretKey
 	Link.Builder createLinkBuilder()
 	{
 		return Link.newBuilder()
-			.setFingerprint(fingerprint)
+			.setFingerprint(getFingerprint())
 			.setKey(this);
 	}
 
@@ -86,7 +135,7 @@ public class SecretKey
 		public Generator setBytes(byte[] s) { secret = s; return this; }
 		public Generator setFingerprintAlgorithm(String a) throws NoSuchAlgorithmException
 		{
-			fingerprint.setAlgorithm(a);
+			fingerprint = Fingerprint.newBuilder().setAlgorithm(a);
 			return this;
 		}
 		public Generator setKey(SecretKeySpec spec) { keySpec = spec; return this; }
@@ -101,37 +150,49 @@ public class SecretKey
 			if (secret == null)
 			{
 				secret = new byte[keylen];
-				SecureRandom.getInstance(preferences.getString("crypto.prng").get())
+				SecureRandom.getInstance(Defaults.PRNG)
 					.nextBytes(secret);
 			}
 
 			if (keySpec == null) keySpec = new SecretKeySpec(secret, algorithm);
 
-			return new SecretKey(keySpec, fingerprint.setContent(secret).build());
+			return new SecretKey(keySpec, fingerprint);
 		}
 
 
-		private String algorithm = preferences.getString("crypto.sym.algorithm").get();
+		private String algorithm = Defaults.ALGORITHM;
 
-		private int keylen = preferences.getInt("crypto.sym.keylen").get();
+		private int keylen = Defaults.KEYLEN;
 		private byte[] secret = null;
-		private Fingerprint.Builder fingerprint = Fingerprint.newBuilder();
+		/** How to fingerprint the key (null means "the default"). */
+		private Fingerprint.Builder fingerprint;
 		private SecretKeySpec keySpec;
 	}
 	
 
 
+	/**
+	 * Builds {@link Cipher} objects.
+	 *
+	 * Ciphers come from the {@link CryptoPool}; callers which are finished with a
+	 * {@link Cipher} should {@link CryptoPool#release} it.
+	 */
 	public class CipherBuilder
 	{
 		public Cipher build()
 			throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
 			       InvalidAlgorithmParameterException
 		{
-			String fullAlgorithm = keySpec.getAlgorithm() + "/" + mode + "/" + padding;
-			Cipher cipher = Cipher.getInstance(fullAlgorithm);
+			String fullAlgorithm = ((mode == Defaults.MODE) && (padding == Defaults.PADDING))
+				? Defaults.fullAlgorithm(keySpec.getAlgorithm())
+				: keySpec.getAlgorithm() + "/" + mode + "/" + padding;
+
+			Cipher cipher = CryptoPool.borrowCipher(fullAlgorithm);
 
 			IvParameterSpec iv = null;
-			if (!mode.equals("ECB")) iv = new IvParameterSpec(new byte[cipher.getBlockSize()]);
+			if (mode.equals("ECB")) iv = null;
+			else if (this.iv != null) iv = new IvParameterSpec(this.iv);
+			else iv = zeroIV(cipher.getBlockSize());
 
 			cipher.init(operation.opcode(), keySpec, iv);
 
@@ -155,23 +216,29 @@ public class SecretKey
 			return this;
 		}
 
+		public String getMode() { return mode; }
+
 		public CipherBuilder setOperation(Operation o)  { operation = o; return this; }
 		public CipherBuilder setMode(String m)          { mode = m;      return this; }
 		public CipherBuilder setPaddingScheme(String p) { padding = p;   return this; }
 
+		/** Use an IV (or initial counter) other than the default (all zeroes). */
+		public CipherBuilder setIV(byte[] iv)           { this.iv = iv;  return this; }
+
 
 		private CipherBuilder() {}
 
 		private Operation operation = Operation.ENCRYPT;
-		private String mode = preferences.getString("crypto.sym.mode").get();
-		private String padding = preferences.getString("crypto.sym.padding").get();
+		private String mode = Defaults.MODE;
+		private String padding = Defaults.PADDING;
+		private byte[] iv;
 	}
 
 
 	// Object override.
 	@Override public String toString()
 	{
-		return SecretKey.class.getSimpleName() + " { " + fingerprint + " }";
+		return SecretKey.class.getSimpleName() + " { " + getFingerprint() + " }";
 	}
 
 	@Override public boolean equals(Object other)
@@ -179,30 +246,69 @@ public class SecretKey
 		if (!(other instanceof SecretKey)) return false;
 		SecretKey o = (SecretKey) other;
 
-		return (this.uri.equals(o.uri));
+		return keySpec.equals(o.keySpec);
 	}
 
+	@Override public int hashCode() { return keySpec.hashCode(); }
 
-	private SecretKey(SecretKeySpec key, Fingerprint fingerprint)
+
+	private SecretKey(SecretKeySpec key, Fingerprint.Builder fingerprintBuilder)
 	{
 		this.keySpec = key;
-		this.fingerprint = fingerprint;
+		this.fingerprintBuilder = fingerprintBuilder;
+	}
 
-		String algorithm = keySpec.getAlgorithm();
-		String keyData = new String(Hex.encodeHex(keySpec.getEncoded()));
+	/** An all-zero initialization vector (shared, since {@link IvParameterSpec} copies it). */
+	private static IvParameterSpec zeroIV(int bytes)
+	{
+		IvParameterSpec iv = zeroIV;
+		if ((iv == null) || (iv.getIV().length != bytes))
+			zeroIV = iv = new IvParameterSpec(new byte[bytes]);
 
-		try { this.uri = new URI(algorithm, keyData, null); }
-		catch (URISyntaxException e)
-		{
-			throw new IllegalArgumentException(
-				"Unable to generate symmetric key URI " + algorithm + ":" + keyData, e);
-		}
+		return iv;
 	}
 
+	private static volatile IvParameterSpec zeroIV;
+
 	final SecretKeySpec keySpec;
-	private final Fingerprint fingerprint;
-	private final URI uri;
 
-	/** Footlights-wide preferences. */
-	private static Preferences preferences = Preferences.getDefaultPreferences();
+	/** Derived from the key on first use. */
+	private volatile Fingerprint fingerprint;
+	private Fingerprint.Builder fingerprintBuilder;
+	private volatile URI uri;
+
+	/** Lazily-read preferences. */
+	private static class Defaults
+	{
+		static final String ALGORITHM;
+		static final int KEYLEN;
+		static final String PRNG;
+		static final String MODE;
+		static final String PADDING;
+		static
+		{
+			Preferences prefs = Preferences.getDefaultPreferences();
+			ALGORITHM = prefs.getString("crypto.sym.algorithm").get();
+			KEYLEN = prefs.getInt("crypto.sym.keylen").get();
+			PRNG = prefs.getString("crypto.prng").get();
+			MODE = prefs.getString("crypto.sym.mode").get();
+			PADDING = prefs.getString("crypto.sym.padding").get();
+		}
+
+		/** "algorithm/mode/padding" with the default mode and padding, built once per key type. */
+		static String fullAlgorithm(String algorithm)
+		{
+			String full = FULL_NAMES.get(algorithm);
+			if (full == null)
+			{
+				full = algorithm + "/" + MODE + "/" + PADDING;
+				FULL_NAMES.putIfAbsent(algorithm, full);
+			}
+
+			return full;
+		}
+
+		private static final ConcurrentMap<String,String> FULL_NAMES =
+			new ConcurrentHashMap<String,String>();
+	}
 }
@@ -24,9 +24,6 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
-
-import javax.crypto.Cipher;
 
 import me.footlights.core.Preconditions;
 import me.footlights.core.crypto.Fingerprint;
@@ -54,31 +51,82 @@ public class Block implements FootlightsPrimitive
 			return remaining;
 		}
 
-		public Builder addLink(Link link) { links.add(link); return this; }
+		/** How many more {@link Link}s can this {@link Block}-to-be hold? */
+		public int linksRemaining() { return MAX_LINKS - links.size(); }
+
+		public Builder addLink(Link link) { links.add(link); parsed = null; return this; }
 
 		public Builder addContent(byte[] content) { return addContent(ByteBuffer.wrap(content)); }
 		public Builder addContent(ByteBuffer content)
 		{
 			this.content.add(content.asReadOnlyBuffer());
+			parsed = null;
 			return this;
 		}
 
 		/**
 		 * Specify a particular size for the {@link Block} to end up with.
-		 * If unspecified, the size of the {@link Block} will be a power of 2.
+		 * If unspecified, the {@link Block} will be the smallest valid size that fits
+		 * (see {@link SizeClass}).
 		 */
 		public Builder setDesiredSize(int bytes)
 		{
 			this.desiredSize = bytes;
+			parsed = null;
+			return this;
+		}
+
+		/**
+		 * Use geometric size classes (see {@link SizeClass}) rather than powers of two, both
+		 * when automatically sizing the block and when checking a {@link #setDesiredSize}.
+		 *
+		 * The default depends on the {@code data.sizeclasses} preference.
+		 */
+		public Builder setGeometricSizes(boolean geometric)
+		{
+			this.geometric = geometric;
+			parsed = null;
+			return this;
+		}
+
+		/**
+		 * Compress the block's content (if that makes it smaller) before it is padded and
+		 * encrypted; see {@link Compression}. A flag in the header tells readers to inflate it.
+		 *
+		 * The default depends on the {@code data.compression} preference.
+		 */
+		public Builder setCompression(boolean compress)
+		{
+			this.compress = compress;
+			parsed = null;
+			return this;
+		}
+
+		/**
+		 * Derive padding from the block's content with a PRF under this key, rather than
+		 * generating it randomly, so that identical content produces identical blocks.
+		 *
+		 * A null key means "random padding". The default depends on the {@code data.padding}
+		 * preference.
+		 */
+		public Builder setPaddingKey(byte[] key)
+		{
+			this.paddingKey = key;
 			return this;
 		}
 
 		public Builder setNamingAlgorithm(String a) throws NoSuchAlgorithmException
 		{
-			fingerprintBuilder.setAlgorithm(a);
+			fingerprintBuilder = Fingerprint.newBuilder().setAlgorithm(a);
 			return this;
 		}
 
+		/**
+		 * Parse a {@link Block} from its byte representation.
+		 *
+		 * If nothing else is done to this {@link Builder} before {@link #build()}, the resulting
+		 * {@link Block} will wrap the parsed bytes in place rather than copying them.
+		 */
 		public Builder parse(ByteBuffer bytes) throws FormatException, GeneralSecurityException
 		{
 			int startPosition = bytes.position();
@@ -89,24 +137,17 @@ public class Block implements FootlightsPrimitive
 				throw new FormatException(
 					"Block does not begin with the correct magic");
 
-			byte n = bytes.get();
-			if (n < 0) throw new FormatException("Negative N: " + n);
-			long length = (1 << n);
-			if (length < MINIMUM_BYTES)
-				throw new FormatException(
-					"Block cannot be smaller than " + MINIMUM_BYTES + "B");
+			long length = SizeClass.decode(bytes.get());
 
-			byte linkCount = bytes.get();
-			if (linkCount < 0)
-				throw new FormatException("Negative linkCount: " + linkCount);
+			int linkCount = bytes.get() & 0xff;
 
 			int dataOffset = bytes.getInt();
 			if (dataOffset < 0)
 				throw new FormatException("Negative offset: " + dataOffset);
 
 			int dataLength = bytes.getInt();
-			if (dataLength < 0)
-				throw new FormatException("Negative length: " + dataLength);
+			boolean compressed = ((dataLength & COMPRESSED) != 0);
+			dataLength &= ~COMPRESSED;
 			
 			if (dataOffset + dataLength > length)
 				throw new FormatException(
@@ -114,8 +155,13 @@ public class Block implements FootlightsPrimitive
 					 + dataOffset + " + " + dataLength
 					 + "B of user data (total length: " + length + ")");
 
+			if (bytes.limit() - startPosition != length)
+				throw new FormatException(
+					"Block should be " + length + "B long, but "
+					 + (bytes.limit() - startPosition) + "B were supplied");
+
 			links.clear();
-			for (byte i = 0; i < linkCount; i++)
+			for (int i = 0; i < linkCount; i++)
 				addLink(Link.parse(bytes));
 
 			if (bytes.position() - startPosition != dataOffset)
@@ -124,29 +170,32 @@ public class Block implements FootlightsPrimitive
 
 			ByteBuffer content = bytes.slice().asReadOnlyBuffer();
 			content.limit(dataLength);
-			this.content.add(content);
+
+			ByteBuffer inflated = compressed ? Compression.inflate(content) : null;
+			this.content.add(compressed ? inflated : content);
+			this.compress = compressed;
 
 			bytes.position(bytes.position() + dataLength);
 			padding = bytes.slice();
 
+			ByteBuffer whole = bytes.asReadOnlyBuffer();
+			whole.position(startPosition);
+			parsed = whole.slice();
+			parsedOffset = dataOffset;
+			parsedLength = dataLength;
+			parsedInflated = inflated;
+
 			return this;
 		}
 
 		public Block build() throws FormatException
 		{
-			final ByteBuffer flattened;
-			if (content.size() == 1) flattened = content.get(0);
-			else
-			{
-				int contentSize = 0;
-				for (ByteBuffer b : content) contentSize += b.remaining();
+			if (parsed != null)
+				return new Block(parsed, links, parsedOffset, parsedLength, parsedInflated,
+					fingerprintBuilder);
 
-				flattened = ByteBuffer.allocate(contentSize);
-				for (ByteBuffer b : content) flattened.put(b);
-				flattened.flip();
-			}
-
-			return new Block(links, flattened, padding, desiredSize, fingerprintBuilder);
+			return new Block(links, content, padding, paddingKey, desiredSize, geometric,
+				compress, fingerprintBuilder);
 		}
 
 		private Builder() {}
@@ -155,27 +204,134 @@ public class Block implements FootlightsPrimitive
 		private List<Link> links = new ArrayList<Link>();
 		private List<ByteBuffer> content = new ArrayList<ByteBuffer>();
 		private ByteBuffer padding;
-		private Fingerprint.Builder fingerprintBuilder = Fingerprint.newBuilder();
+		private byte[] paddingKey = Padding.defaultKey();
+		private boolean geometric = SizeClass.geometricByDefault();
+		private boolean compress = Compression.byDefault();
+
+		/** Hash algorithm to name the block with (null means "the default"). */
+		private Fingerprint.Builder fingerprintBuilder;
+
+		/** The bytes that we have parsed, if we have not been modified since. */
+		private ByteBuffer parsed;
+		private int parsedOffset;
+		private int parsedLength;
+		private ByteBuffer parsedInflated;
 	}
 
 	public static Builder newBuilder() { return new Builder(); }
 
+	/**
+	 * Are new blocks padded deterministically (see {@link Builder#setPaddingKey})? If not,
+	 * every new block is unique.
+	 */
+	public static boolean deterministicPaddingByDefault()
+	{
+		return (Padding.defaultKey() != null);
+	}
+
 	/** Shorthand for {@link Builder#parse(ByteBuffer).build()}. */
 	public static Block parse(ByteBuffer bytes) throws FormatException, GeneralSecurityException
 	{
 		return newBuilder().parse(bytes).build();
 	}
 
+	/**
+	 * Was a (decrypted) block encrypted in {@link me.footlights.core.crypto.CounterMode}?
+	 *
+	 * Counter-mode blocks are marked by a different magic number, which is always in the
+	 * first cipher block (decryptable without knowing the mode).
+	 */
+	public static boolean isCounterMode(ByteBuffer header)
+	{
+		if (header.remaining() < COUNTER_MAGIC.length) return false;
+		for (int i = 0; i < COUNTER_MAGIC.length; i++)
+			if (header.get(header.position() + i) != COUNTER_MAGIC[i]) return false;
+
+		return true;
+	}
+
+	/** Mark a block's header (in place) as encrypted in counter mode, or not. */
+	public static void setCounterMode(ByteBuffer header, boolean counterMode)
+	{
+		byte[] magic = counterMode ? COUNTER_MAGIC : MAGIC;
+		for (int i = 0; i < magic.length; i++) header.put(header.position() + i, magic[i]);
+	}
+
 	public List<Link> links() { return links; }
-	public ByteBuffer content() { return content.asReadOnlyBuffer(); }
-	public Fingerprint name() { return fingerprint; }
+
+	/**
+	 * The block's name: a fingerprint of its plaintext bytes.
+	 *
+	 * This is calculated on first use: most blocks that we decrypt are never asked for it.
+	 */
+	public Fingerprint name()
+	{
+		Fingerprint f = fingerprint;
+		if (f == null)
+			synchronized (this)
+			{
+				if (fingerprint == null)
+				{
+					Fingerprint.Builder builder = fingerprintBuilder;
+					if (builder == null) builder = Fingerprint.newBuilder();
+
+					fingerprint = builder.setContent(getByteBuffers()).build();
+					fingerprintBuilder = null;
+				}
+
+				f = fingerprint;
+			}
+
+		return f;
+	}
+
+	/**
+	 * The user content of the block.
+	 *
+	 * If the block was built from several content buffers, they are only assembled into a
+	 * single buffer when this method is first called.
+	 */
+	public ByteBuffer content()
+	{
+		if (content.length == 1) return content[0].asReadOnlyBuffer();
+
+		ByteBuffer flat = flattened;
+		if (flat == null)
+		{
+			flat = ByteBuffer.allocate(contentLength);
+			for (ByteBuffer b : content) flat.put(b.duplicate());
+			flat.flip();
+			flattened = flat = flat.asReadOnlyBuffer();
+		}
+
+		return flat.asReadOnlyBuffer();
+	}
+
+	/**
+	 * The block's byte representation, as a sequence of buffers (header, links, content and
+	 * padding) suitable for a {@link java.nio.channels.GatheringByteChannel}.
+	 *
+	 * Unlike {@link #getBytes()}, this does not require a contiguous copy of the block.
+	 */
+	public ByteBuffer[] getByteBuffers()
+	{
+		ByteBuffer[] buffers = new ByteBuffer[2 + linkBytes.length + encoded.length];
+
+		int i = 0;
+		buffers[i++] = header.duplicate();
+		for (ByteBuffer b : linkBytes) buffers[i++] = b.duplicate();
+		for (ByteBuffer b : encoded) buffers[i++] = b.duplicate();
+		buffers[i++] = padding.duplicate();
+
+		return buffers;
+	}
 
 	public EncryptedBlock encrypt() throws GeneralSecurityException
 	{
 		SecretKey.Generator keygen = SecretKey.newGenerator();
 
 		short length = (short) keygen.getKeyLength();
-		byte[] hashBytes = fingerprint.copyBytes();
+		byte[] hashBytes = name().copyBytes();
 		byte[] secret = new byte[length / 8];
 		System.arraycopy(hashBytes, 0, secret, 0, secret.length);
 
@@ -183,33 +339,34 @@ public class Block implements FootlightsPrimitive
 				.setBytes(secret)
 				.generate();
 
-		Cipher cipher = key
-			.newCipherBuilder()
-			.setOperation(SecretKey.Operation.ENCRYPT)
-			.build();
-
-		int len = cipher.getOutputSize(bytes.remaining());
-		ByteBuffer ciphertext = ByteBuffer.allocate(len);
+		return EncryptionEngine.encrypt(this, key);
+	}
 
-		cipher.doFinal(bytes.asReadOnlyBuffer(), ciphertext);
-		ciphertext.flip();
 
-		Fingerprint ciphertextName = Fingerprint.newBuilder().setContent(ciphertext).build();
-		Link link = Link.newBuilder()
-			.setFingerprint(ciphertextName)
-			.setKey(key)
-			.build();
+	// FootlightsPrimitive implementation
+	public int bytes()            { return totalLength; }
 
-		return EncryptedBlock.newBuilder()
-			.setCiphertext(ciphertext)
-			.setLink(link)
-			.build();
-	}
+	/** How much of the block is padding. */
+	public int paddingBytes()     { return padding.remaining(); }
 
+	/**
+	 * A contiguous copy of the block's bytes, assembled on first use.
+	 *
+	 * Callers which can handle scattered buffers should use {@link #getByteBuffers()} instead.
+	 */
+	public ByteBuffer getBytes()
+	{
+		ByteBuffer b = bytes;
+		if (b == null)
+		{
+			b = ByteBuffer.allocate(totalLength);
+			for (ByteBuffer part : getByteBuffers()) b.put(part);
+			b.flip();
+			bytes = b = b.asReadOnlyBuffer();
+		}
 
-	// FootlightsPrimitive implementation
-	public int bytes()            { return bytes.remaining(); }
-	public ByteBuffer getBytes()  { return bytes.asReadOnlyBuffer(); }
+		return b.asReadOnlyBuffer();
+	}
 
 	// Object overrides
 	@Override public boolean equals(Object o)
@@ -220,12 +377,10 @@ public class Block implements FootlightsPrimitive
 		try { other = (Block) o; }
 		catch(ClassCastException e) { return false; }
 
-		if (!fingerprint.equals(other.fingerprint)) return false;
+		if (!name().equals(other.name())) return false;
 		if (!links.equals(other.links)) return false;
 
-		if ((content == null) ^ (other.content == null)) return false;
-		if ((content != null) && !content.equals(other.content))
-			return false;
+		if (!content().equals(other.content())) return false;
 
 		return true;
 	}
@@ -237,7 +392,7 @@ public class Block implements FootlightsPrimitive
 		buf.append("Block { ");
 		buf.append(links.size());
 		buf.append(" links, ");
-		buf.append((content == null) ? 0 : content.limit());
+		buf.append(contentLength);
 		buf.append(" B of content }");
 
 		return buf.toString();
@@ -298,6 +453,58 @@ public class Block implements FootlightsPrimitive
 		return chunked;
 	}
 
+	/**
+	 * Convert buffers of data into chunks whose boundaries are chosen by their content.
+	 *
+	 * Unlike fixed-size chunking, an insertion or deletion only changes the chunks around it.
+	 * The input buffers are not modified.
+	 */
+	static Collection<ByteBuffer> rechunk(Iterable<ByteBuffer> content, ContentChunker chunker)
+	{
+		List<ByteBuffer> chunked = new LinkedList<ByteBuffer>();
+		ByteBuffer window = ByteBuffer.allocate(chunker.maximum());
+
+		for (ByteBuffer b : content)
+		{
+			ByteBuffer next = b.duplicate();
+			while (next.hasRemaining())
+			{
+				ByteBuffer part = next.duplicate();
+				part.limit(part.position() + Math.min(part.remaining(), window.remaining()));
+				window.put(part);
+				next.position(part.position());
+
+				// Only choose a boundary once we can see a maximum-sized chunk.
+				if (!window.hasRemaining())
+				{
+					window.flip();
+					chunked.add(cut(window, chunker));
+					window.compact();
+				}
+			}
+		}
+
+		window.flip();
+		while (window.hasRemaining()) chunked.add(cut(window, chunker));
+
+		return chunked;
+	}
+
+	/** Copy the chunk at the start of a window out of it. */
+	static ByteBuffer cut(ByteBuffer window, ContentChunker chunker)
+	{
+		int length = chunker.cut(window);
+
+		ByteBuffer chunk = ByteBuffer.allocate(length);
+		ByteBuffer part = window.duplicate();
+		part.limit(part.position() + length);
+		chunk.put(part);
+		chunk.flip();
+
+		window.position(window.position() + length);
+		return chunk;
+	}
+
 	static Collection<ByteBuffer> rechunk(Iterable<ByteBuffer> content, int chunkSize)
 	{
 		return rechunk(content, 0, chunkSize);
@@ -307,101 +514,133 @@ public class Block implements FootlightsPrimitive
 	/**
 	 * Private constructor; use {@link #parse} or {@link #newBuilder}.
 	 *
+	 * The block is not serialized into a single buffer here: it is kept as a header, links,
+	 * content and padding, which {@link #getByteBuffers()} exposes for gathering writes.
+	 *
 	 * @param padding     Random padding at the end of the block. If null,
-	 *                    the constructor will generate random padding. If
+	 *                    the constructor will generate padding. If
 	 *                    non-null, the padding must be of precisely the
-	 *                    correct length to pad the block out to a total length
-	 *                    of a power of two: <b>only</b> do this when parsing
-	 *                    an existing, correctly-padded block.
-	 * @param desiredSize The desired block size, or 0 for "automatically size to a power of 2"
+	 *                    correct length to pad the block out to a valid total
+	 *                    length: <b>only</b> do this when parsing an
+	 *                    existing, correctly-padded block.
+	 * @param paddingKey  If non-null, generate padding deterministically (see {@link Padding})
+	 * @param desiredSize The desired block size, or 0 for "automatically size to a valid size"
+	 * @param geometric   Use geometric {@link SizeClass}es, not just powers of 2
+	 * @param compress    Compress the content, if that makes it smaller
 	 */
-	private Block(List<Link> links, ByteBuffer content, ByteBuffer padding,
-			int desiredSize, Fingerprint.Builder fingerprintBuilder)
+	private Block(List<Link> links, List<ByteBuffer> content, ByteBuffer padding,
+			byte[] paddingKey, int desiredSize, boolean geometric, boolean compress,
+			Fingerprint.Builder fingerprintBuilder)
 		throws FormatException
 	{
-		Preconditions.notNull(links, content, fingerprintBuilder);
+		Preconditions.notNull(links, content);
+		if (links.size() > MAX_LINKS)
+			throw new FormatException(
+				"A block can hold at most " + MAX_LINKS + " links, not " + links.size());
 
 		this.links    = Collections.unmodifiableList(links);
+		this.fingerprintBuilder = fingerprintBuilder;
 
-		// How many bytes do we need for the raw byte representation?
-		int byteCount = MINIMUM_BYTES;
-		for (Link link : links) byteCount += link.bytes();
-		int dataOffset = byteCount;
-		byteCount += content.remaining();
-		if (padding != null) byteCount += padding.remaining();
-
-		// Do we want the block to be a particular size?
-		if (desiredSize != 0) byteCount = desiredSize;
-
-		// Calculate N = log_2(length)
-		byte N;
-		int totalLength = byteCount;
-		for (N = 1; N <= 32; N++)
-		{
-			if (N == 32) throw new FormatException("Block size > 2^32");
-			else byteCount = (byteCount >> 1);
-
-			if (byteCount == 1) break;
-		}
+		this.linkBytes = new ByteBuffer[links.size()];
+		for (int i = 0; i < linkBytes.length; i++) linkBytes[i] = links.get(i).getBytes();
 
-		// Make the total block size a power of 2
-		if (totalLength != (1 << N))
+		this.content = new ByteBuffer[content.size()];
+		int contentLength = 0;
+		for (int i = 0; i < this.content.length; i++)
 		{
-			N++;
-			totalLength = (1 << N);
+			this.content[i] = content.get(i).asReadOnlyBuffer();
+			contentLength += this.content[i].remaining();
 		}
+		this.contentLength = contentLength;
 
-		// Allocate serialized version, write header information
-		ByteBuffer rawBytes = ByteBuffer.allocate(totalLength);
-		rawBytes.put(MAGIC);
-		rawBytes.put(N);
-		rawBytes.put((byte) links.size());
-		rawBytes.putInt(dataOffset);
-		rawBytes.putInt(content.remaining());
+		ByteBuffer compressed =
+			compress ? Compression.deflate(this.content, contentLength) : null;
+		this.encoded = (compressed == null)
+			? this.content : new ByteBuffer[] { compressed.asReadOnlyBuffer() };
+		int encodedLength = (compressed == null) ? contentLength : compressed.remaining();
 
-		// Write links
-		for (Link link : links) rawBytes.put(link.getBytes().asReadOnlyBuffer());
+		// How many bytes do we need for the raw byte representation?
+		int byteCount = MINIMUM_BYTES;
+		for (Link link : links) byteCount += link.bytes();
+		int dataOffset = byteCount;
+		byteCount += encodedLength;
+		final int unpadded = byteCount;
+		if (padding != null) byteCount += padding.remaining();
 
-		// The 'content' buffer can share the 'bytes' backing array
-		this.content = rawBytes.slice().asReadOnlyBuffer();
-		this.content.limit(content.remaining());
-		rawBytes.put(content);
+		// Do we want the block to be a particular size? Otherwise, use the smallest that fits.
+		int totalLength;
+		if (desiredSize == 0) totalLength = SizeClass.ceiling(byteCount, geometric);
+		else if (SizeClass.isValid(desiredSize, geometric)) totalLength = desiredSize;
+		else
+			throw new FormatException(
+				"Invalid block size: " + desiredSize + "B is not a "
+				 + (geometric ? "size class" : "power of 2"));
 
+		if (unpadded > totalLength)
+			throw new FormatException(
+				"Block contents (" + unpadded + "B) do not fit in a "
+				 + totalLength + "B block");
+
+		this.totalLength = totalLength;
+
+		// Write header information
+		ByteBuffer header = ByteBuffer.allocate(MINIMUM_BYTES);
+		header.put(MAGIC);
+		header.put(SizeClass.encode(totalLength));
+		header.put((byte) links.size());
+		header.putInt(dataOffset);
+		header.putInt(encodedLength | ((compressed == null) ? 0 : COMPRESSED));
+		header.flip();
+		this.header = header.asReadOnlyBuffer();
+
+		int paddingLength = totalLength - unpadded;
 		if (padding == null)
-		{
-			padding = ByteBuffer.allocate(rawBytes.remaining());
-			random.nextBytes(padding.array());
-		}
+			padding = (paddingKey == null)
+				? Padding.random(paddingLength)
+				: Padding.deterministic(paddingKey, header, linkBytes, encoded, paddingLength);
 
-		// The padding buffer can also share rawBytes' backing array, but make
-		// sure it's the correct length first.
-		if (padding.remaining() != rawBytes.remaining())
+		else if (padding.remaining() != paddingLength)
 			throw new IllegalArgumentException(
 				"Supplied padding length is incorrect (" + padding.remaining()
-				+ "B, should be " + rawBytes.remaining() + "B)");
+				+ "B, should be " + paddingLength + "B)");
 
-		this.padding = rawBytes.slice().asReadOnlyBuffer();
-		this.padding.limit(padding.remaining());
-		rawBytes.put(padding);
-
-		// That's the last of the raw bytes.
-		rawBytes.rewind();
-
-		if ((desiredSize != 0) && (rawBytes.remaining() != desiredSize))
-			throw new FormatException(
-				"Built block of incorrect size: wanted " + desiredSize
-				 + "B, was " + rawBytes.remaining() + "B");
+		this.padding = padding.asReadOnlyBuffer();
+	}
 
-		this.bytes = rawBytes;
-		if ((desiredSize != 0) && (desiredSize != this.bytes.limit()))
-			throw new IllegalArgumentException(
-				"Unable to construct a " + desiredSize + "B block; is it a power of 2?"
-				 + " The nearest possible block size is " + this.bytes.limit() + "B.");
+	/**
+	 * Private constructor for parsed blocks: wrap the parsed bytes rather than copying them.
+	 *
+	 * @param bytes       the whole block, already validated by {@link Builder#parse}
+	 * @param dataOffset  where user content begins (i.e. where links end)
+	 * @param dataLength  how much user content there is (as stored)
+	 * @param inflated    the content, if it was stored compressed (otherwise null)
+	 */
+	private Block(ByteBuffer bytes, List<Link> links, int dataOffset, int dataLength,
+			ByteBuffer inflated, Fingerprint.Builder fingerprintBuilder)
+	{
+		this.links = Collections.unmodifiableList(links);
+		this.fingerprintBuilder = fingerprintBuilder;
+		this.totalLength = bytes.remaining();
+
+		bytes = bytes.asReadOnlyBuffer();
+		this.bytes = bytes;
+		this.header = slice(bytes, 0, MINIMUM_BYTES);
+		this.linkBytes = new ByteBuffer[] { slice(bytes, MINIMUM_BYTES, dataOffset) };
+
+		int contentEnd = dataOffset + dataLength;
+		this.encoded = new ByteBuffer[] { slice(bytes, dataOffset, contentEnd) };
+		this.content = (inflated == null) ? encoded : new ByteBuffer[] { inflated };
+		this.contentLength = content[0].remaining();
+		this.padding = slice(bytes, contentEnd, totalLength);
+	}
 
-		// Now that our raw bytes have been completely determined, calculate
-		// the block's name (based on a fingerprint of its contents).
-		if (fingerprintBuilder == null) fingerprintBuilder = Fingerprint.newBuilder();
-		this.fingerprint = fingerprintBuilder.setContent(bytes).build();
+	/** A view of part of a buffer, relative to its current position. */
+	private static ByteBuffer slice(ByteBuffer b, int from, int to)
+	{
+		ByteBuffer view = b.duplicate();
+		view.position(b.position() + from);
+		view.limit(b.position() + to);
+		return view.slice();
 	}
 
 
@@ -411,17 +650,39 @@ public class Block implements FootlightsPrimitive
 		(byte) 0xF0, 0x07, (byte) 0xDA, 0x7A, '\r', '\n',
 	};
 
+	/** The magic of a {@link Block} encrypted in counter mode, before it is decrypted. */
+	private static final byte[] COUNTER_MAGIC = new byte[]
+	{
+		(byte) 0xF0, 0x07, (byte) 0xDA, 0x7A, 'C', 'T',
+	};
+
+	/** The top bit of the content length marks compressed content. */
+	private static final int COMPRESSED = 0x80000000;
+
+	/** The link count is a single (unsigned) byte. */
+	static final int MAX_LINKS = 255;
+
 	/** The smallest possible {@link Block} according to the specification. */
 	private static final int MINIMUM_BYTES = 16;
 
-	/** PRNG for padding bytes. */
-	private static final Random random = new Random();
+	/** The block's name, calculated lazily by {@link #name()}. */
+	private volatile Fingerprint fingerprint;
+	private Fingerprint.Builder fingerprintBuilder;
 
-	private final Fingerprint fingerprint;
 	private final List<Link> links;
-	private final ByteBuffer content;
+	private final ByteBuffer header;
+	private final ByteBuffer[] linkBytes;
+	private final ByteBuffer[] content;
+	private final int contentLength;
+
+	/** The content as stored in the block: the same as {@link #content} unless compressed. */
+	private final ByteBuffer[] encoded;
 	private final ByteBuffer padding;
+	private final int totalLength;
+
+	/** Content, assembled into a single buffer (if there is more than one content buffer). */
+	private volatile ByteBuffer flattened;
 
-	/** Raw byte version of the block */
-	private final ByteBuffer bytes;
+	/** Raw byte version of the block (assembled on demand). */
+	private volatile ByteBuffer bytes;
 }
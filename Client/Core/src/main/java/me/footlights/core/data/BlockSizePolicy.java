@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import me.footlights.core.ConfigurationError;
+import me.footlights.core.Preferences;
+
+
+/**
+ * Chooses the size of a file's blocks from the file's length.
+ *
+ * Every block costs a header, a key, a fingerprint, a link in the file's index and a request
+ * to the store, so a large file should use large blocks. Small files still use small blocks,
+ * so that they are not mostly padding.
+ *
+ * A file of {@code length} bytes gets blocks of about {@code length / blocks} bytes, rounded up
+ * to a power of two and kept between {@code minimum} and {@code maximum}. By default, these
+ * come from the {@code data.blocksize.min}, {@code data.blocksize.max} and
+ * {@code data.blocksize.blocks} preferences (4 KiB, 1 MiB and 64 blocks per file).
+ *
+ * Readers don't need to know about any of this: every block declares its own size.
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+final class BlockSizePolicy
+{
+	/** The policy set by user preferences. */
+	static BlockSizePolicy byDefault() { return Defaults.POLICY; }
+
+	/** A policy with explicit limits (which must be valid power-of-two block sizes). */
+	static BlockSizePolicy of(int minimum, int maximum, int blocks)
+	{
+		return new BlockSizePolicy(minimum, maximum, blocks);
+	}
+
+	/** The size of blocks to use for a file of a given length. */
+	int forLength(long length)
+	{
+		long target = (length + blocks - 1) / blocks;
+		if (target <= minimum) return minimum;
+		if (target >= maximum) return maximum;
+
+		int size = Integer.highestOneBit((int) target);
+		return (size == target) ? size : (size << 1);
+	}
+
+	int minimum() { return minimum; }
+	int maximum() { return maximum; }
+
+
+	private BlockSizePolicy(int minimum, int maximum, int blocks)
+	{
+		if (!SizeClass.isValid(minimum, false) || !SizeClass.isValid(maximum, false)
+			|| (minimum > maximum))
+			throw new ConfigurationError(
+				"Invalid block size limits: " + minimum + "-" + maximum + " B");
+
+		if (blocks < 1)
+			throw new ConfigurationError("Invalid number of blocks per file: " + blocks);
+
+		this.minimum = minimum;
+		this.maximum = maximum;
+		this.blocks = blocks;
+	}
+
+	/** Lazily-read preferences. */
+	private static class Defaults
+	{
+		static final BlockSizePolicy POLICY;
+		static
+		{
+			Preferences prefs = Preferences.getDefaultPreferences();
+			POLICY = new BlockSizePolicy(
+				prefs.getInt("data.blocksize.min").get(),
+				prefs.getInt("data.blocksize.max").get(),
+				prefs.getInt("data.blocksize.blocks").get());
+		}
+	}
+
+	private final int minimum;
+	private final int maximum;
+	private final int blocks;
+}
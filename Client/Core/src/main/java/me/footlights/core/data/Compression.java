@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import me.footlights.core.Preferences;
+
+
+/**
+ * Compresses {@link Block} content before it is padded and encrypted (after which it
+ * can't be).
+ *
+ * Compressed content is the uncompressed length (4 B, big-endian) followed by a raw Deflate
+ * stream (no zlib header or checksum: blocks are already named by their hash). Content is
+ * only compressed if that makes it smaller, so already-compressed data (images, archives)
+ * costs a wasted attempt but no space.
+ *
+ * Whether new blocks are compressed by default depends on the {@code data.compression}
+ * preference ("none" or "deflate").
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+final class Compression
+{
+	/** Whether new blocks should be compressed by default. */
+	static boolean byDefault() { return Defaults.DEFLATE; }
+
+	/**
+	 * Compress some content.
+	 *
+	 * @return   the compressed content, or null if it would not be smaller than the original
+	 */
+	static ByteBuffer deflate(ByteBuffer[] content, int length)
+	{
+		if (length <= HEADER_BYTES) return null;
+
+		byte[] input = new byte[length];
+		int offset = 0;
+		for (ByteBuffer b : content)
+		{
+			int len = b.remaining();
+			b.duplicate().get(input, offset, len);
+			offset += len;
+		}
+
+		// Stop as soon as the output is as big as the input: that attempt has failed.
+		byte[] output = new byte[length];
+		ByteBuffer.wrap(output).putInt(length);
+
+		Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		deflater.setInput(input);
+		deflater.finish();
+
+		int compressed = HEADER_BYTES;
+		while (!deflater.finished() && (compressed < output.length))
+			compressed += deflater.deflate(output, compressed, output.length - compressed);
+
+		if (!deflater.finished() || (compressed >= length)) return null;
+		return ByteBuffer.wrap(output, 0, compressed).slice();
+	}
+
+	/** Decompress content that was compressed by {@link #deflate}. */
+	static ByteBuffer inflate(ByteBuffer compressed) throws FormatException
+	{
+		ByteBuffer in = compressed.duplicate();
+		if (in.remaining() < HEADER_BYTES)
+			throw new FormatException("Compressed content is too short");
+
+		// Don't let a corrupt header make us allocate more than this stream could inflate to.
+		int length = in.getInt();
+		if ((length < 0) || (length > (long) in.remaining() * MAXIMUM_RATIO))
+			throw new FormatException("Invalid uncompressed length: " + length);
+
+		// Raw ("nowrap") streams need an extra dummy byte of input (see Inflater).
+		byte[] input = new byte[in.remaining() + 1];
+		in.get(input, 0, input.length - 1);
+
+		byte[] output = new byte[length];
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(input);
+
+		try
+		{
+			int inflated = 0;
+			while (inflated < length)
+			{
+				int n = inflater.inflate(output, inflated, length - inflated);
+				if (n == 0) break;
+				inflated += n;
+			}
+
+			// The stream must end exactly where the promised content does.
+			if (!inflater.finished() && (inflater.inflate(new byte[1]) > 0))
+				inflated++;
+
+			if ((inflated != length) || !inflater.finished())
+				throw new FormatException(
+					"Compressed content does not inflate to " + length + " B");
+		}
+		catch (DataFormatException e)
+		{
+			throw new FormatException("Invalid compressed content: " + e.getMessage());
+		}
+
+		return ByteBuffer.wrap(output).asReadOnlyBuffer();
+	}
+
+
+	/** Lazily-read preferences. */
+	private static class Defaults
+	{
+		static final boolean DEFLATE = "deflate".equals(
+			Preferences.getDefaultPreferences().getString("data.compression").get());
+	}
+
+	/** Native (de)compressor state is expensive to set up, so each thread keeps its own. */
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>()
+	{
+		@Override protected Deflater initialValue()
+		{
+			return new Deflater(Deflater.BEST_SPEED, true);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>()
+	{
+		@Override protected Inflater initialValue() { return new Inflater(true); }
+	};
+
+	private static final int HEADER_BYTES = 4;
+
+	/** No Deflate stream can inflate to more than this many times its own size. */
+	private static final int MAXIMUM_RATIO = 1032;
+
+	/** Static utility class. */
+	private Compression() {}
+}
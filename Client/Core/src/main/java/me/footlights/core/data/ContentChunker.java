@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import me.footlights.core.Preferences;
+
+
+/**
+ * Chooses chunk boundaries based on content rather than offset (FastCDC-style).
+ *
+ * Fixed-size chunking means that inserting a single byte at the start of a file moves every
+ * chunk boundary, so every block of the new version is new. Here, a boundary is placed
+ * wherever a rolling "gear" hash of the preceding 64 bytes matches a mask, so boundaries move
+ * with the content around them: after an edit, chunking falls back into step with the old
+ * version and the rest of the file produces identical blocks (given deterministic
+ * {@link Padding}), which stores already hold.
+ *
+ * Chunk sizes are chosen to fit a block size class: the largest chunk is exactly what fits in
+ * a block of that size, the smallest a quarter of that and the target average half of it.
+ * "Normalized" chunking (a stricter mask before the average, a looser one after) keeps most
+ * chunks near the average.
+ *
+ * The default is set by the {@code data.chunking} preference ("fixed" or "content").
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+class ContentChunker
+{
+	/** Whether new files should be chunked by content by default. */
+	static boolean byDefault() { return Defaults.CONTENT; }
+
+	/** A chunker whose chunks fit in blocks of a given size. */
+	static ContentChunker forBlockSize(int blockSize)
+	{
+		return new ContentChunker(Block.newBuilder().setDesiredSize(blockSize).remaining());
+	}
+
+	/** The largest chunk that we will produce. */
+	int maximum() { return max; }
+
+	/**
+	 * How long the chunk at the start of a window should be.
+	 *
+	 * The window must start at a chunk boundary and hold {@link #maximum()} bytes, unless it
+	 * holds the end of the content. Neither the window's position nor its content are changed.
+	 *
+	 * @return   the length of the next chunk: at most {@code window.remaining()}
+	 */
+	int cut(ByteBuffer window)
+	{
+		int base = window.position();
+		int n = Math.min(window.remaining(), max);
+		if (n <= min) return n;
+
+		int normal = Math.min(n, avg);
+		long hash = 0;
+		int i = min;
+
+		for (; i < normal; i++)
+		{
+			hash = (hash << 1) + GEAR[window.get(base + i) & 0xff];
+			if ((hash & strict) == 0) return i + 1;
+		}
+
+		for (; i < n; i++)
+		{
+			hash = (hash << 1) + GEAR[window.get(base + i) & 0xff];
+			if ((hash & loose) == 0) return i + 1;
+		}
+
+		return n;
+	}
+
+
+	private ContentChunker(int max)
+	{
+		if (max < 4)
+			throw new IllegalArgumentException("Chunks of " + max + " B are too small to cut");
+
+		this.max = max;
+		this.min = max / 4;
+		this.avg = max / 2;
+
+		// The average chunk's size determines how many hash bits must be zero at a boundary.
+		int bits = 31 - Integer.numberOfLeadingZeros(avg - min);
+		this.strict = mask(bits + 1);
+		this.loose = mask(Math.max(1, bits - 1));
+	}
+
+	/**
+	 * A mask of the high bits of the hash: the gear hash shifts left, so high bits depend on
+	 * more of the preceding bytes (64 of them) than low bits do.
+	 */
+	private static long mask(int bits) { return -1L << (64 - Math.min(bits, 63)); }
+
+
+	/** Lazily-read preferences. */
+	private static class Defaults
+	{
+		static final boolean CONTENT = "content".equals(
+			Preferences.getDefaultPreferences().getString("data.chunking").get());
+	}
+
+	/**
+	 * Random values for each byte. These must never change: if they did, new versions of
+	 * files would not share chunk boundaries with old versions.
+	 */
+	private static final long[] GEAR = new long[256];
+	static
+	{
+		Random random = new Random(0x466f6f746c696768L);
+		for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+	}
+
+	private final int min;
+	private final int avg;
+	private final int max;
+	private final long strict;
+	private final long loose;
+}
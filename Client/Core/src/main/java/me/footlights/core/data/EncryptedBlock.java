@@ -33,7 +33,8 @@ public class EncryptedBlock
 	{
 		public EncryptedBlock build() throws GeneralSecurityException
 		{
-			return new EncryptedBlock(ciphertext, link.decrypt(ciphertext), link);
+			if (plaintext == null) plaintext = link.decrypt(ciphertext);
+			return new EncryptedBlock(ciphertext, plaintext, link);
 		}
 
 		public Builder setCiphertext(ByteBuffer ciphertext)
@@ -47,10 +48,18 @@ public class EncryptedBlock
 			return this;
 		}
 
+		/** We just encrypted this plaintext, so there is no need to decrypt the ciphertext. */
+		Builder setPlaintext(Block plaintext)
+		{
+			this.plaintext = plaintext;
+			return this;
+		}
+
 		private Builder() {}
 
 		private ByteBuffer ciphertext;
 		private Link link;
+		private Block plaintext;
 	}
 
 	public static Builder newBuilder() { return new Builder(); }
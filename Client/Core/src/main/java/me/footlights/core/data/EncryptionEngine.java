@@ -0,0 +1,254 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+
+import me.footlights.core.crypto.CounterMode;
+import me.footlights.core.crypto.CryptoPool;
+import me.footlights.core.crypto.Fingerprint;
+import me.footlights.core.crypto.Link;
+import me.footlights.core.crypto.SecretKey;
+
+
+/**
+ * Encrypts a {@link Block} and names the resulting ciphertext in a single pass.
+ *
+ * The plaintext is fed to the {@link Cipher} in cache-sized segments, and each segment of
+ * ciphertext is hashed as soon as it has been produced (while it is still in cache), rather
+ * than encrypting the whole block and then hashing it all over again. Large blocks can
+ * instead be encrypted on several threads in {@link CounterMode} (and then hashed).
+ *
+ * Blocks are independent of each other, so many of them can be encrypted at once on a
+ * work-stealing {@link ForkJoinPool} (see {@link #encryptAll}).
+ */
+class EncryptionEngine
+{
+	/** Encrypt a {@link Block} under a (convergent) key. */
+	static EncryptedBlock encrypt(Block plaintext, SecretKey key) throws GeneralSecurityException
+	{
+		return encrypt(plaintext, key, CounterMode.byDefault());
+	}
+
+	/**
+	 * Encrypt a {@link Block} under a (convergent) key.
+	 *
+	 * @param counterMode    encrypt the block in parallel with {@link CounterMode} rather than
+	 *                       serially (in CBC mode)
+	 */
+	static EncryptedBlock encrypt(Block plaintext, SecretKey key, boolean counterMode)
+		throws GeneralSecurityException
+	{
+		final ByteBuffer ciphertext;
+		Fingerprint.Builder namer = Fingerprint.newBuilder();
+
+		if (counterMode)
+		{
+			// Mark the block as counter-mode in a copy of its header.
+			ByteBuffer[] buffers = plaintext.getByteBuffers();
+			ByteBuffer header = ByteBuffer.allocate(buffers[0].remaining());
+			header.put(buffers[0]);
+			header.flip();
+			Block.setCounterMode(header, true);
+			buffers[0] = header;
+
+			// Segments are encrypted on different threads, so name the ciphertext afterwards.
+			ciphertext = ByteBuffer.allocate(plaintext.bytes());
+			CounterMode.encrypt(key, buffers, ciphertext);
+			namer.update(ciphertext);
+		}
+		else ciphertext = encryptSerially(plaintext, key, namer);
+
+		Link link = Link.newBuilder()
+			.setFingerprint(namer.build())
+			.setKey(key)
+			.build();
+
+		return EncryptedBlock.newBuilder()
+			.setCiphertext(ciphertext)
+			.setLink(link)
+			.setPlaintext(plaintext)
+			.build();
+	}
+
+	/** Encrypt a block in a serial mode (e.g. CBC), naming segments of ciphertext as we go. */
+	private static ByteBuffer encryptSerially(Block plaintext, SecretKey key,
+			Fingerprint.Builder namer)
+		throws GeneralSecurityException
+	{
+		SecretKey.CipherBuilder builder = key.newCipherBuilder()
+			.setOperation(SecretKey.Operation.ENCRYPT);
+
+		if (builder.getMode().equals(CounterMode.NAME)) builder.setMode("CBC");
+		Cipher cipher = builder.build();
+
+		ByteBuffer ciphertext = ByteBuffer.allocate(cipher.getOutputSize(plaintext.bytes()));
+
+		try
+		{
+			for (ByteBuffer in : plaintext.getByteBuffers())
+				while (in.hasRemaining())
+				{
+					ByteBuffer segment = in.duplicate();
+					segment.limit(segment.position() + Math.min(SEGMENT_SIZE, in.remaining()));
+					in.position(segment.limit());
+
+					int start = ciphertext.position();
+					cipher.update(segment, ciphertext);
+					namer.update(produced(ciphertext, start));
+				}
+
+			int start = ciphertext.position();
+			cipher.doFinal(EMPTY.duplicate(), ciphertext);
+			namer.update(produced(ciphertext, start));
+			ciphertext.flip();
+		}
+		finally { CryptoPool.release(cipher); }
+
+		return ciphertext;
+	}
+
+	/**
+	 * Build and encrypt one {@link Block} for each chunk of content, in parallel.
+	 *
+	 * @param chunks       chunks of content, each of which must fit in a block of
+	 *                     {@code blockSize} bytes
+	 * @return             the encrypted blocks, in the same order as {@code chunks}
+	 */
+	static List<EncryptedBlock> encryptAll(List<ByteBuffer> chunks, int blockSize,
+			ForkJoinPool pool)
+		throws FormatException, GeneralSecurityException
+	{
+		EncryptedBlock[] encrypted = new EncryptedBlock[chunks.size()];
+		EncryptChunks task = new EncryptChunks(chunks, blockSize, encrypted, 0, encrypted.length);
+
+		try
+		{
+			// Don't bother handing small jobs off to another thread.
+			if (encrypted.length <= EncryptChunks.LEAF_SIZE) task.compute();
+			else pool.invoke(task);
+		}
+		catch (RuntimeException e)
+		{
+			// ForkJoinPool may wrap (or copy) the exception thrown by the worker thread.
+			for (Throwable t = e; t != null; t = t.getCause())
+			{
+				if (t instanceof FormatException) throw (FormatException) t;
+				if (t instanceof GeneralSecurityException) throw (GeneralSecurityException) t;
+			}
+
+			throw e;
+		}
+
+		return Arrays.asList(encrypted);
+	}
+
+	/**
+	 * The pool used for encryption when the caller doesn't specify one: the same workers
+	 * that {@link CounterMode} splits large blocks across (see {@link CryptoPool#workers}).
+	 */
+	static ForkJoinPool defaultPool() { return CryptoPool.workers(); }
+
+	/**
+	 * Build a block of file content: {@code blockSize} bytes long or, with geometric
+	 * {@link SizeClass}es or {@link Compression}, the smallest size that fits (so that a
+	 * file's last block, or any short or compressible block, carries less padding).
+	 */
+	static Block contentBlock(ByteBuffer chunk, int blockSize) throws FormatException
+	{
+		Block.Builder b = Block.newBuilder().addContent(chunk);
+		if (!SizeClass.geometricByDefault() && !Compression.byDefault())
+			b.setDesiredSize(blockSize);
+
+		return b.build();
+	}
+
+	/** Encrypts a range of chunks, splitting the range in half until it is small. */
+	private static class EncryptChunks extends RecursiveAction
+	{
+		/** How many chunks to encrypt in a single task (about 32 KiB of 4 KiB blocks). */
+		static final int LEAF_SIZE = 8;
+
+		EncryptChunks(List<ByteBuffer> chunks, int blockSize, EncryptedBlock[] out,
+				int from, int to)
+		{
+			this.chunks = chunks;
+			this.blockSize = blockSize;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override protected void compute()
+		{
+			if (to - from > LEAF_SIZE)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(
+					new EncryptChunks(chunks, blockSize, out, from, middle),
+					new EncryptChunks(chunks, blockSize, out, middle, to));
+				return;
+			}
+
+			try
+			{
+				for (int i = from; i < to; i++)
+					out[i] = contentBlock(chunks.get(i), blockSize).encrypt();
+			}
+			catch (FormatException e) { throw new EncryptionFailure(e); }
+			catch (GeneralSecurityException e) { throw new EncryptionFailure(e); }
+		}
+
+		private final List<ByteBuffer> chunks;
+		private final int blockSize;
+		private final EncryptedBlock[] out;
+		private final int from;
+		private final int to;
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** Carries a checked exception out of a {@link RecursiveAction}. */
+	private static class EncryptionFailure extends RuntimeException
+	{
+		EncryptionFailure(Throwable cause) { super(cause); }
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** The ciphertext written to an output buffer since a given position. */
+	private static ByteBuffer produced(ByteBuffer output, int since)
+	{
+		ByteBuffer view = output.duplicate();
+		view.flip();
+		view.position(since);
+		return view;
+	}
+
+	/** Segment size: small enough that input and output segments stay in L1 cache together. */
+	private static final int SEGMENT_SIZE = 8192;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/** Non-instantiable utility class. */
+	private EncryptionEngine() {}
+}
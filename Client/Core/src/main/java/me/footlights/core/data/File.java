@@ -15,37 +15,80 @@
  */
 package me.footlights.core.data;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import scala.Option;
+
+import me.footlights.core.Preferences;
+import me.footlights.core.ProgrammerError;
+import me.footlights.core.crypto.Fingerprint;
 import me.footlights.core.crypto.Link;
 import me.footlights.core.data.store.Stat;
+import me.footlights.core.data.store.Store;
 
 
 /**
  * A logical file.
  *
  * Files are immutable; to modify a file, you must create and freeze a {@link MutableFile}.
+ *
+ * A file may have all of its blocks in memory (e.g. if we just created it), or it may be
+ * backed by a {@link Store}, in which case content blocks are only fetched and decrypted as
+ * they are read (see {@link #getChannel(int)}). Ordinarily, every content block except the
+ * last holds the same amount of content, so a byte offset maps directly to a block index.
+ * Files chunked by content (see {@link MutableFile#setContentDefinedChunking}) instead
+ * record how much content each block holds in their index.
+ *
+ * The header links to the content blocks through a {@link FileIndex}: small files' headers
+ * link to content directly, large files' headers are the root of a tree of index blocks.
+ * A file that fits in a single block is just a header, with its content inline.
  */
 public class File implements me.footlights.api.File
 {
+	/** A {@link File} whose blocks are all in memory. */
 	public static File from(EncryptedBlock header, Collection<EncryptedBlock> ciphertext)
 	{
-		List<Block> plaintext = new ArrayList<Block>(ciphertext.size());
-		for (EncryptedBlock e : ciphertext) plaintext.add(e.plaintext());
+		return from(header, Collections.<EncryptedBlock>emptyList(), ciphertext);
+	}
+
+	/** A {@link File} whose index and content blocks are all in memory. */
+	static File from(EncryptedBlock header, Collection<EncryptedBlock> interior,
+			Collection<EncryptedBlock> ciphertext)
+	{
+		Map<Fingerprint,EncryptedBlock> index = new HashMap<Fingerprint,EncryptedBlock>();
+		for (EncryptedBlock b : interior) index.put(b.link().fingerprint(), b);
+
+		return new File(header, index, new ArrayList<EncryptedBlock>(ciphertext), null);
+	}
 
-		return new File(header, plaintext, ciphertext);
+	/** A {@link File} whose content blocks will be retrieved from a {@link Store} on demand. */
+	public static File open(EncryptedBlock header, Store store)
+	{
+		return new File(header, Collections.<Fingerprint,EncryptedBlock>emptyMap(), null, store);
 	}
 
 	public static MutableFile newBuilder() { return new MutableFile(); }
@@ -72,6 +115,35 @@ public class File implements me.footlights.api.File
 			return this;
 		}
 
+		/**
+		 * Encrypt blocks on a particular work-stealing pool when {@link #freeze()}ing.
+		 *
+		 * By default, blocks are encrypted on a shared pool sized by the {@code crypto.threads}
+		 * preference.
+		 */
+		public MutableFile setEncryptionPool(ForkJoinPool pool)
+		{
+			this.pool = pool;
+			return this;
+		}
+
+		/**
+		 * Choose chunk boundaries by content rather than offset, so that a new version of a
+		 * file shares blocks with the old version, even after insertions or deletions.
+		 *
+		 * Sharing only happens if padding is deterministic (see the {@code data.padding}
+		 * preference). The default is set by the {@code data.chunking} preference.
+		 */
+		public MutableFile setContentDefinedChunking(boolean contentDefined)
+		{
+			this.contentDefined = contentDefined;
+			return this;
+		}
+
+		/**
+		 * Use blocks of a particular size, rather than one chosen from the file's length by
+		 * {@link BlockSizePolicy#byDefault()}.
+		 */
 		MutableFile setDesiredBlockSize(int size)
 		{
 			this.desiredBlockSize = size;
@@ -84,36 +156,104 @@ public class File implements me.footlights.api.File
 		 */
 		public File freeze() throws FormatException, GeneralSecurityException
 		{
-			// First, break the content into chunks of the appropriate size.
-			Collection<ByteBuffer> chunked = Block.rechunk(content,
-					Block.newBuilder().setDesiredSize(desiredBlockSize).remaining());
+			final List<EncryptedBlock> interior = new ArrayList<EncryptedBlock>();
+
+			final long length = length();
+			final int blockSize = (desiredBlockSize != 0)
+				? desiredBlockSize : BlockSizePolicy.byDefault().forLength(length);
+
+			// Small files are a single block: a header with the content inline.
+			if ((length > 0) && (length <= FileIndex.inlineCapacity(blockSize)))
+			{
+				ByteBuffer all = ByteBuffer.allocate((int) length);
+				for (ByteBuffer b : content) all.put(b.duplicate());
+				all.flip();
+
+				return File.from(FileIndex.inline(all, blockSize),
+					Collections.<EncryptedBlock>emptyList());
+			}
 
-			// Next, create {@link EncryptedBlock} objects.
-			List<EncryptedBlock> ciphertext = new ArrayList<EncryptedBlock>(chunked.size());
+			// First, break the content into chunks of the appropriate size.
+			List<ByteBuffer> chunked = new ArrayList<ByteBuffer>(contentDefined
+				? Block.rechunk(content, ContentChunker.forBlockSize(blockSize))
+				: Block.rechunk(content,
+					Block.newBuilder().setDesiredSize(blockSize).remaining()));
+
+			// Next, create {@link EncryptedBlock} objects (in parallel, but in order).
+			List<EncryptedBlock> ciphertext = EncryptionEngine.encryptAll(
+					chunked, blockSize,
+					(pool == null) ? EncryptionEngine.defaultPool() : pool);
+
+			// Finally, index the blocks: the root of the index is the file's header.
+			FileIndex.Builder index = new FileIndex.Builder(blockSize, contentDefined,
+				new FileIndex.Sink()
+				{
+					@Override public void store(EncryptedBlock block) { interior.add(block); }
+				});
 
-			for (ByteBuffer b : chunked)
-				ciphertext.add(
-					Block.newBuilder()
-						.addContent(b)
-						.setDesiredSize(desiredBlockSize)
-						.build()
-						.encrypt());
+			try
+			{
+				for (EncryptedBlock b : ciphertext)
+					index.add(b.link(), b.plaintext().content().remaining());
 
-			// Finally, create the header. TODO: just embed links in all the blocks.
-			Block.Builder header = Block.newBuilder();
-			for (EncryptedBlock b : ciphertext) header.addLink(b.link());
+				return File.from(index.build(), interior, ciphertext);
+			}
+			catch (FormatException e) { throw e; }
+			catch (IOException e)
+			{
+				throw new ProgrammerError("In-memory index raised I/O exception", e);
+			}
+		}
 
-			return File.from(header.build().encrypt(), ciphertext);
+		private long length()
+		{
+			long length = 0;
+			for (ByteBuffer b : content) length += b.remaining();
+			return length;
 		}
 
 		private MutableFile() {}
 
 		private Iterable<ByteBuffer> content = new ArrayList<ByteBuffer>();
-		private int desiredBlockSize = 4096;
+		private int desiredBlockSize;
+		private boolean contentDefined = ContentChunker.byDefault();
+		private ForkJoinPool pool;
 	}
 
-	@Override public URI name() { return stat.name().toURI(); }
-	public Stat stat() { return stat; }
+	@Override public URI name() { return header.name().toURI(); }
+
+	/**
+	 * The file's name and length.
+	 *
+	 * For a {@link Store}-backed file, this requires fetching the first and last blocks (all of
+	 * the blocks in between are full), unless the index records content lengths.
+	 */
+	public Stat stat() throws IOException
+	{
+		Stat s = stat;
+		if (s == null)
+		{
+			long len = 0;
+			FileIndex index = index();
+			int blocks = index.size();
+			ByteBuffer inline = index.inline();
+
+			if (inline != null) len = inline.remaining();
+
+			else if (ciphertext != null)
+				for (EncryptedBlock b : ciphertext) len += b.plaintext().content().remaining();
+
+			else if (!index.fixed()) len = index.length();
+
+			else if (blocks > 0)
+				len = (long) (blocks - 1) * chunkSize()
+					+ blockContent(blocks - 1).remaining();
+
+			stat = s = Stat.apply(header.name(), len);
+		}
+
+		return s;
+	}
 
 
 	/**
@@ -124,13 +264,11 @@ public class File implements me.footlights.api.File
 	 */
 	@Override public ByteBuffer copyContents() throws IOException
 	{
-		int len = 0;
-		for (Block b : plaintext) len += b.content().remaining();
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) stat().length());
 
-		ByteBuffer buffer = ByteBuffer.allocateDirect(len);
-
-		for (Block b : plaintext)
-			buffer.put(b.content().asReadOnlyBuffer());
+		ReadableByteChannel channel = getChannel();
+		try { while (buffer.hasRemaining() && (channel.read(buffer) >= 0)); }
+		finally { channel.close(); }
 
 		buffer.flip();
 		return buffer;
@@ -138,53 +276,48 @@ public class File implements me.footlights.api.File
 
 
 	/**
-	 * Get a {@link ReadableByteChannel} for the {@link File}.
+	 * Read the file's content through a {@link SeekableByteChannel}, with the default
+	 * read-ahead window (the {@code data.readahead} preference).
+	 */
+	@Override public SeekableByteChannel getChannel()
+	{
+		return getChannel(Preferences.getDefaultPreferences().getInt("data.readahead").get());
+	}
+
+	/**
+	 * Read the file's content through a (read-only) {@link SeekableByteChannel}.
+	 *
+	 * Blocks are retrieved and decrypted as the channel advances; only the plaintext is kept,
+	 * and only until it has been read. Seeking only retrieves the block that contains the new
+	 * position (and the blocks after it, if reading ahead).
 	 *
-	 * For now, this is a wrapper around {@link #getInputStream()}; in the future, it should be
-	 * the other way around (if we keep {@link #getInputStream()} at all).
+	 * @param readAhead    how many blocks to fetch and decrypt (in the background) ahead of
+	 *                     the block currently being read
 	 */
-	public ReadableByteChannel getChannel() { return Channels.newChannel(getInputStream()); }
+	public SeekableByteChannel getChannel(int readAhead)
+	{
+		return new Reader((ciphertext == null) ? Math.max(0, readAhead) : 0);
+	}
 
 	/**
 	 * The content of the file, transformed into an {@link InputStream}.
 	 */
 	@Override public InputStream getInputStream()
 	{
-		final ByteBuffer[] buffers = new ByteBuffer[plaintext.size()];
-		for (int i = 0; i < buffers.length; i++)
-			buffers[i] = plaintext.get(i).content();
+		final Reader reader = (Reader) getChannel();
 
 		return new InputStream()
 		{
 			@Override public int available()
 			{
-				int total = 0;
-				for (int i = blockIndex; i < buffers.length; i++)
-					total += buffers[i].remaining();
-
-				return total;
+				try { return (int) Math.min(Integer.MAX_VALUE, stat().length() - reader.position); }
+				catch (IOException e) { return 0; }
 			}
 
-			@Override public int read(byte[] buffer, int offset, int len)
+			@Override public int read(byte[] buffer, int offset, int len) throws IOException
 			{
 				if (len == 0) return 0;
-				if (blockIndex >= plaintext.size()) return -1;
-
-				int pos = offset;
-				while ((pos < (offset + len)) && (blockIndex < buffers.length))
-				{
-					int leftToRead = len - (pos - offset);
-					ByteBuffer next = buffers[blockIndex];
-
-					int bytes = Math.min(leftToRead, next.remaining());
-					next.get(buffer, pos, bytes);
-					pos += bytes;
-
-					if (next.remaining() == 0) blockIndex++;
-					if (pos == offset) return -1;
-				}
-
-				return (pos - offset);
+				return reader.read(ByteBuffer.wrap(buffer, offset, len));
 			}
 
 			/** This is a horrendously inefficient way of reading data. Don't! */
@@ -193,25 +326,40 @@ public class File implements me.footlights.api.File
 				byte[] data = new byte[1];
 				int bytes = read(data, 0, data.length);
 
-				if (bytes < 0) throw new BufferUnderflowException();
+				if (bytes < 0) return -1;
 				if (bytes == 0)
 					throw new Error(
 						"Implementation error in File.read(byte[1]): returned 0");
 
-				return data[0];
+				return (data[0] & 0xff);
 			}
 
-
-			private int blockIndex;
+			@Override public void close() { reader.close(); }
 		};
 	}
 
 
-	/** Encrypted blocks to be saved in a {@link Store}. */
-	public List<EncryptedBlock> toSave()
+	/**
+	 * Encrypted blocks to be saved in a {@link Store}.
+	 *
+	 * For a {@link Store}-backed file, this retrieves (and holds) all of the file's ciphertext.
+	 */
+	public List<EncryptedBlock> toSave() throws IOException
 	{
-		LinkedList<EncryptedBlock> everything = new LinkedList<EncryptedBlock>(ciphertext);
-		everything.push(header);
+		LinkedList<EncryptedBlock> everything = new LinkedList<EncryptedBlock>();
+		everything.add(header);
+
+		if (ciphertext != null)
+		{
+			everything.addAll(interior.values());
+			everything.addAll(ciphertext);
+		}
+		else
+		{
+			FileIndex index = index();
+			for (Link link : index.interior()) everything.add(fetch(link));
+			for (Link link : index.leaves()) everything.add(fetch(link));
+		}
 
 		return everything;
 	}
@@ -229,49 +377,377 @@ public class File implements me.footlights.api.File
 	 */
 	List<ByteBuffer> content() throws IOException
 	{
-		List<ByteBuffer> content = new ArrayList<ByteBuffer>(plaintext.size());
-		for (Block b : plaintext) content.add(b.content());
+		int blocks = index().size();
+		List<ByteBuffer> content = new ArrayList<ByteBuffer>(blocks);
+		for (int i = 0; i < blocks; i++) content.add(blockContent(i));
 
 		return content;
 	}
 
+	/**
+	 * The content of a content block, which may be inline in the header.
+	 *
+	 * @throws IOException    if the block cannot be retrieved or decrypted
+	 */
+	ByteBuffer blockContent(int index) throws IOException
+	{
+		ByteBuffer inline = index().inline();
+		if (inline == null) return block(index).content();
+
+		if (index != 0)
+			throw new IndexOutOfBoundsException("Inline file has no block " + index);
+
+		return inline;
+	}
+
+	/**
+	 * Retrieve (if necessary) and decrypt a content block (which must not be inline).
+	 *
+	 * @throws IOException    if the block cannot be retrieved or decrypted
+	 */
+	Block block(int index) throws IOException
+	{
+		if (ciphertext != null) return ciphertext.get(index).plaintext();
+
+		Link link = index().leaf(index);
+		try { return link.decrypt(retrieve(link)); }
+		catch (GeneralSecurityException e)
+		{
+			throw new IOException("Unable to decrypt block " + index + " of " + this, e);
+		}
+	}
+
+	/** Two files are equal if their headers (which name all of their content) are. */
 	@Override public boolean equals(Object o)
 	{
 		if (o == null) return false;
 		if (!(o instanceof File)) return false;
 
 		File f = (File) o;
-		if (!this.header.equals(f.header)) return false;
-		if (!this.plaintext.equals(f.plaintext)) return false;
-		if (!this.ciphertext.equals(f.ciphertext)) return false;
-
-		return true;
+		return this.header.equals(f.header);
 	}
 
+	/** Equal headers have the same name. */
+	@Override public int hashCode() { return header.name().hashCode(); }
+
 	@Override
 	public String toString()
 	{
-		return "Encrypted File [ " + header.name() + ", " + plaintext.size() + " blocks, " +
-			stat.length() + " B ]";
+		return "Encrypted File [ " + header.name() + " ]";
 	}
 
 
-	/** Default constructor; produces an anonymous file */
-	private File(EncryptedBlock header,
-		Collection<Block> plaintext, Collection<EncryptedBlock> ciphertext)
+	/**
+	 * Reads the file's content, fetching and decrypting blocks ahead of the reader.
+	 *
+	 * Block retrieval and decryption happen on the encryption pool, so the next few blocks are
+	 * usually ready by the time that they are needed.
+	 */
+	private final class Reader implements SeekableByteChannel
 	{
-		this.header = header;
-		this.plaintext = new ArrayList<Block>(plaintext);
-		this.ciphertext = new ArrayList<EncryptedBlock>(ciphertext);
+		Reader(int readAhead) { this.readAhead = readAhead; }
+
+		@Override public int read(ByteBuffer dst) throws IOException
+		{
+			if (!open) throw new ClosedChannelException();
+
+			int total = 0;
+			while (dst.hasRemaining())
+			{
+				if ((current == null) || !current.hasRemaining())
+				{
+					current = nextBlock();
+					if (current == null) return (total == 0) ? -1 : total;
+				}
 
-		long len = 0;
-		for (Block b : plaintext) len += b.content().remaining();
-		this.stat = Stat.apply(header.name(), len);
+				int bytes = Math.min(dst.remaining(), current.remaining());
+				ByteBuffer chunk = current.duplicate();
+				chunk.limit(chunk.position() + bytes);
+				dst.put(chunk);
+
+				current.position(current.position() + bytes);
+				position += bytes;
+				total += bytes;
+			}
+
+			return total;
+		}
+
+		@Override public long position() throws IOException
+		{
+			if (!open) throw new ClosedChannelException();
+			return position;
+		}
+
+		@Override public Reader position(long newPosition) throws IOException
+		{
+			if (!open) throw new ClosedChannelException();
+			if (newPosition < 0)
+				throw new IllegalArgumentException("Negative position: " + newPosition);
+
+			if (newPosition == position) return this;
+
+			// If we are skipping forward within the current block, just move within it.
+			if ((current != null) && (newPosition > position)
+			     && (newPosition - position <= current.remaining()))
+			{
+				current.position(current.position() + (int) (newPosition - position));
+				position = newPosition;
+				return this;
+			}
+
+			cancelPending();
+			current = null;
+			position = newPosition;
+
+			FileIndex fileIndex = index();
+			int blocks = fileIndex.size();
+			if (blocks == 0) return this;
+
+			if (!fileIndex.fixed())
+			{
+				long[] found = fileIndex.find(newPosition);
+				requested = (int) found[0];
+				skip = (requested < blocks) ? (int) (newPosition - found[1]) : 0;
+				return this;
+			}
+
+			long chunk = chunkSize();
+			long index = newPosition / chunk;
+			if (index >= blocks)
+			{
+				requested = blocks;
+				skip = 0;
+			}
+			else
+			{
+				requested = (int) index;
+				skip = (int) (newPosition % chunk);
+			}
+
+			return this;
+		}
+
+		@Override public long size() throws IOException
+		{
+			if (!open) throw new ClosedChannelException();
+			return stat().length();
+		}
+
+		@Override public int write(ByteBuffer src) { throw new NonWritableChannelException(); }
+		@Override public Reader truncate(long size)
+		{
+			throw new NonWritableChannelException();
+		}
+
+		@Override public boolean isOpen() { return open; }
+		@Override public void close()
+		{
+			open = false;
+			current = null;
+			cancelPending();
+		}
+
+		private void cancelPending()
+		{
+			for (Future<ByteBuffer> f : pending) f.cancel(false);
+			pending.clear();
+		}
+
+
+		/** The content of the next block (after any seek offset), or null at end of file. */
+		private ByteBuffer nextBlock() throws IOException
+		{
+			ByteBuffer next = fetchNext();
+			if ((next != null) && (skip > 0))
+			{
+				next.position(next.position() + Math.min(skip, next.remaining()));
+				skip = 0;
+			}
+
+			return next;
+		}
+
+		private ByteBuffer fetchNext() throws IOException
+		{
+			int blocks = index().size();
+			if (readAhead == 0)
+				return (requested < blocks) ? blockContent(requested++) : null;
+
+			ForkJoinPool pool = EncryptionEngine.defaultPool();
+			while ((pending.size() <= readAhead) && (requested < blocks))
+			{
+				final int index = requested++;
+				pending.add(pool.submit(new Callable<ByteBuffer>()
+				{
+					@Override public ByteBuffer call() throws IOException
+					{
+						return blockContent(index);
+					}
+				}));
+			}
+
+			if (pending.isEmpty()) return null;
+
+			try { return pending.remove().get(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading " + File.this);
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				throw new Error(cause);
+			}
+		}
+
+		private final int readAhead;
+		private final Deque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+
+		/** The index of the next block to fetch. */
+		private int requested;
+
+		/** The unread part of the current block. */
+		private ByteBuffer current;
+
+		/** How far into the next block a seek landed. */
+		private int skip;
+
+		/** Our position within the file. */
+		private long position;
+		private boolean open = true;
+	}
+
+
+	/** How much content every block (except perhaps the last) holds. */
+	private int chunkSize() throws IOException
+	{
+		int size = chunkSize;
+		if (size <= 0)
+		{
+			if (index().size() == 0) return 1;
+			chunkSize = size = Math.max(1, blockContent(0).remaining());
+		}
+
+		return size;
+	}
+
+	/**
+	 * The index of the file's content blocks, parsed from the header on first use.
+	 *
+	 * Index blocks are found in memory or retrieved from the {@link Store}.
+	 */
+	private FileIndex index() throws IOException
+	{
+		FileIndex i = index;
+		if (i == null)
+			index = i = FileIndex.parse(header.plaintext(), new FileIndex.Resolver()
+			{
+				@Override public Block resolve(Link link) throws IOException
+				{
+					EncryptedBlock b = interior.get(link.fingerprint());
+					if (b != null) return b.plaintext();
+
+					return fetch(link).plaintext();
+				}
+			});
+
+		return i;
+	}
+
+	/** Retrieve a block from the {@link Store}. */
+	private EncryptedBlock fetch(Link link) throws IOException
+	{
+		try
+		{
+			return EncryptedBlock.newBuilder()
+				.setLink(link)
+				.setCiphertext(retrieve(link))
+				.build();
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IOException("Unable to decrypt " + link.fingerprint() + " of " + this, e);
+		}
+	}
+
+	/**
+	 * Retrieve a block's ciphertext from the {@link Store}.
+	 *
+	 * Read-ahead and index lookups call this from tasks on the encryption pool, so the
+	 * (possibly remote) read is wrapped in {@link ForkJoinPool#managedBlock}: the pool can
+	 * start a spare thread to keep decrypting while this one waits for the store.
+	 */
+	private ByteBuffer retrieve(Link link) throws IOException
+	{
+		if (store == null)
+			throw new FileNotFoundException(
+				"Block " + link.fingerprint() + " of in-memory " + this + " not found");
+
+		StoreRead read = new StoreRead(store, link.fingerprint());
+		try { ForkJoinPool.managedBlock(read); }
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading " + this);
+		}
+
+		Option<ByteBuffer> bytes = read.bytes;
+		if (bytes.isEmpty())
+			throw new FileNotFoundException(
+				"Block " + link.fingerprint() + " of " + this + " not in " + store);
+
+		return bytes.get();
+	}
+
+	/** A blocking read from a {@link Store}. */
+	private static final class StoreRead implements ForkJoinPool.ManagedBlocker
+	{
+		StoreRead(Store store, Fingerprint name)
+		{
+			this.store = store;
+			this.name = name;
+		}
+
+		@Override public boolean block()
+		{
+			bytes = store.retrieve(name);
+			return true;
+		}
+
+		@Override public boolean isReleasable() { return (bytes != null); }
+
+		private final Store store;
+		private final Fingerprint name;
+		private Option<ByteBuffer> bytes;
+	}
+
+
+	private File(EncryptedBlock header, Map<Fingerprint,EncryptedBlock> interior,
+			List<EncryptedBlock> ciphertext, Store store)
+	{
+		this.header = header;
+		this.interior = interior;
+		this.ciphertext = ciphertext;
+		this.store = store;
 	}
 
 
 	private final EncryptedBlock header;
-	private final List<Block> plaintext;
+
+	/** Index blocks which are in memory (not including the header). */
+	private final Map<Fingerprint,EncryptedBlock> interior;
+
+	/** Content blocks, if the whole file is in memory (otherwise null). */
 	private final List<EncryptedBlock> ciphertext;
-	private final Stat stat;
+
+	/** Where content blocks come from, if they aren't in memory. */
+	private final Store store;
+
+	private volatile FileIndex index;
+	private volatile Stat stat;
+	private volatile int chunkSize;
 }
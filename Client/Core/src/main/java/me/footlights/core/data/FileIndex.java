@@ -0,0 +1,476 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import me.footlights.core.crypto.Fingerprint;
+import me.footlights.core.crypto.Link;
+
+
+/**
+ * The index of a {@link File}'s content blocks.
+ *
+ * The index is a tree: its leaves are content blocks, and its interior blocks hold nothing
+ * but links. The root of the tree is the file's header.
+ *
+ * A small file's header links straight to its content blocks and has no content of its own
+ * (this is the original, single-header file format). When there are too many content blocks
+ * to link to from a single block, interior blocks start with a small marker:
+ * <pre>
+ * "FIDX"     4 B magic
+ * span       4 B (big-endian): how many content blocks are beneath each child
+ * count      4 B (big-endian): how many content blocks are beneath this block
+ * </pre>
+ * Every child except the last is a complete subtree, so finding content block {@code i}
+ * only requires one block per level: O(log n).
+ *
+ * If content blocks hold varying amounts of content (see {@link ContentChunker}), a byte
+ * offset can't be turned into a block index by division. Such files' index blocks (including
+ * the header, however small the file) are marked "FIDV" instead, and the marker is followed
+ * by the number of content bytes beneath each child (8 B, big-endian).
+ *
+ * A file whose content fits in a single block doesn't need a separate header at all: its
+ * header holds the content itself, after a "FINL" marker (and links to nothing). This halves
+ * the blocks, fetches and uploads needed for small files.
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+class FileIndex
+{
+	/** Retrieves and decrypts the {@link Block} that a {@link Link} points to. */
+	interface Resolver { Block resolve(Link link) throws IOException; }
+
+	/** Somewhere to put interior index blocks as they are created. */
+	interface Sink { void store(EncryptedBlock block) throws IOException; }
+
+	/** How much content can be stored inline in a header of a given size. */
+	static int inlineCapacity(int blockSize)
+	{
+		return Block.newBuilder().setDesiredSize(blockSize).remaining() - INLINE.length;
+	}
+
+	/**
+	 * A header that holds a file's content inline (which must fit in {@code blockSize}).
+	 *
+	 * @see #inlineCapacity(int)
+	 */
+	static EncryptedBlock inline(ByteBuffer content, int blockSize)
+		throws FormatException, GeneralSecurityException
+	{
+		ByteBuffer marked = ByteBuffer.allocate(INLINE.length + content.remaining());
+		marked.put(INLINE).put(content.duplicate()).flip();
+
+		return EncryptionEngine.contentBlock(marked, blockSize).encrypt();
+	}
+
+	/** An index whose interior blocks are retrieved (and cached) as they are needed. */
+	static FileIndex parse(Block root, Resolver resolver) throws FormatException
+	{
+		return new FileIndex(Node.parse(root), resolver);
+	}
+
+
+	/**
+	 * Builds an index incrementally, as links to content blocks become available.
+	 *
+	 * Only one partially-filled block per level of the tree is held in memory; completed
+	 * interior blocks are handed to a {@link Sink} immediately.
+	 */
+	static class Builder
+	{
+		/**
+		 * Constructor.
+		 *
+		 * @param variable   whether content blocks may hold different amounts of content
+		 *                   (other than the last block)
+		 */
+		Builder(int blockSize, boolean variable, Sink sink)
+		{
+			this.blockSize = blockSize;
+			this.variable = variable;
+			this.sink = sink;
+		}
+
+		void add(Link leaf, int length)
+			throws FormatException, GeneralSecurityException, IOException
+		{
+			// Index blocks are the same size as content blocks, unless that's too small to be
+			// a useful index (e.g. very small blocks or very long links).
+			if (fanout == 0)
+			{
+				int perLink = leaf.bytes() + (variable ? LENGTH_BYTES : 0);
+				for (nodeSize = blockSize; ; nodeSize <<= 1)
+				{
+					int room = Block.newBuilder().setDesiredSize(nodeSize).remaining();
+					fanout = Math.min(Block.MAX_LINKS, (room - MARKER_BYTES) / perLink);
+					if (fanout >= MIN_FANOUT) break;
+				}
+			}
+
+			add(0, leaf, 1, length);
+		}
+
+		/** Finish the tree, returning its root (which becomes the file's header). */
+		EncryptedBlock build() throws FormatException, GeneralSecurityException, IOException
+		{
+			// Small enough for the original, single-header format.
+			if ((pending.size() <= 1) && !variable)
+			{
+				Block.Builder header = Block.newBuilder();
+				if (!pending.isEmpty())
+					for (Link l : pending.get(0).links) header.addLink(l);
+
+				return header.build().encrypt();
+			}
+
+			if (pending.isEmpty()) return node(0, new Level()).encrypt();
+
+			// Flush partially-filled blocks up the tree (which may grow as we go).
+			for (int level = 0; level < pending.size() - 1; level++)
+				if (!pending.get(level).links.isEmpty()) push(level);
+
+			int top = pending.size() - 1;
+			return node(top, pending.get(top)).encrypt();
+		}
+
+		/** Links which have not yet been put into an index block. */
+		private static class Level
+		{
+			final List<Link> links = new ArrayList<Link>();
+			final List<Long> lengths = new ArrayList<Long>();
+			long count;
+		}
+
+		private void add(int level, Link link, long under, long length)
+			throws FormatException, GeneralSecurityException, IOException
+		{
+			while (pending.size() <= level) pending.add(new Level());
+			if (pending.get(level).links.size() == fanout) push(level);
+
+			Level l = pending.get(level);
+			l.links.add(link);
+			l.lengths.add(length);
+			l.count += under;
+		}
+
+		/** Turn a level's pending links into an interior block and link to it from above. */
+		private void push(int level) throws FormatException, GeneralSecurityException, IOException
+		{
+			Level l = pending.get(level);
+			EncryptedBlock block = node(level, l).encrypt();
+			sink.store(block);
+
+			pending.set(level, new Level());
+
+			long length = 0;
+			for (long len : l.lengths) length += len;
+
+			add(level + 1, block.link(), l.count, length);
+		}
+
+		private Block node(int level, Level l) throws FormatException
+		{
+			long span = 1;
+			for (int i = 0; i < level; i++) span *= fanout;
+
+			ByteBuffer marker = ByteBuffer.allocate(
+				MARKER_BYTES + (variable ? LENGTH_BYTES * l.links.size() : 0));
+
+			marker.put(variable ? VARIABLE : MAGIC);
+			marker.putInt((int) span);
+			marker.putInt((int) l.count);
+			if (variable) for (long len : l.lengths) marker.putLong(len);
+			marker.flip();
+
+			Block.Builder b = Block.newBuilder()
+				.setDesiredSize(Math.max(nodeSize, blockSize))
+				.addContent(marker);
+
+			for (Link link : l.links) b.addLink(link);
+			return b.build();
+		}
+
+		private final int blockSize;
+		private final boolean variable;
+		private final Sink sink;
+		private int nodeSize;
+		private int fanout;
+
+		/** Links which have not yet been put in an interior block, by level. */
+		private final List<Level> pending = new ArrayList<Level>();
+	}
+
+
+	/** How many content blocks the file has. */
+	int size() { return root.count; }
+
+	/**
+	 * The content of a file that is stored inline in its header (one "block" that the header
+	 * doesn't link to), or null if the file's content is in separate blocks.
+	 */
+	ByteBuffer inline() { return (root.inline == null) ? null : root.inline.duplicate(); }
+
+	/** Whether or not content blocks (except the last) all hold the same amount of content. */
+	boolean fixed() { return (root.lengths == null); }
+
+	/** How many bytes of content the file has (only known if not {@link #fixed()}). */
+	long length()
+	{
+		if (fixed()) throw new UnsupportedOperationException("Fixed-size index has no length");
+
+		long length = 0;
+		for (long len : root.lengths) length += len;
+		return length;
+	}
+
+	/** The link to content block {@code index}. */
+	Link leaf(int index) throws IOException
+	{
+		Node node = root;
+		while (true)
+		{
+			Link link = node.links.get(index / node.span);
+			if (node.span == 1) return link;
+
+			index %= node.span;
+			node = node(link);
+		}
+	}
+
+	/**
+	 * Find the content block that holds a byte offset (for indices that are not
+	 * {@link #fixed()}).
+	 *
+	 * @return   the block's index and the offset of its first byte, or {@link #size()} and
+	 *           {@link #length()} if the offset is past the end of the file
+	 */
+	long[] find(long offset) throws IOException
+	{
+		if (fixed()) throw new UnsupportedOperationException("Fixed-size index: just divide");
+
+		int index = 0;
+		long start = 0;
+
+		Node node = root;
+		while (true)
+		{
+			int child = 0;
+			while ((child < node.links.size()) && (offset >= start + node.lengths[child]))
+				start += node.lengths[child++];
+
+			if (child == node.links.size()) return new long[] { size(), length() };
+
+			index += child * node.span;
+			if (node.span == 1) return new long[] { index, start };
+
+			node = node(node.links.get(child));
+		}
+	}
+
+	/** Links to all content blocks, retrieving each level of the tree in parallel. */
+	List<Link> leaves() throws IOException
+	{
+		List<Node> level = Collections.singletonList(root);
+		while (level.get(0).span > 1) level = children(level);
+
+		List<Link> all = new ArrayList<Link>(root.count);
+		for (Node n : level) all.addAll(n.links);
+		return all;
+	}
+
+	/** Links to all interior blocks (not including the root). */
+	List<Link> interior() throws IOException
+	{
+		List<Link> interior = new ArrayList<Link>();
+
+		List<Node> level = Collections.singletonList(root);
+		while (level.get(0).span > 1)
+		{
+			for (Node n : level) interior.addAll(n.links);
+			level = children(level);
+		}
+
+		return interior;
+	}
+
+
+	/** An interior block of the index. */
+	private static class Node
+	{
+		static Node parse(Block block) throws FormatException
+		{
+			ByteBuffer content = block.content();
+			List<Link> links = block.links();
+
+			// The original format: a header linking directly to content blocks.
+			if (!content.hasRemaining()) return new Node(links, 1, links.size(), null);
+
+			byte[] magic = new byte[MAGIC.length];
+			if (content.remaining() < MAGIC.length) throw new FormatException("Not an index");
+			content.get(magic);
+
+			if (Arrays.equals(INLINE, magic))
+			{
+				if (!links.isEmpty())
+					throw new FormatException("Inline file header has " + links.size() + " links");
+
+				return new Node(content.slice());
+			}
+
+			boolean variable = Arrays.equals(VARIABLE, magic);
+			if (!variable && !Arrays.equals(MAGIC, magic))
+				throw new FormatException("Not an index");
+
+			if (content.remaining() < MARKER_BYTES - MAGIC.length)
+				throw new FormatException("Truncated index marker");
+
+			int span = content.getInt();
+			int count = content.getInt();
+			if ((span < 1) || (count < 0) || ((long) span * links.size() < count))
+				throw new FormatException(
+					"Invalid index: " + links.size() + " links of span " + span
+					 + " cannot hold " + count + " blocks");
+
+			long[] lengths = null;
+			if (variable)
+			{
+				if (content.remaining() < LENGTH_BYTES * links.size())
+					throw new FormatException("Index block is missing content lengths");
+
+				lengths = new long[links.size()];
+				for (int i = 0; i < lengths.length; i++)
+					if ((lengths[i] = content.getLong()) < 0)
+						throw new FormatException("Negative content length: " + lengths[i]);
+			}
+
+			return new Node(links, span, count, lengths);
+		}
+
+		private Node(List<Link> links, int span, int count, long[] lengths)
+		{
+			this.links = links;
+			this.span = span;
+			this.count = count;
+			this.lengths = lengths;
+			this.inline = null;
+		}
+
+		/** A header with inline content: one block, but no links. */
+		private Node(ByteBuffer inline)
+		{
+			this.links = Collections.emptyList();
+			this.span = 1;
+			this.count = 1;
+			this.lengths = null;
+			this.inline = inline.asReadOnlyBuffer();
+		}
+
+		final List<Link> links;
+		final int span;
+		final int count;
+
+		/** How much content is beneath each link (null if content blocks are fixed-size). */
+		final long[] lengths;
+
+		/** Content stored in the header itself (null unless this is an inline file). */
+		final ByteBuffer inline;
+	}
+
+	private Node node(Link link) throws IOException
+	{
+		Node n = cache.get(link.fingerprint());
+		if (n == null)
+		{
+			n = Node.parse(resolver.resolve(link));
+			cache.put(link.fingerprint(), n);
+		}
+
+		return n;
+	}
+
+	/**
+	 * Retrieve all of the children of a level of the tree at once.
+	 *
+	 * The tasks run on the encryption pool; a {@link Resolver} that waits on a store should
+	 * do so via {@link ForkJoinPool#managedBlock} so that decryption isn't starved.
+	 */
+	private List<Node> children(List<Node> level) throws IOException
+	{
+		ForkJoinPool pool = EncryptionEngine.defaultPool();
+		List<Future<Node>> futures = new ArrayList<Future<Node>>();
+		for (Node n : level)
+			for (final Link l : n.links)
+				futures.add(pool.submit(new Callable<Node>()
+				{
+					@Override public Node call() throws IOException { return node(l); }
+				}));
+
+		List<Node> children = new ArrayList<Node>(futures.size());
+		try
+		{
+			for (Future<Node> f : futures) children.add(f.get());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading index");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new Error(cause);
+		}
+
+		return children;
+	}
+
+
+	private FileIndex(Node root, Resolver resolver)
+	{
+		this.root = root;
+		this.resolver = resolver;
+	}
+
+
+	/** Index blocks should link to at least this many children. */
+	private static final int MIN_FANOUT = 16;
+
+	private static final byte[] MAGIC = { 'F', 'I', 'D', 'X' };
+	private static final byte[] VARIABLE = { 'F', 'I', 'D', 'V' };
+	private static final byte[] INLINE = { 'F', 'I', 'N', 'L' };
+	private static final int MARKER_BYTES = MAGIC.length + 8;
+	private static final int LENGTH_BYTES = 8;
+
+	private final Node root;
+	private final Resolver resolver;
+	private final Map<Fingerprint,Node> cache = new ConcurrentHashMap<Fingerprint,Node>();
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import me.footlights.core.ConfigurationError;
+import me.footlights.core.Preferences;
+import me.footlights.core.crypto.CryptoPool;
+
+
+/**
+ * Generates the padding that fills a {@link Block} out to its full size class (see
+ * {@link SizeClass}).
+ *
+ * Padding is hashed into a block's convergent key and name, so random padding makes every
+ * block unique. Deterministic padding is a keyed PRF over the rest of the block: an HMAC of
+ * the header, links and content seeds an AES-CTR keystream. Identical plaintext then yields
+ * identical blocks, which block stores can de-duplicate.
+ *
+ * The default mode is set by the {@code data.padding} preference ("random" or
+ * "deterministic"); the PRF key by {@code data.padding.key}.
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+class Padding
+{
+	/** The key to pad new blocks with by default, or null for random padding. */
+	static byte[] defaultKey() { return Defaults.KEY; }
+
+	/** Random padding (from a thread-local PRNG, so concurrent writers don't contend). */
+	static ByteBuffer random(int length)
+	{
+		ByteBuffer padding = ByteBuffer.allocate(length);
+		ThreadLocalRandom.current().nextBytes(padding.array());
+		return padding;
+	}
+
+	/** Padding derived from the rest of the block. */
+	static ByteBuffer deterministic(byte[] key, ByteBuffer header, ByteBuffer[] links,
+			ByteBuffer[] content, int length)
+	{
+		ByteBuffer padding = ByteBuffer.allocate(length);
+		if (length == 0) return padding;
+
+		Mac mac = null;
+		Cipher keystream = null;
+		try
+		{
+			mac = CryptoPool.borrowMac(PRF);
+			mac.init(new SecretKeySpec(key, PRF));
+
+			mac.update(header.duplicate());
+			for (ByteBuffer b : links) mac.update(b.duplicate());
+			for (ByteBuffer b : content) mac.update(b.duplicate());
+			byte[] seed = mac.doFinal();
+
+			keystream = CryptoPool.borrowCipher(KEYSTREAM);
+			keystream.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, 0, 16, "AES"),
+				new IvParameterSpec(new byte[16]));
+
+			// Encrypt the (zero) padding in place: the result is the keystream itself.
+			byte[] bytes = padding.array();
+			keystream.doFinal(bytes, 0, length, bytes, 0);
+
+			return padding;
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new ConfigurationError("Unable to generate deterministic padding: " + e);
+		}
+		finally
+		{
+			CryptoPool.release(mac);
+			CryptoPool.release(keystream);
+		}
+	}
+
+
+	/** Lazily-read preferences. */
+	private static class Defaults
+	{
+		static final byte[] KEY;
+		static
+		{
+			Preferences prefs = Preferences.getDefaultPreferences();
+			if (!"deterministic".equals(prefs.getString("data.padding").get())) KEY = null;
+			else KEY = prefs.getString("data.padding.key").get().getBytes();
+		}
+	}
+
+	private static final String PRF = "HmacSHA256";
+	private static final String KEYSTREAM = "AES/CTR/NOPADDING";
+
+	/** Non-instantiable utility class. */
+	private Padding() {}
+}
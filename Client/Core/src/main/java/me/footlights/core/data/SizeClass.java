@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import me.footlights.core.Preferences;
+
+
+/**
+ * The sizes that a {@link Block} may have.
+ *
+ * Block lengths are quantized so that they reveal little about their content. Originally,
+ * every block was a power of two bytes long ("binary" size classes), which can waste almost
+ * half of a block on padding. "Geometric" size classes add three steps between each pair of
+ * powers of two (1.25, 1.5 and 1.75 times the smaller one), so padding is at most a fifth of
+ * a block, while there are still only four possible sizes per doubling. Every size is a
+ * multiple of {@link #ALIGNMENT} bytes (so that block ciphers need no padding of their own):
+ * below 64 B, only powers of two are valid.
+ *
+ * The size is encoded in the byte after a block's magic ("N"):
+ * <pre>
+ * 0nnnnnnn   version 1: the block is 2^n bytes long
+ * 1iiiiiii   version 2: the block is in geometric size class i, i.e.
+ *            (4 + i % 4) * 2^(i / 4 + 2) bytes long
+ * </pre>
+ * Power-of-two sizes are always written the original way, so blocks that could be read before
+ * geometric size classes existed are still byte-for-byte identical.
+ *
+ * Which size classes new blocks use by default depends on the {@code data.sizeclasses}
+ * preference ("binary" or "geometric").
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+public final class SizeClass
+{
+	/** Whether new blocks should use geometric size classes by default. */
+	public static boolean geometricByDefault() { return Defaults.GEOMETRIC; }
+
+	/** The smallest valid block size that is at least {@code bytes} long. */
+	public static int ceiling(int bytes, boolean geometric) throws FormatException
+	{
+		if (bytes <= MINIMUM) return MINIMUM;
+
+		int lower = Integer.highestOneBit(bytes);
+		if (bytes == lower) return bytes;
+
+		long size;
+		if (geometric && (lower >= GEOMETRIC_MINIMUM))
+		{
+			int step = lower / STEPS;
+			size = lower + (long) step * ((bytes - lower + step - 1) / step);
+		}
+		else size = 2L * lower;
+
+		if (size > MAXIMUM) throw new FormatException("Block size > " + MAXIMUM + " B");
+		return (int) size;
+	}
+
+	/** Whether or not a block may be {@code bytes} long. */
+	public static boolean isValid(int bytes, boolean geometric)
+	{
+		if (bytes < MINIMUM) return false;
+
+		int lower = Integer.highestOneBit(bytes);
+		if (bytes == lower) return true;
+
+		return geometric && (lower >= GEOMETRIC_MINIMUM)
+			&& ((bytes - lower) % (lower / STEPS) == 0);
+	}
+
+
+	/** Encode a (valid) block size as a header's size byte. */
+	static byte encode(int size)
+	{
+		int log = Integer.numberOfTrailingZeros(Integer.highestOneBit(size));
+		if (Integer.bitCount(size) == 1) return (byte) log;
+
+		int lower = 1 << log;
+		int index = (log - MINIMUM_LOG) * STEPS + (size - lower) / (lower / STEPS);
+		return (byte) (VERSION_2 | index);
+	}
+
+	/** Decode a header's size byte. */
+	static int decode(byte n) throws FormatException
+	{
+		if ((n & VERSION_2) == 0)
+		{
+			if (n < MINIMUM_LOG)
+				throw new FormatException("Block cannot be smaller than " + MINIMUM + "B");
+
+			if (n > MAXIMUM_LOG) throw new FormatException("Block size > " + MAXIMUM + " B");
+			return (1 << n);
+		}
+
+		int index = n & ~VERSION_2 & 0xff;
+		int log = index / STEPS + MINIMUM_LOG;
+		if (log > MAXIMUM_LOG) throw new FormatException("Invalid size class: " + index);
+
+		long size = (long) (STEPS + index % STEPS) << (log - 2);
+		if ((size > MAXIMUM) || !isValid((int) size, true))
+			throw new FormatException("Invalid size class: " + index);
+
+		return (int) size;
+	}
+
+
+	/** Lazily-read preferences. */
+	private static class Defaults
+	{
+		static final boolean GEOMETRIC = "geometric".equals(
+			Preferences.getDefaultPreferences().getString("data.sizeclasses").get());
+	}
+
+	/** Geometric steps per power of two. */
+	private static final int STEPS = 4;
+
+	/** The top bit of the size byte marks a version-2 (size class) encoding. */
+	private static final int VERSION_2 = 0x80;
+
+	private static final int MINIMUM_LOG = 4;
+	private static final int MINIMUM = 1 << MINIMUM_LOG;
+
+	/** Block sizes are multiples of the cipher block size. */
+	public static final int ALIGNMENT = 16;
+
+	/** The smallest power of two which can be divided into aligned geometric steps. */
+	private static final int GEOMETRIC_MINIMUM = STEPS * ALIGNMENT;
+
+	private static final int MAXIMUM_LOG = 30;
+	private static final int MAXIMUM = Integer.MAX_VALUE;
+
+	/** Static utility class. */
+	private SizeClass() {}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import me.footlights.core.crypto.Link;
+import me.footlights.core.data.store.Store;
+
+
+/**
+ * Writes a {@link File} from a {@link ReadableByteChannel}, without holding the whole file
+ * in memory.
+ *
+ * Content is read one block at a time and encrypted (on a {@link ForkJoinPool}) as it
+ * arrives; each {@link EncryptedBlock} is handed to the {@link Store} as soon as it is ready,
+ * in file order. At most {@link #setWindow window} blocks are in flight at once, so memory
+ * use is proportional to the block size times the window, not to the size of the file.
+ * Links to the stored blocks go into a {@link FileIndex}, whose interior blocks are also
+ * stored as soon as they are full; its root (the file's header) is stored last.
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+public class StreamingWriter
+{
+	public static StreamingWriter newWriter(Store store) { return new StreamingWriter(store); }
+
+	/**
+	 * Use blocks of a particular size, rather than one chosen from the content's length by
+	 * {@link BlockSizePolicy#byDefault()}.
+	 */
+	public StreamingWriter setDesiredBlockSize(int size)
+	{
+		this.desiredBlockSize = size;
+		return this;
+	}
+
+	/** Encrypt blocks on a particular pool (by default, a shared pool). */
+	public StreamingWriter setEncryptionPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Choose chunk boundaries by content rather than offset
+	 * (see {@link File.MutableFile#setContentDefinedChunking}).
+	 */
+	public StreamingWriter setContentDefinedChunking(boolean contentDefined)
+	{
+		this.contentDefined = contentDefined;
+		return this;
+	}
+
+	/**
+	 * How long the content is expected to be, which determines the block size (if it hasn't
+	 * been set explicitly). This is only a hint: the content may be longer or shorter.
+	 *
+	 * If no length is given, seekable channels (e.g. {@link java.nio.channels.FileChannel})
+	 * are asked for their size; otherwise, we assume that the content is small.
+	 */
+	public StreamingWriter setExpectedLength(long length)
+	{
+		this.expectedLength = length;
+		return this;
+	}
+
+	/** How many blocks may be read, but not yet stored, at any one time. */
+	public StreamingWriter setWindow(int blocks)
+	{
+		if (blocks < 1)
+			throw new IllegalArgumentException("Window must be at least one block");
+
+		this.window = blocks;
+		return this;
+	}
+
+	/**
+	 * Read a channel until end-of-stream, storing its content as a {@link File}.
+	 *
+	 * The channel is not closed.
+	 *
+	 * @return   a {@link Link} to the new {@link File}'s header
+	 */
+	public Link write(ReadableByteChannel in) throws IOException, GeneralSecurityException
+	{
+		final ForkJoinPool pool = (this.pool == null) ? EncryptionEngine.defaultPool() : this.pool;
+		final int blockSize = blockSizeFor(in);
+		final int chunkSize = Block.newBuilder().setDesiredSize(blockSize).remaining();
+
+		// Content that fits in a single block is stored inline, in the header (just as
+		// File.MutableFile does): read one byte past what would fit to find out if it does.
+		ByteBuffer head = ByteBuffer.allocate(FileIndex.inlineCapacity(blockSize) + 1);
+		boolean done = fill(in, head);
+		head.flip();
+
+		if (done && head.hasRemaining())
+		{
+			EncryptedBlock header = FileIndex.inline(head, blockSize);
+			store.store(header);
+
+			return header.link();
+		}
+
+		Deque<EncryptChunk> inFlight = new ArrayDeque<EncryptChunk>(window);
+		ContentChunker chunker =
+			contentDefined ? ContentChunker.forBlockSize(blockSize) : null;
+
+		// When chunking by content, we read ahead of the current chunk boundary.
+		ByteBuffer lookahead = contentDefined ? ByteBuffer.allocate(chunkSize) : null;
+		if (lookahead != null) lookahead.put(head);
+
+		FileIndex.Builder index = new FileIndex.Builder(blockSize, contentDefined,
+			new FileIndex.Sink()
+			{
+				@Override public void store(EncryptedBlock block) { store.store(block); }
+			});
+
+		try
+		{
+			while (true)
+			{
+				ByteBuffer chunk;
+				if (chunker == null)
+				{
+					if (done && !head.hasRemaining()) break;
+
+					chunk = ByteBuffer.allocate(chunkSize);
+					chunk.put(head);
+					if (!done) done = fill(in, chunk);
+					chunk.flip();
+				}
+				else
+				{
+					if (!done) done = fill(in, lookahead);
+
+					lookahead.flip();
+					chunk = lookahead.hasRemaining()
+						? Block.cut(lookahead, chunker) : null;
+					lookahead.compact();
+				}
+
+				if ((chunk == null) || !chunk.hasRemaining()) break;
+
+				EncryptChunk task = new EncryptChunk(chunk, blockSize);
+				task.result = pool.submit(task);
+				inFlight.add(task);
+
+				if (inFlight.size() >= window) store(inFlight.remove(), index);
+			}
+
+			while (!inFlight.isEmpty()) store(inFlight.remove(), index);
+		}
+		finally
+		{
+			for (EncryptChunk task : inFlight) task.result.cancel(false);
+		}
+
+		EncryptedBlock encryptedHeader = index.build();
+		store.store(encryptedHeader);
+
+		return encryptedHeader.link();
+	}
+
+
+	/**
+	 * Read from a channel until a buffer is full.
+	 *
+	 * @return   true if we have reached the end of the stream
+	 */
+	private static boolean fill(ReadableByteChannel in, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			if (in.read(buffer) < 0) return true;
+
+		return false;
+	}
+
+	/**
+	 * Wait for a block to be encrypted, then store and index it.
+	 *
+	 * The block (and its plaintext, which the {@link EncryptedBlock} keeps) still refers to
+	 * the chunk that it was built from, so every chunk is a buffer of its own.
+	 */
+	private void store(EncryptChunk pending, FileIndex.Builder index)
+		throws IOException, GeneralSecurityException
+	{
+		int length = pending.chunk.remaining();
+
+		final EncryptedBlock block;
+		try { block = pending.result.get(); }
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException("Interrupted while encrypting");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new Error(cause);
+		}
+
+		store.store(block);
+		index.add(block.link(), length);
+	}
+
+	/** Builds and encrypts a {@link Block} from one chunk of content. */
+	private static class EncryptChunk implements Callable<EncryptedBlock>
+	{
+		EncryptChunk(ByteBuffer chunk, int blockSize)
+		{
+			this.chunk = chunk;
+			this.blockSize = blockSize;
+		}
+
+		@Override public EncryptedBlock call() throws FormatException, GeneralSecurityException
+		{
+			return EncryptionEngine.contentBlock(chunk, blockSize).encrypt();
+		}
+
+		final ByteBuffer chunk;
+		final int blockSize;
+		Future<EncryptedBlock> result;
+	}
+
+
+	/** The block size to use for the content of a channel. */
+	private int blockSizeFor(ReadableByteChannel in) throws IOException
+	{
+		if (desiredBlockSize != 0) return desiredBlockSize;
+
+		BlockSizePolicy policy = BlockSizePolicy.byDefault();
+		if (expectedLength >= 0) return policy.forLength(expectedLength);
+
+		if (in instanceof SeekableByteChannel)
+		{
+			SeekableByteChannel seekable = (SeekableByteChannel) in;
+			return policy.forLength(seekable.size() - seekable.position());
+		}
+
+		return policy.minimum();
+	}
+
+	private StreamingWriter(Store store)
+	{
+		this.store = store;
+	}
+
+	private final Store store;
+
+	private int desiredBlockSize;
+	private long expectedLength = -1;
+	private int window = 2 * Runtime.getRuntime().availableProcessors();
+	private boolean contentDefined = ContentChunker.byDefault();
+	private ForkJoinPool pool;
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import scala.Option;
+
+import me.footlights.core.Preferences;
+import me.footlights.core.ProgrammerError;
+import me.footlights.core.crypto.Fingerprint;
+
+
+/**
+ * An in-memory block cache with a byte budget.
+ *
+ * Blocks are weighed by their size ({@link ByteBuffer#remaining()}), and when the cache is
+ * over budget, blocks are evicted according to W-TinyLFU:
+ * <ul>
+ *   <li>new blocks enter a small LRU "window" (1% of the budget), which absorbs bursts,</li>
+ *   <li>blocks leaving the window are only admitted to the main space (a segmented LRU) if
+ *       they have been used more often than the block that they would displace, according
+ *       to a compact, aging frequency sketch.</li>
+ * </ul>
+ * This keeps one-off scans (e.g. reading a large file once) from flushing out the blocks that
+ * are used over and over again (e.g. directories).
+ *
+ * Blocks that are {@link #pin pinned} (e.g. those in a {@link Store}'s journal which have not
+ * been flushed yet) are never evicted, even if that puts the cache over budget.
+ *
+ * Lookups are lock-free; recording that a block has been used takes a lock, so if the lock
+ * is busy, the access is simply not recorded (which only makes the policy a little less
+ * accurate).
+ *
+ * Blocks are kept on the heap (as read-only views of the buffers that were stored), but
+ * subclasses can keep them elsewhere by overriding {@link #keep} and {@link #discard}
+ * (see {@link SlabCache}).
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+public class BlockCache extends LocalStore
+{
+	/**
+	 * A cache whose budget is set by the {@code cache.memory.max} preference (in bytes),
+	 * which is kept off the Java heap if {@code cache.memory.offheap} is true.
+	 */
+	public static BlockCache byDefault(Preferences prefs)
+	{
+		long capacity = prefs.getInt("cache.memory.max").get();
+		if (prefs.getBoolean("cache.memory.offheap").get()) return new SlabCache(capacity);
+		else return new BlockCache(capacity);
+	}
+
+	public BlockCache(long capacity)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+
+		this.capacity = capacity;
+		this.windowCapacity = Math.max(1, capacity / 100);
+		this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+		this.sketch = new FrequencySketch(
+			(int) Math.min(Math.max(capacity / TYPICAL_BLOCK, 64), 1 << 22));
+	}
+
+
+	/** How many bytes the cache may hold (other than pinned blocks). */
+	public long capacity() { return capacity; }
+
+	/** How many bytes the cache holds now. */
+	public long weight()
+	{
+		lock.lock();
+		try { return window.weight + probation.weight + protectedQueue.weight; }
+		finally { lock.unlock(); }
+	}
+
+	public long hits() { return hits.get(); }
+	public long misses() { return misses.get(); }
+	public long evictions() { return evictions.get(); }
+
+
+	@Override public Collection<Stat> list()
+	{
+		Collection<Stat> l = new ArrayList<Stat>(data.size());
+		for (Node n : data.values()) l.add(Stat.apply(n.name, n.weight));
+		return l;
+	}
+
+	@Override public boolean contains(Fingerprint name) { return data.containsKey(name); }
+
+	@Override public Option<ByteBuffer> get(Fingerprint name)
+	{
+		Node node = data.get(name);
+		if (node == null)
+		{
+			misses.incrementAndGet();
+			return Option.apply(null);
+		}
+
+		hits.incrementAndGet();
+		if (lock.tryLock())
+		{
+			try { if (node.queue != null) onAccess(node); }
+			finally { lock.unlock(); }
+		}
+
+		return Option.apply(node.bytes.asReadOnlyBuffer());
+	}
+
+	@Override public void put(Fingerprint name, ByteBuffer bytes)
+	{
+		lock.lock();
+		try
+		{
+			// Blocks are named by their content, so there is nothing to update.
+			if (data.containsKey(name)) return;
+
+			sketch.increment(name.hashCode());
+
+			if ((bytes.remaining() > capacity - windowCapacity) && !pins.containsKey(name))
+			{
+				evictions.incrementAndGet();
+				return;
+			}
+
+			Node node = new Node(name, keep(name, bytes));
+			data.put(name, node);
+			window.add(node);
+			evict();
+		}
+		finally { lock.unlock(); }
+	}
+
+	@Override public void pin(Fingerprint name)
+	{
+		lock.lock();
+		try
+		{
+			Integer count = pins.get(name);
+			pins.put(name, (count == null) ? 1 : count + 1);
+		}
+		finally { lock.unlock(); }
+	}
+
+	@Override public void unpin(Fingerprint name)
+	{
+		lock.lock();
+		try
+		{
+			Integer count = pins.get(name);
+			if (count == null) return;
+			if (count > 1) pins.put(name, count - 1);
+			else
+			{
+				pins.remove(name);
+				evict();
+			}
+		}
+		finally { lock.unlock(); }
+	}
+
+	/** Do nothing: blocks in memory are always "flushed". */
+	@Override public void flush() {}
+
+	@Override public String toString()
+	{
+		return getClass().getSimpleName() + " { " + weight() + "/" + capacity + " B, "
+			+ hits() + " hits, " + misses() + " misses, " + evictions() + " evictions }";
+	}
+
+
+	/**
+	 * Keep a copy of (or a reference to) a block's bytes, with the lock held.
+	 *
+	 * @return   a read-only buffer with exactly the block's bytes remaining
+	 */
+	protected ByteBuffer keep(Fingerprint name, ByteBuffer bytes)
+	{
+		return bytes.asReadOnlyBuffer();
+	}
+
+	/** A block has been evicted, so whatever {@link #keep} kept can be released. */
+	protected void discard(Fingerprint name) {}
+
+	/**
+	 * Replace a cached block's bytes (e.g. after moving them), from {@link #keep} or
+	 * {@link #discard}. Buffers that {@link #get} has already returned are unaffected.
+	 */
+	protected final void relocate(Fingerprint name, ByteBuffer bytes)
+	{
+		if (!lock.isHeldByCurrentThread())
+			throw new ProgrammerError("relocate() called without the cache lock");
+
+		Node node = data.get(name);
+		if (node != null) node.bytes = bytes;
+	}
+
+
+	/** Record a use of a block that is in the cache (with the lock held). */
+	private void onAccess(Node node)
+	{
+		sketch.increment(node.name.hashCode());
+
+		if (node.queue == probation)
+		{
+			// A second use: promote to the protected segment, demoting its LRU blocks.
+			probation.remove(node);
+			protectedQueue.add(node);
+
+			while (protectedQueue.weight > protectedCapacity)
+			{
+				Node demoted = protectedQueue.leastRecent();
+				if (demoted == node) break;
+
+				protectedQueue.remove(demoted);
+				probation.add(demoted);
+			}
+		}
+		else node.queue.touch(node);
+	}
+
+	/** Evict blocks until we are within budget (with the lock held). */
+	private void evict()
+	{
+		// Blocks leaving the window must compete with main-space victims for admission.
+		while (window.weight > windowCapacity)
+		{
+			Node candidate = window.leastRecent();
+			window.remove(candidate);
+			probation.add(candidate);
+
+			while (mainWeight() > capacity - windowCapacity)
+			{
+				Node victim = victim(candidate);
+				if (victim == null) break;
+
+				// Pinned blocks are always admitted; otherwise, the more popular block wins.
+				if (!pins.containsKey(candidate.name)
+				    && (sketch.frequency(candidate.name.hashCode())
+				        <= sketch.frequency(victim.name.hashCode())))
+				{
+					remove(candidate);
+					break;
+				}
+
+				remove(victim);
+			}
+		}
+
+		// Unpinned blocks may also have left us over budget.
+		while (window.weight + mainWeight() > capacity)
+		{
+			Node victim = victim(null);
+			if (victim == null) break;
+			remove(victim);
+		}
+	}
+
+	/** The least valuable unpinned block in the main space, other than one to be admitted. */
+	private Node victim(Node exclude)
+	{
+		Node n = leastRecentUnpinned(probation, exclude);
+		return (n != null) ? n : leastRecentUnpinned(protectedQueue, exclude);
+	}
+
+	private Node leastRecentUnpinned(Queue q, Node exclude)
+	{
+		for (Node n = q.leastRecent(); n != null; n = q.next(n))
+			if ((n != exclude) && !pins.containsKey(n.name)) return n;
+
+		return null;
+	}
+
+	private long mainWeight() { return probation.weight + protectedQueue.weight; }
+
+	private void remove(Node node)
+	{
+		node.queue.remove(node);
+		data.remove(node.name);
+		discard(node.name);
+		evictions.incrementAndGet();
+	}
+
+
+	/** A cached block, linked into one of the policy's LRU queues. */
+	private static final class Node
+	{
+		Node(Fingerprint name, ByteBuffer bytes)
+		{
+			this.name = name;
+			this.bytes = bytes;
+			this.weight = (bytes == null) ? 0 : bytes.remaining();
+		}
+
+		final Fingerprint name;
+		final int weight;
+
+		/** Read without the lock (by {@link #get}), so it may only be swapped atomically. */
+		volatile ByteBuffer bytes;
+
+		Queue queue;
+		Node prev;
+		Node next;
+	}
+
+	/** An LRU queue (a doubly-linked list around a sentinel) which knows its total weight. */
+	private static final class Queue
+	{
+		Queue() { head.prev = head.next = head; }
+
+		void add(Node n)
+		{
+			n.prev = head.prev;
+			n.next = head;
+			head.prev.next = n;
+			head.prev = n;
+			n.queue = this;
+			weight += n.weight;
+		}
+
+		void remove(Node n)
+		{
+			n.prev.next = n.next;
+			n.next.prev = n.prev;
+			n.prev = n.next = null;
+			n.queue = null;
+			weight -= n.weight;
+		}
+
+		/** Make a block the most recently used. */
+		void touch(Node n)
+		{
+			remove(n);
+			add(n);
+		}
+
+		Node leastRecent() { return (head.next == head) ? null : head.next; }
+		Node next(Node n) { return (n.next == head) ? null : n.next; }
+
+		long weight;
+		private final Node head = new Node(null, null);
+	}
+
+	/**
+	 * Approximate, aging use counts (a count-min sketch of 4-bit counters).
+	 *
+	 * Once there have been ten times as many increments as the sketch has counters per row,
+	 * all counters are halved, so that popularity fades.
+	 */
+	private static final class FrequencySketch
+	{
+		FrequencySketch(int expectedEntries)
+		{
+			int width = Integer.highestOneBit(expectedEntries - 1) << 1;
+			rowLongs = width / COUNTERS_PER_LONG;
+			table = new long[DEPTH * rowLongs];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		int frequency(int hash)
+		{
+			int min = 0xf;
+			for (int row = 0; row < DEPTH; row++)
+				min = Math.min(min, counter(row, index(hash, row)));
+
+			return min;
+		}
+
+		void increment(int hash)
+		{
+			boolean added = false;
+			for (int row = 0; row < DEPTH; row++)
+			{
+				int i = index(hash, row);
+				int word = row * rowLongs + (i / COUNTERS_PER_LONG);
+				int shift = (i % COUNTERS_PER_LONG) * 4;
+
+				if (((table[word] >>> shift) & 0xf) < 0xf)
+				{
+					table[word] += (1L << shift);
+					added = true;
+				}
+			}
+
+			if (added && (++additions >= sampleSize)) age();
+		}
+
+		private void age()
+		{
+			for (int i = 0; i < table.length; i++)
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+
+			additions /= 2;
+		}
+
+		private int counter(int row, int i)
+		{
+			long word = table[row * rowLongs + (i / COUNTERS_PER_LONG)];
+			return (int) (word >>> ((i % COUNTERS_PER_LONG) * 4)) & 0xf;
+		}
+
+		private int index(int hash, int row)
+		{
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += (h >>> 32);
+			return (int) h & mask;
+		}
+
+		private static final int DEPTH = 4;
+		private static final int COUNTERS_PER_LONG = 16;
+		private static final long[] SEEDS =
+		{
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L,
+		};
+
+		private final long[] table;
+		private final int rowLongs;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+	}
+
+
+	/** Used to size the frequency sketch: we expect about this many bytes per block. */
+	private static final int TYPICAL_BLOCK = 4096;
+
+	private final long capacity;
+	private final long windowCapacity;
+	private final long protectedCapacity;
+
+	private final Map<Fingerprint,Node> data = new ConcurrentHashMap<Fingerprint,Node>();
+
+	/** Guards the policy: the queues, the sketch and the pins. */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Queue window = new Queue();
+	private final Queue probation = new Queue();
+	private final Queue protectedQueue = new Queue();
+	private final FrequencySketch sketch;
+	private final Map<Fingerprint,Integer> pins = new HashMap<Fingerprint,Integer>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+}
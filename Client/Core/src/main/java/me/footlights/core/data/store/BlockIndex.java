@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data.store;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import me.footlights.core.Util;
+import me.footlights.core.crypto.Fingerprint;
+import me.footlights.core.data.FormatException;
+
+
+/**
+ * A checkpoint of a {@link DiskStore}'s index, so that opening the store doesn't require
+ * scanning every segment.
+ *
+ * The checkpoint records where each block was stored (and when it was last used) as of some
+ * point in the log: its "high-water mark". Records after that point must be replayed from the
+ * segments themselves. The file is read in one sequential pass:
+ * <pre>
+ * 6 B   magic ("BIDX\r\n")
+ * 2 B   version
+ * 4 B   high-water mark: segment ID
+ * 8 B   high-water mark: offset of the first record that isn't covered
+ * 4 B   number of entries
+ *       entries:
+ *         2 B   name length (n)
+ *         n B   the block's name (its URN, in ASCII)
+ *         4 B   segment ID
+ *         8 B   offset of the block within the segment
+ *         4 B   block length
+ *         4 B   record length
+ *         8 B   last access (ms since the epoch)
+ * 4 B   CRC-32 of everything above
+ * </pre>
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+final class BlockIndex
+{
+	BlockIndex(int segment, long offset, Map<Fingerprint,Segment.Location> entries)
+	{
+		this.segment = segment;
+		this.offset = offset;
+		this.entries = entries;
+	}
+
+	/**
+	 * Load a checkpoint.
+	 *
+	 * @return   the checkpoint, or null if there isn't one
+	 * @throws FormatException   if the checkpoint is corrupt
+	 */
+	static BlockIndex load(File file) throws IOException
+	{
+		if (!file.exists()) return null;
+
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = f.getChannel();
+			long size = channel.size();
+			if ((size < HEADER_LENGTH + 4) || (size > Integer.MAX_VALUE))
+				throw new FormatException(file + " is not a block index");
+
+			ByteBuffer bytes = channel.map(MapMode.READ_ONLY, 0, size);
+			Util.setByteOrder(bytes);
+
+			ByteBuffer contents = bytes.duplicate();
+			Util.setByteOrder(contents);
+			contents.limit((int) size - 4);
+			CRC32 checksum = new CRC32();
+			Segment.update(checksum, contents);
+			if ((int) checksum.getValue() != bytes.getInt((int) size - 4))
+				throw new FormatException(file + " is corrupt");
+
+			return parse(contents);
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new FormatException(file + " is truncated");
+		}
+		finally { f.close(); }
+	}
+
+	/**
+	 * Save the checkpoint: write a temporary file, sync it and rename it over the old one.
+	 *
+	 * Any record that the checkpoint covers must already be on disk.
+	 */
+	void save(File file) throws IOException
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			CRC32 checksum = new CRC32();
+
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			Util.setByteOrder(buffer);
+			buffer.put(MAGIC).putShort(VERSION)
+				.putInt(segment).putLong(offset).putInt(entries.size());
+
+			for (Map.Entry<Fingerprint,Segment.Location> e : entries.entrySet())
+			{
+				byte[] name = e.getKey().encode().getBytes("ascii");
+				if (buffer.remaining() < name.length + ENTRY_LENGTH + 4)
+					write(channel, buffer, checksum);
+
+				Segment.Location l = e.getValue();
+				buffer.putShort((short) name.length).put(name)
+					.putInt(l.segment).putLong(l.offset)
+					.putInt(l.length).putInt(l.recordLength)
+					.putLong(l.accessed);
+			}
+
+			write(channel, buffer, checksum);
+			buffer.putInt((int) checksum.getValue());
+			buffer.flip();
+			while (buffer.hasRemaining()) channel.write(buffer);
+
+			channel.force(true);
+		}
+		finally { out.close(); }
+
+		if (!tmp.renameTo(file)) throw new IOException("Unable to replace " + file);
+	}
+
+	/** The first segment that needs to be replayed. */
+	final int segment;
+
+	/** Where to start replaying {@link #segment}. */
+	final long offset;
+
+	final Map<Fingerprint,Segment.Location> entries;
+
+
+	private static BlockIndex parse(ByteBuffer bytes) throws IOException
+	{
+		byte[] magic = new byte[MAGIC.length];
+		bytes.get(magic);
+		if (!Arrays.equals(magic, MAGIC) || (bytes.getShort() != VERSION))
+			throw new FormatException("Not a block index");
+
+		int segment = bytes.getInt();
+		long offset = bytes.getLong();
+		int count = bytes.getInt();
+		if (count < 0) throw new FormatException("Invalid block count: " + count);
+
+		// Don't trust the count too far: every entry takes up at least ENTRY_LENGTH bytes.
+		int expected = Math.min(count, bytes.remaining() / ENTRY_LENGTH);
+		Map<Fingerprint,Segment.Location> entries =
+			new HashMap<Fingerprint,Segment.Location>(expected * 4 / 3 + 1);
+
+		byte[] nameBytes = new byte[Segment.MAX_NAME];
+		for (int i = 0; i < count; i++)
+		{
+			int nameLength = bytes.getShort() & 0xffff;
+			if (nameLength > nameBytes.length)
+				throw new FormatException("Invalid name length: " + nameLength);
+
+			bytes.get(nameBytes, 0, nameLength);
+
+			Fingerprint name;
+			try { name = Fingerprint.decode(new String(nameBytes, 0, nameLength, "ascii")); }
+			catch (NoSuchAlgorithmException e) { throw new FormatException(e.toString()); }
+			catch (IllegalArgumentException e) { throw new FormatException(e.toString()); }
+
+			Segment.Location location = new Segment.Location(
+				bytes.getInt(), bytes.getLong(), bytes.getInt(), bytes.getInt());
+			location.accessed = bytes.getLong();
+
+			entries.put(name, location);
+		}
+
+		if (bytes.hasRemaining()) throw new FormatException("Trailing bytes in block index");
+
+		return new BlockIndex(segment, offset, entries);
+	}
+
+	/** Write out a buffer's contents (and add them to the checksum), leaving it clear. */
+	private static void write(FileChannel channel, ByteBuffer buffer, CRC32 checksum)
+		throws IOException
+	{
+		buffer.flip();
+		Segment.update(checksum, buffer);
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+
+	private static final byte[] MAGIC = { 'B', 'I', 'D', 'X', '\r', '\n' };
+	private static final short VERSION = 1;
+
+	/** Magic, version, high-water mark and entry count. */
+	private static final int HEADER_LENGTH = MAGIC.length + 2 + 4 + 8 + 4;
+
+	/** Everything in an entry except the name. */
+	private static final int ENTRY_LENGTH = 2 + 4 + 8 + 4 + 4 + 8;
+
+	private static final int BUFFER_SIZE = 64 << 10;
+}
@@ -17,30 +17,79 @@ package me.footlights.core.data.store;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import scala.Option;
 
+import me.footlights.core.Durability;
 import me.footlights.core.FileBackedPreferences;
+import me.footlights.core.GroupCommit;
 import me.footlights.core.Preferences;
 import me.footlights.core.crypto.Fingerprint;
 import me.footlights.core.data.FormatException;
 
 
-/** A block store on disk */
-public class DiskStore extends LocalStore
+/**
+ * A block store on disk.
+ *
+ * Blocks are appended to large segment files (see {@link Segment}) rather than being written
+ * to a file each, and an in-memory index maps each block's name to where it is stored (and
+ * when it was last used). Listing the store just iterates over the index.
+ *
+ * The index is checkpointed to disk (see {@link BlockIndex}) whenever the log moves on to a new
+ * segment and when the store is closed. Opening the store loads the checkpoint, then replays
+ * the record headers that were appended after it; only the last segment (the one that was
+ * being written to) has its records' checksums verified, and anything after its last good
+ * record is thrown away. Without a usable checkpoint, every segment is replayed. Last-access
+ * times are only saved by checkpoints, so they may be a little out of date after a crash.
+ *
+ * When writes are synced depends on the store's {@link Durability} mode (see
+ * {@link GroupCommit}); in any mode, concurrent writers share fsyncs and {@link #flush()} puts
+ * everything written before it on disk.
+ *
+ * Removing a block just leaves its record behind as dead space. When a segment is mostly dead,
+ * {@link #flush()} (normally called by a background {@link me.footlights.core.Flusher})
+ * copies its live blocks to the end of the log and deletes it. Removal records are not
+ * copied, so a removed block may come back after a restart; since blocks are named by their
+ * content, that costs space but never correctness.
+ *
+ * Blocks used to be stored in a file each; any such files are moved into the log when the
+ * store is opened.
+ */
+public class DiskStore extends LocalStore implements Closeable
 {
 	public static class Builder
 	{
-		public DiskStore build() { return new DiskStore(dir, cache); }
+		public DiskStore build() throws IOException
+		{
+			if (cache == null)
+				cache = Option.apply((LocalStore) BlockCache.byDefault(prefs));
+
+			if (durability == null)
+				durability = Durability.byDefault(prefs);
+
+			return new DiskStore(dir, cache, prefs.getInt("cache.disk.segment").get(),
+				durability, prefs);
+		}
 
 		public Builder setCache(Option<LocalStore> cache)	{ this.cache = cache;	return this; }
 		public Builder setDirectory(File dir)				{ this.dir   = dir;		return this; }
+		public Builder setDurability(Durability d)			{ this.durability = d;	return this; }
 		public Builder setPreferences(Preferences prefs)	{ this.prefs = prefs;	return this; }
 
 		public Builder setDefaultDirectory()
@@ -60,106 +109,490 @@ public class DiskStore extends LocalStore
 			return this;
 		}
 
-		private Builder()
-		{
-			cache = Option.apply((LocalStore) new MemoryStore());
-		}
+		private Builder() {}
 
 		private File dir;
+
+		/** An in-memory {@link BlockCache} by default (null means "the default"). */
 		private Option<LocalStore> cache;
+
+		/** The {@code io.durability} preference by default. */
+		private Durability durability;
 		private Preferences prefs = Preferences.getDefaultPreferences();
 	}
 
 	public static Builder newBuilder() { return new Builder(); }
 
-	private DiskStore(File storageDirectory, Option<LocalStore> cache)
+	private DiskStore(File storageDirectory, Option<LocalStore> cache, long segmentSize,
+			Durability durability, Preferences prefs)
+		throws IOException
 	{
 		super(cache);
 		this.dir = storageDirectory;
+		this.segmentSize = segmentSize;
+		this.commit = GroupCommit.create(durability, prefs, new GroupCommit.Syncer()
+			{
+				// Anything appended before we look at the active segment is in that segment (or
+				// in one which was forced when it stopped being active).
+				@Override public void sync() throws IOException { active.force(); }
+			});
+
+		open();
+	}
+
+
+	/** A live view of the index: listing the store doesn't touch the disk. */
+	@Override
+	public Collection<Stat> list()
+	{
+		return new AbstractCollection<Stat>()
+			{
+				@Override public int size() { return index.size(); }
+				@Override public Iterator<Stat> iterator()
+				{
+					final Iterator<Map.Entry<Fingerprint,Segment.Location>> i =
+						index.entrySet().iterator();
+
+					return new Iterator<Stat>()
+						{
+							@Override public boolean hasNext() { return i.hasNext(); }
+							@Override public Stat next()
+							{
+								Map.Entry<Fingerprint,Segment.Location> e = i.next();
+								Segment.Location l = e.getValue();
+								return Stat.apply(e.getKey(), l.length, l.accessed);
+							}
+
+							@Override public void remove()
+							{
+								throw new UnsupportedOperationException();
+							}
+						};
+				}
+			};
+	}
+
+
+	@Override
+	public void put(Fingerprint name, ByteBuffer buffer) throws IOException
+	{
+		put(name, new ByteBuffer[] { buffer });
 	}
 
 
+	/** Append a block with a gathering write, rather than assembling a contiguous copy first. */
 	@Override
-	public Collection<Stat> list() throws IOException
+	public void put(Fingerprint name, ByteBuffer[] buffers) throws IOException
+	{
+		write(name, buffers);
+	}
+
+
+	/**
+	 * Write a block, as {@link #put} does.
+	 *
+	 * @return   a future which completes when the block is on disk: right away when syncing
+	 *           each write, later in other {@link Durability} modes
+	 */
+	public Future<Void> write(Fingerprint name, ByteBuffer... buffers) throws IOException
+	{
+		long end;
+		synchronized (appendLock)
+		{
+			// If the block is already here, it is as durable as anything before it.
+			end = index.containsKey(name)
+				? commit.appended(0)
+				: append(Segment.BLOCK, name, buffers);
+		}
+
+		return commit.commit(end);
+	}
+
+	public Durability durability() { return commit.mode(); }
+
+
+	/**
+	 * Remove a block from the store.
+	 *
+	 * The space that it took up is reclaimed later, when its segment is compacted.
+	 */
+	public void remove(Fingerprint name) throws IOException
 	{
-		String names[] = dir.list();
+		synchronized (appendLock)
+		{
+			Segment.Location old = index.remove(name);
+			if (old == null) return;
+
+			segments.get(old.segment).addDead(old.recordLength);
+			append(Segment.REMOVED, name, new ByteBuffer[0]);
+		}
+	}
+
 
-		Collection<Stat> l = new ArrayList<Stat>(names.length);
-		for (String name : names)
+	@Override
+	public boolean contains(Fingerprint name) { return index.containsKey(name); }
+
+
+	@Override
+	public Option<ByteBuffer> get(Fingerprint name)
+	{
+		// Compaction may move a block (and close its old segment) while we are reading it.
+		for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++)
 		{
-			name = dir + File.separator + name;
-			File f = new File(name);
-			if (!f.exists())
+			Segment.Location location = index.get(name);
+			if (location == null) return Option.apply(null);
+
+			Segment segment = segments.get(location.segment);
+			if (segment == null) continue;
+
+			try
 			{
-				log.log(Level.SEVERE, "Cached file does not exist: " + name);
-				continue;
+				ByteBuffer bytes = segment.read(location);
+				location.accessed = System.currentTimeMillis();
+				return Option.apply(bytes);
 			}
+			catch (ClosedByInterruptException e) { log.fine("Interrupted reading " + name); }
+			catch (ClosedChannelException e) { continue; }
+			catch (FormatException e) { log.log(Level.WARNING, "Mangled block", e); }
+			catch (IOException e) { log.log(Level.WARNING, "Error reading " + segment, e); }
 
-			try { l.add(Stat.apply(f)); }
-			catch (Exception e) { log.log(Level.WARNING, "Problem with cached file's name", e); }
+			break;
 		}
 
-		return l;
+		return Option.apply(null);
 	}
 
 
+	/** Put everything that has been written so far on disk. */
 	@Override
-	public void put(Fingerprint name, ByteBuffer buffer) throws IOException
+	public void sync() throws IOException { commit.barrier(); }
+
+
+	/**
+	 * Flush any blocks that we are caching and put everything on disk, then compact a segment
+	 * that is mostly dead and (if the log has moved on to a new segment) checkpoint the index.
+	 */
+	@Override
+	public void flush()
 	{
-		FileChannel channel = new FileOutputStream(new File(dir, name.encode())).getChannel();
-		channel.write(buffer.duplicate());
-		channel.force(true);
+		super.flush();
+
+		try { sync(); }
+		catch (IOException e) { log.log(Level.WARNING, "Error syncing " + this, e); }
+
+		try { compact(); }
+		catch (IOException e) { log.log(Level.WARNING, "Error compacting " + this, e); }
+
+		try { if (active.id != checkpointed) checkpoint(); }
+		catch (IOException e) { log.log(Level.WARNING, "Error checkpointing " + this, e); }
 	}
 
 
 	@Override
-	public Option<ByteBuffer> get(Fingerprint name)
+	public void close() throws IOException
+	{
+		checkpoint();
+
+		synchronized (appendLock)
+		{
+			for (Segment s : segments.values()) s.close();
+		}
+	}
+
+	@Override public String toString() { return "DiskStore { " + dir + " }"; }
+
+
+	/** Build the index from a checkpoint and the segments on disk. */
+	private void open() throws IOException
+	{
+		NavigableMap<Integer,File> files = new TreeMap<Integer,File>();
+		Collection<File> legacy = new ArrayList<File>();
+
+		for (File f : dir.listFiles())
+		{
+			Integer id = Segment.parseId(f.getName());
+			if (id != null) files.put(id, f);
+			else if (f.getName().startsWith("urn:")) legacy.add(f);
+		}
+
+		for (int id : files.keySet())
+		{
+			try { segments.put(id, Segment.open(dir, id)); }
+			catch (FormatException e)
+			{
+				// A crash while creating the last segment can leave its header incomplete.
+				if (id != files.lastKey()) throw e;
+
+				log.log(Level.WARNING, "Discarding incomplete segment", e);
+				files.get(id).delete();
+			}
+		}
+
+		BlockIndex checkpoint = restoreCheckpoint();
+		int first = (checkpoint == null) ? 0 : checkpoint.segment;
+
+		Segment.Visitor replay = new Segment.Visitor()
+			{
+				@Override public void visit(byte type, Fingerprint name,
+						Segment.Location location)
+				{
+					if (type == Segment.BLOCK) index.put(name, location);
+					else index.remove(name);
+				}
+			};
+
+		for (Segment segment : segments.tailMap(first, true).values())
+		{
+			boolean last = (segment.id == segments.lastKey());
+			long from = (segment.id == first) && (checkpoint != null)
+				? checkpoint.offset : Segment.HEADER_LENGTH;
+
+			segment.scan(replay, last, from);
+			if (last)
+			{
+				segment.truncate();
+				active = segment;
+			}
+		}
+
+		if (active == null) startSegment();
+		countDeadSpace();
+
+		importBlockFiles(legacy);
+
+		// Don't make the next open replay the same records again.
+		if ((checkpoint == null) ? !index.isEmpty() : (checkpoint.segment != active.id))
+			checkpoint();
+		else checkpointed = active.id;
+	}
+
+	/**
+	 * Load the index checkpoint into {@link #index}, if there is a usable one.
+	 *
+	 * @return   the checkpoint (whose high-water mark says where to start replaying), or null
+	 */
+	private BlockIndex restoreCheckpoint()
+	{
+		BlockIndex checkpoint;
+		try { checkpoint = BlockIndex.load(new File(dir, INDEX)); }
+		catch (IOException e)
+		{
+			log.log(Level.WARNING, "Ignoring unusable block index", e);
+			return null;
+		}
+
+		if (checkpoint == null) return null;
+
+		// Checkpoints only cover what was already on disk, so this should never happen.
+		Segment mark = segments.get(checkpoint.segment);
+		if (segments.isEmpty() || (checkpoint.segment > segments.lastKey())
+		    || ((mark != null) && (checkpoint.offset > mark.size())))
+		{
+			log.warning("Block index is ahead of the log; ignoring it");
+			return null;
+		}
+
+		for (Map.Entry<Fingerprint,Segment.Location> e : checkpoint.entries.entrySet())
+		{
+			// Blocks in segments which have since been compacted were copied after the mark.
+			Segment.Location l = e.getValue();
+			Segment segment = segments.get(l.segment);
+			if ((segment != null) && (l.offset + l.length <= segment.size()))
+				index.put(e.getKey(), l);
+		}
+
+		return checkpoint;
+	}
+
+	/** Count each segment's dead space: everything but the records of blocks in the index. */
+	private void countDeadSpace()
 	{
-		try
+		Map<Integer,Long> live = new HashMap<Integer,Long>();
+		for (Segment.Location l : index.values())
+		{
+			Long bytes = live.get(l.segment);
+			live.put(l.segment, ((bytes == null) ? 0 : bytes) + l.recordLength);
+		}
+
+		for (Segment s : segments.values())
 		{
-			File file = new File(dir, name.encode());
-			long len = file.length();
+			Long bytes = live.get(s.id);
+			s.addDead(s.size() - Segment.HEADER_LENGTH - ((bytes == null) ? 0 : bytes));
+		}
+	}
 
-			if (len <= 0) return Option.apply(null);
-			else if (len > MAX_FILE_SIZE)
+	/**
+	 * Save the index, so that the next {@link #open} only needs to replay the records that are
+	 * appended after now.
+	 */
+	private void checkpoint() throws IOException
+	{
+		synchronized (checkpointLock)
+		{
+			BlockIndex snapshot;
+			long end;
+			synchronized (appendLock)
 			{
-				log.warning("Block is too large to load (" + len + "B, max loadable size is "
-					 + MAX_FILE_SIZE + "B)");
-				return Option.apply(null);
+				snapshot = new BlockIndex(active.id, active.size(),
+					new HashMap<Fingerprint,Segment.Location>(index));
+				end = commit.appended(0);
 			}
 
-			// The file is a valid block, smaller than MAX_FILE_SIZE (so < 2^31).
-			// Read it if it's small, mmap it if it's large.
-			FileChannel channel = new FileInputStream(file).getChannel();
+			// The checkpoint mustn't cover anything that isn't on disk yet.
+			commit.sync(end);
+			snapshot.save(new File(dir, INDEX));
+			checkpointed = snapshot.segment;
+		}
+	}
+
+	/**
+	 * Move blocks from the old one-file-per-block format into the log.
+	 *
+	 * Each file is only deleted once its block is safely on disk.
+	 */
+	private void importBlockFiles(Collection<File> files) throws IOException
+	{
+		if (files.isEmpty()) return;
+		log.info("Importing " + files.size() + " block files into " + this);
 
-			if (len > MAX_READ_SIZE)
-				return Option.apply((ByteBuffer) channel.map(MapMode.READ_ONLY, 0, len));
-			else
+		Collection<File> imported = new ArrayList<File>(files.size());
+		for (File f : files)
+		{
+			try
 			{
-				ByteBuffer buffer = ByteBuffer.allocate((int) len);
-				channel.read(buffer);
-				buffer.rewind();
-				return Option.apply(buffer.asReadOnlyBuffer());
+				Fingerprint name = Fingerprint.decode(f.getName());
+				if (!index.containsKey(name))
+				{
+					FileChannel channel = new FileInputStream(f).getChannel();
+					try
+					{
+						ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+						while (bytes.hasRemaining())
+							if (channel.read(bytes) < 0) break;
+
+						bytes.flip();
+
+						synchronized (appendLock) { append(Segment.BLOCK, name, bytes); }
+					}
+					finally { channel.close(); }
+				}
+
+				imported.add(f);
 			}
+			catch (Exception e) { log.log(Level.WARNING, "Unable to import " + f, e); }
 		}
-		catch(FileNotFoundException e) { log.log(Level.FINE, "Missing block", e); }
-		catch(FormatException e) { log.log(Level.WARNING, "Mangled block", e); }
-		catch(IOException e) { log.log(Level.WARNING, "Error reading file", e); }
 
-		return Option.apply(null);
+		commit.barrier();
+		for (File f : imported) f.delete();
 	}
 
-	@Override public String toString() { return "DiskStore { " + dir + " }"; }
+	private long append(byte type, Fingerprint name, ByteBuffer... buffers) throws IOException
+	{
+		Segment.Location location = active.append(type, name, buffers);
+		location.accessed = System.currentTimeMillis();
+		if (type == Segment.BLOCK) index.put(name, location);
+		else active.addDead(location.recordLength);
+
+		long end = commit.appended(location.recordLength);
+		if (active.size() >= segmentSize) startSegment();
+
+		return end;
+	}
+
+	/** Finish the active segment (if any) and start a new one. */
+	private void startSegment() throws IOException
+	{
+		if (active != null)
+		{
+			active.force();
+			commit.synced(commit.appended(0));
+		}
+
+		int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		Segment segment = Segment.create(dir, id);
+		segments.put(id, segment);
+		active = segment;
+	}
+
+	/** Copy the live blocks out of the deadest segment (if it's dead enough) and delete it. */
+	private void compact() throws IOException
+	{
+		Segment victim = null;
+		for (Segment s : segments.values())
+			if ((s != active) && (s.dead() * 2 > s.size())
+			    && ((victim == null) || (s.dead() > victim.dead())))
+				victim = s;
+
+		if (victim == null) return;
+
+		final Segment old = victim;
+		final long[] copied = { 0 };
+		old.scan(new Segment.Visitor()
+			{
+				@Override public void visit(byte type, Fingerprint name, Segment.Location location)
+					throws IOException
+				{
+					if (type != Segment.BLOCK) return;
+
+					Segment.Location current = index.get(name);
+					if ((current == null) || (current.segment != old.id)
+					    || (current.offset != location.offset))
+						return;
+
+					ByteBuffer bytes = old.read(location);
+					synchronized (appendLock)
+					{
+						// The block may have been removed while we were reading it.
+						if (index.get(name) == current)
+						{
+							copied[0] = append(Segment.BLOCK, name, bytes);
+							index.get(name).accessed = current.accessed;
+						}
+					}
+				}
+			}, false);
+
+		// The copies must be on disk before the originals go away, even in ASYNC mode.
+		commit.sync(copied[0]);
+
+		synchronized (appendLock) { segments.remove(old.id); }
+		old.delete();
+
+		log.fine("Compacted " + old + " (" + old.dead() + " of " + old.size() + " B dead)");
+	}
 
 
-	/** The largest block file that we will open - positive 2s-complement. */
-	private static int MAX_FILE_SIZE = 0x7FFFFFFF;
+	/** Give up on reading a block if it has moved this many times while we were trying. */
+	private static final int MAX_READ_ATTEMPTS = 4;
 
-	/** Files larger than this value will be mmap'ed, rather than read. */
-	private static int MAX_READ_SIZE = (1 << 20);
+	/** The name of the index checkpoint within a store's directory. */
+	private static final String INDEX = "index";
 
 	private static Logger log = Logger.getLogger(DiskStore.class.getCanonicalName());
 
-	/** The directory that we store files in. */
+	/** The directory that we store segments in. */
 	private final File dir;
+
+	/** Start a new segment when the active one is this long. */
+	private final long segmentSize;
+
+	/** Where each block is stored. */
+	private final Map<Fingerprint,Segment.Location> index =
+		new ConcurrentHashMap<Fingerprint,Segment.Location>();
+
+	private final NavigableMap<Integer,Segment> segments =
+		new ConcurrentSkipListMap<Integer,Segment>();
+
+	/** Held while appending to {@link #active} (or replacing it). */
+	private final Object appendLock = new Object();
+	private volatile Segment active;
+
+	/** Counts the bytes appended since the store was opened, and decides when to sync them. */
+	private final GroupCommit commit;
+
+	/** Held while checkpointing the index. */
+	private final Object checkpointLock = new Object();
+
+	/** The segment that the latest checkpoint's high-water mark is in. */
+	private volatile int checkpointed = -1;
 }
@@ -20,6 +20,8 @@ import java.util.Collection;
 
 import scala.Option;
 
+import me.footlights.core.crypto.Fingerprint;
+
 
 /**
  * A store which is in some sense "local" (e.g. in memory, on disk), so the
@@ -37,4 +39,15 @@ public abstract class LocalStore extends Store
 	 * List the blocks that are stored here.
 	 */
 	public abstract Collection<Stat> list() throws IOException;
+
+	/**
+	 * Keep a block (which may not have been stored yet) until it is {@link #unpin unpinned}.
+	 *
+	 * A {@link Store} pins blocks in its cache until they have been flushed. Stores which never
+	 * discard blocks can ignore this; pins are counted, so every pin needs its own unpin.
+	 */
+	public void pin(Fingerprint name) {}
+
+	/** Undo one {@link #pin}. */
+	public void unpin(Fingerprint name) {}
 }
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import me.footlights.core.Util;
+import me.footlights.core.crypto.Fingerprint;
+import me.footlights.core.data.FormatException;
+
+
+/**
+ * One append-only file of block records in a {@link DiskStore}.
+ *
+ * A segment starts with an eight-byte header ("SEGM\r\n" and a two-byte version), followed by
+ * records:
+ * <pre>
+ * 4 B   CRC-32 of the rest of the record
+ * 1 B   type: 'B' (a block) or 'X' (the named block has been removed)
+ * 2 B   name length (n)
+ * 4 B   block length (l, which is 0 for removals)
+ * n B   the block's name (its URN, in ASCII)
+ * l B   the block itself
+ * </pre>
+ *
+ * Segments are only appended to (by one writer at a time), so readers can use positional
+ * reads on the same channel without any locking. A thread that is interrupted during I/O on
+ * a {@link FileChannel} closes it for every other thread, though, so unless the segment
+ * itself has been {@link #close closed}, a channel that is closed under us is replaced: the
+ * interrupted thread gives up, and everybody else tries again.
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+final class Segment implements Closeable
+{
+	static final byte BLOCK = 'B';
+	static final byte REMOVED = 'X';
+
+	/** Where a block is stored. */
+	static final class Location
+	{
+		Location(int segment, long offset, int length, int recordLength)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.recordLength = recordLength;
+		}
+
+		final int segment;
+
+		/** Where the block's bytes start within the segment. */
+		final long offset;
+		final int length;
+
+		/** The length of the whole record (header, name and block). */
+		final int recordLength;
+
+		/**
+		 * When the block was last read or written (ms since the epoch, or 0 if we don't know).
+		 *
+		 * This is kept up to date by the {@link DiskStore}, and only saved in its index.
+		 */
+		volatile long accessed;
+	}
+
+	/** Something that wants to know about each record in a segment. */
+	interface Visitor
+	{
+		void visit(byte type, Fingerprint name, Location location) throws IOException;
+	}
+
+
+	/** The segment with a given ID, or null if the file isn't a segment. */
+	static Integer parseId(String filename)
+	{
+		if (!filename.startsWith(PREFIX) || !filename.endsWith(SUFFIX)) return null;
+
+		String id = filename.substring(PREFIX.length(), filename.length() - SUFFIX.length());
+		try { return Integer.parseInt(id, 16); }
+		catch (NumberFormatException e) { return null; }
+	}
+
+	/** Create a new, empty segment. */
+	static Segment create(File dir, int id) throws IOException
+	{
+		File file = file(dir, id);
+		if (file.exists()) throw new IOException(file + " already exists");
+
+		Segment segment = new Segment(id, file);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		Util.setByteOrder(header);
+		header.put(MAGIC).putShort(VERSION);
+		header.flip();
+
+		while (header.hasRemaining()) segment.channel.write(header);
+		segment.size.set(HEADER_LENGTH);
+
+		return segment;
+	}
+
+	/**
+	 * Open an existing segment, which must then be {@link #scan scanned} unless the caller
+	 * already knows what is in it (and trusts that it is all valid).
+	 */
+	static Segment open(File dir, int id) throws IOException
+	{
+		Segment segment = new Segment(id, file(dir, id));
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		Util.setByteOrder(header);
+		segment.channel.read(header, 0);
+		header.flip();
+
+		byte[] magic = new byte[MAGIC.length];
+		if (header.remaining() == HEADER_LENGTH) header.get(magic);
+		if (!Arrays.equals(magic, MAGIC) || (header.getShort() != VERSION))
+		{
+			segment.close();
+			throw new FormatException(segment.file + " is not a block segment");
+		}
+
+		segment.size.set(segment.channel.size());
+		return segment;
+	}
+
+
+	/**
+	 * Read every record in the segment, stopping at the first one which is incomplete (e.g.
+	 * torn by a crash) or, if we're verifying checksums, corrupt.
+	 *
+	 * @param verify    check every record's CRC (which means reading every block)
+	 * @return          the length of the valid part of the segment
+	 */
+	long scan(Visitor visitor, boolean verify) throws IOException
+	{
+		return scan(visitor, verify, HEADER_LENGTH);
+	}
+
+	/**
+	 * Read the records from a known record boundary onwards, as
+	 * {@link #scan(Visitor,boolean)} does.
+	 */
+	long scan(Visitor visitor, boolean verify, long from) throws IOException
+	{
+		long end = channel.size();
+		long position = from;
+
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + MAX_NAME);
+		Util.setByteOrder(header);
+
+		while (position + RECORD_HEADER <= end)
+		{
+			header.clear();
+			header.limit((int) Math.min(header.capacity(), end - position));
+			while (header.hasRemaining())
+				if (channel.read(header, position + header.position()) < 0) break;
+
+			header.flip();
+			int crc = header.getInt();
+			byte type = header.get();
+			int nameLength = header.getShort() & 0xffff;
+			int length = header.getInt();
+
+			int recordLength = RECORD_HEADER + nameLength + length;
+			if (((type != BLOCK) && (type != REMOVED)) || (nameLength > MAX_NAME)
+			    || (length < 0) || (nameLength > header.remaining())
+			    || (position + recordLength > end) || (position + recordLength < position))
+				break;
+
+			byte[] nameBytes = new byte[nameLength];
+			header.get(nameBytes);
+
+			Fingerprint name;
+			try { name = Fingerprint.decode(new String(nameBytes, "ascii")); }
+			catch (NoSuchAlgorithmException e) { break; }
+			catch (IllegalArgumentException e) { break; }
+
+			long offset = position + RECORD_HEADER + nameLength;
+			if (verify)
+			{
+				CRC32 checksum = new CRC32();
+				header.position(4);
+				header.limit(RECORD_HEADER + nameLength);
+				update(checksum, header);
+				update(checksum, read(offset, length));
+				if ((int) checksum.getValue() != crc) break;
+			}
+
+			visitor.visit(type, name, new Location(id, offset, length, recordLength));
+			position += recordLength;
+		}
+
+		size.set(position);
+		return position;
+	}
+
+	/**
+	 * Append a record (with the caller holding the store's append lock).
+	 *
+	 * @return   where the block was written
+	 */
+	Location append(byte type, Fingerprint name, ByteBuffer[] buffers) throws IOException
+	{
+		byte[] nameBytes = name.encode().getBytes("ascii");
+
+		long length = 0;
+		for (ByteBuffer b : buffers) length += b.remaining();
+		if (length > Integer.MAX_VALUE) throw new IOException("Block too large: " + length);
+
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + nameBytes.length);
+		Util.setByteOrder(header);
+		header.putInt(0).put(type).putShort((short) nameBytes.length).putInt((int) length);
+		header.put(nameBytes);
+
+		CRC32 checksum = new CRC32();
+		header.flip();
+		header.position(4);
+		update(checksum, header);
+		for (ByteBuffer b : buffers) update(checksum, b);
+		header.putInt(0, (int) checksum.getValue());
+		header.rewind();
+
+		ByteBuffer[] record = new ByteBuffer[buffers.length + 1];
+		record[0] = header;
+		for (int i = 0; i < buffers.length; i++) record[i + 1] = buffers[i].duplicate();
+
+		long start = size.get();
+		long recordLength = header.remaining() + length;
+		while (true)
+		{
+			FileChannel c = channel;
+			try
+			{
+				c.position(start);
+				for (long written = 0; written < recordLength; )
+					written += c.write(record);
+
+				break;
+			}
+			catch (ClosedChannelException e)
+			{
+				// Don't leave half a record in the way of the next one.
+				reopen(c).truncate(start);
+				if (e instanceof ClosedByInterruptException) throw e;
+			}
+			catch (IOException e)
+			{
+				c.truncate(start);
+				throw e;
+			}
+
+			header.rewind();
+			for (int i = 0; i < buffers.length; i++) record[i + 1] = buffers[i].duplicate();
+		}
+
+		size.set(start + recordLength);
+		return new Location(id, start + header.capacity(), (int) length, (int) recordLength);
+	}
+
+	/** Read a block: small blocks are copied onto the heap, large ones are mapped. */
+	ByteBuffer read(Location location) throws IOException
+	{
+		if (location.length <= MAX_READ_SIZE)
+			return read(location.offset, location.length).asReadOnlyBuffer();
+
+		while (true)
+		{
+			FileChannel c = channel;
+			try { return c.map(MapMode.READ_ONLY, location.offset, location.length); }
+			catch (ClosedChannelException e) { recover(c, e); }
+		}
+	}
+
+	/** Throw away anything after the last valid record (found by {@link #scan}). */
+	void truncate() throws IOException { channel.truncate(size.get()); }
+
+	/** Make sure that everything appended so far is on disk. */
+	void force() throws IOException
+	{
+		while (true)
+		{
+			FileChannel c = channel;
+			try { c.force(false); return; }
+			catch (ClosedChannelException e) { recover(c, e); }
+		}
+	}
+
+	/** How long the segment is (including records which are no longer live). */
+	long size() { return size.get(); }
+
+	/** How many bytes of this segment are taken up by removed or superseded records. */
+	long dead() { return dead.get(); }
+	void addDead(long bytes) { dead.addAndGet(bytes); }
+
+	/** Throw away a segment (after closing it). */
+	void delete() throws IOException
+	{
+		close();
+		if (!file.delete()) throw new IOException("Unable to delete " + file);
+	}
+
+	@Override public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			closed = true;
+		}
+
+		channel.close();
+	}
+	@Override public String toString() { return file.getName(); }
+
+
+	private Segment(int id, File file) throws IOException
+	{
+		this.id = id;
+		this.file = file;
+		this.channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * Replace a channel that has been closed under us (unless the segment has been closed).
+	 *
+	 * @return   the channel to use now
+	 */
+	private synchronized FileChannel reopen(FileChannel broken) throws IOException
+	{
+		if (closed) throw new ClosedChannelException();
+		if (channel == broken) channel = new RandomAccessFile(file, "rw").getChannel();
+
+		return channel;
+	}
+
+	/** Replace a broken channel; give up if it was our own interrupt that broke it. */
+	private void recover(FileChannel broken, ClosedChannelException e) throws IOException
+	{
+		reopen(broken);
+		if (e instanceof ClosedByInterruptException) throw e;
+	}
+
+	private static File file(File dir, int id)
+	{
+		return new File(dir, PREFIX + String.format("%08x", id) + SUFFIX);
+	}
+
+	private ByteBuffer read(long offset, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+		{
+			FileChannel c = channel;
+			try
+			{
+				if (c.read(buffer, offset + buffer.position()) < 0)
+					throw new FormatException(file + " is truncated");
+			}
+			catch (ClosedChannelException e) { recover(c, e); }
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/** {@link CRC32#update} without disturbing the buffer (which may not have an array). */
+	static void update(CRC32 checksum, ByteBuffer buffer)
+	{
+		if (buffer.hasArray())
+		{
+			checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+				buffer.remaining());
+			return;
+		}
+
+		ByteBuffer b = buffer.duplicate();
+		byte[] chunk = new byte[Math.min(b.remaining(), 8192)];
+		while (b.hasRemaining())
+		{
+			int n = Math.min(chunk.length, b.remaining());
+			b.get(chunk, 0, n);
+			checksum.update(chunk, 0, n);
+		}
+	}
+
+
+	final int id;
+	private final File file;
+	private volatile FileChannel channel;
+	private boolean closed;
+
+	private final AtomicLong size = new AtomicLong();
+	private final AtomicLong dead = new AtomicLong();
+
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".log";
+
+	private static final byte[] MAGIC = { 'S', 'E', 'G', 'M', '\r', '\n' };
+	private static final short VERSION = 1;
+	static final int HEADER_LENGTH = MAGIC.length + 2;
+
+	/** CRC, type, name length and block length. */
+	private static final int RECORD_HEADER = 4 + 1 + 2 + 4;
+
+	/** No block's name (URN) is anywhere near this long. */
+	static final int MAX_NAME = 256;
+
+	/** Blocks larger than this will be mmap'ed, rather than read. */
+	private static final int MAX_READ_SIZE = (1 << 20);
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.footlights.core.data.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.footlights.core.ProgrammerError;
+import me.footlights.core.crypto.Fingerprint;
+import me.footlights.core.data.FormatException;
+import me.footlights.core.data.SizeClass;
+
+
+/**
+ * A {@link BlockCache} which keeps block bytes outside of the Java heap.
+ *
+ * Millions of small heap buffers make for a large old generation and long garbage collection
+ * pauses. This cache copies blocks into large direct-memory "slabs" instead, so the heap only
+ * holds a small index entry (and the eviction policy's bookkeeping) per block.
+ *
+ * Each slab is divided into equal slots of one {@link SizeClass} (geometric classes, so that
+ * no more than a fifth of a slot is wasted); blocks larger than {@link #SLAB_SIZE} get a slab
+ * of their own. Slots are handed out in order and never reused: {@link #get} returns
+ * read-only slices of a slab, which must not change under a reader's feet after the block
+ * has been evicted. Instead, whole slabs are reclaimed: once a full slab is half empty, its
+ * remaining blocks are copied to other slabs and the slab is dropped. Its memory is freed by
+ * the garbage collector once nobody holds slices of it any more, so the direct memory in use
+ * is about twice the cache's budget at most (plus one partly-filled slab per size class).
+ *
+ * @author Jonathan Anderson (jon@footlights.me)
+ */
+public class SlabCache extends BlockCache
+{
+	public SlabCache(long capacity) { super(capacity); }
+
+	/** How much direct memory has been allocated (and not yet dropped) for slabs. */
+	public long allocated() { return allocated; }
+
+
+	@Override protected ByteBuffer keep(Fingerprint name, ByteBuffer bytes)
+	{
+		return copy(name, bytes);
+	}
+
+	@Override protected void discard(Fingerprint name)
+	{
+		long location = index.remove(name);
+		if (location == SlotIndex.ABSENT) return;
+
+		Slab slab = slabs.get(slabId(location));
+		slab.free(slot(location));
+
+		if (slab.isFull() && (slab.live <= slab.slots / 2))
+		{
+			// Move any remaining blocks out of the way and let the slab go.
+			for (int i = 0; i < slab.slots; i++)
+				if (slab.names[i] != null)
+					relocate(slab.names[i], copy(slab.names[i], slab.slice(i)));
+
+			drop(slab);
+		}
+	}
+
+
+	/** Copy a block into the current slab for its size class, recording it in the index. */
+	private ByteBuffer copy(Fingerprint name, ByteBuffer bytes)
+	{
+		int length = bytes.remaining();
+		int slotSize = slotSize(length);
+
+		Slab slab = open.get(slotSize);
+		if (slab == null)
+		{
+			slab = allocate(slotSize);
+			open.put(slotSize, slab);
+		}
+
+		int slot = slab.add(name, bytes);
+		index.put(name, location(slab.id, slot));
+		if (slab.isFull()) open.remove(slotSize);
+
+		return slab.slice(slot);
+	}
+
+	private Slab allocate(int slotSize)
+	{
+		int slots = Math.max(1, Math.min(SLAB_SIZE, SLOTS_PER_SLAB * slotSize) / slotSize);
+		int id = freeIds.isEmpty() ? slabs.size() : freeIds.pop();
+
+		Slab slab = new Slab(id, slotSize, slots);
+		if (id == slabs.size()) slabs.add(slab);
+		else slabs.set(id, slab);
+
+		allocated += slab.memory.capacity();
+		return slab;
+	}
+
+	private void drop(Slab slab)
+	{
+		slabs.set(slab.id, null);
+		freeIds.push(slab.id);
+		allocated -= slab.memory.capacity();
+	}
+
+	/** The size of the slots that a block should be kept in. */
+	private static int slotSize(int length)
+	{
+		if (length > SLAB_SIZE) return length;
+
+		try { return SizeClass.ceiling(length, true); }
+		catch (FormatException e)
+		{
+			throw new ProgrammerError("No size class for a " + length + " B block", e);
+		}
+	}
+
+	private static long location(int slabId, int slot) { return ((long) slabId << 32) | slot; }
+	private static int slabId(long location) { return (int) (location >>> 32); }
+	private static int slot(long location) { return (int) location; }
+
+
+	/** A direct buffer, divided into equal slots which are filled in order. */
+	private static final class Slab
+	{
+		Slab(int id, int slotSize, int slots)
+		{
+			this.id = id;
+			this.slotSize = slotSize;
+			this.slots = slots;
+			this.memory = ByteBuffer.allocateDirect(slotSize * slots);
+			this.names = new Fingerprint[slots];
+			this.lengths = new int[slots];
+		}
+
+		boolean isFull() { return next == slots; }
+
+		int add(Fingerprint name, ByteBuffer bytes)
+		{
+			int slot = next++;
+			ByteBuffer target = memory.duplicate();
+			target.position(slot * slotSize);
+			target.put(bytes.duplicate());
+
+			names[slot] = name;
+			lengths[slot] = bytes.remaining();
+			live++;
+
+			return slot;
+		}
+
+		void free(int slot)
+		{
+			names[slot] = null;
+			live--;
+		}
+
+		/** A read-only view of one slot's block. */
+		ByteBuffer slice(int slot)
+		{
+			ByteBuffer view = memory.asReadOnlyBuffer();
+			view.limit(slot * slotSize + lengths[slot]);
+			view.position(slot * slotSize);
+			return view.slice();
+		}
+
+		final int id;
+		final int slotSize;
+		final int slots;
+		final ByteBuffer memory;
+
+		/** The block in each slot (null if it has been evicted or not filled yet). */
+		final Fingerprint[] names;
+		final int[] lengths;
+
+		int next;
+		int live;
+	}
+
+	/**
+	 * A map from block names to slab locations that doesn't need an entry object (or a boxed
+	 * {@link Long}) per block: an open-addressed table with linear probing.
+	 */
+	private static final class SlotIndex
+	{
+		static final long ABSENT = -1;
+
+		void put(Fingerprint name, long location)
+		{
+			if (2 * (size + 1) > keys.length) resize(2 * keys.length);
+
+			int i = find(name);
+			if (keys[i] == null) size++;
+			keys[i] = name;
+			values[i] = location;
+		}
+
+		long remove(Fingerprint name)
+		{
+			int i = find(name);
+			if (keys[i] == null) return ABSENT;
+
+			long value = values[i];
+			keys[i] = null;
+			size--;
+
+			// Shift later entries in the same run back, so that lookups don't stop early.
+			int mask = keys.length - 1;
+			for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask)
+			{
+				int home = home(keys[j]);
+				boolean movable = (i <= j)
+					? ((home <= i) || (home > j))
+					: ((home <= i) && (home > j));
+
+				if (movable)
+				{
+					keys[i] = keys[j];
+					values[i] = values[j];
+					keys[j] = null;
+					i = j;
+				}
+			}
+
+			return value;
+		}
+
+		/** The slot holding a name, or the empty slot where it belongs. */
+		private int find(Fingerprint name)
+		{
+			int mask = keys.length - 1;
+			int i = home(name);
+			while ((keys[i] != null) && !keys[i].equals(name)) i = (i + 1) & mask;
+			return i;
+		}
+
+		private int home(Fingerprint name)
+		{
+			int h = name.hashCode() * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & (keys.length - 1);
+		}
+
+		private void resize(int capacity)
+		{
+			Fingerprint[] oldKeys = keys;
+			long[] oldValues = values;
+
+			keys = new Fingerprint[capacity];
+			values = new long[capacity];
+			size = 0;
+
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldKeys[i] != null) put(oldKeys[i], oldValues[i]);
+		}
+
+		private Fingerprint[] keys = new Fingerprint[64];
+		private long[] values = new long[64];
+		private int size;
+	}
+
+
+	/** Slabs for blocks up to this size are shared (larger blocks get their own). */
+	static final int SLAB_SIZE = 1 << 20;
+
+	/** Small blocks get slabs with this many slots (so that few bytes sit in open slabs). */
+	private static final int SLOTS_PER_SLAB = 64;
+
+	// All of the following are guarded by the BlockCache's lock (keep() and discard()).
+	private final List<Slab> slabs = new ArrayList<Slab>();
+	private final Deque<Integer> freeIds = new ArrayDeque<Integer>();
+	private final Map<Integer,Slab> open = new HashMap<Integer,Slab>();
+	private final SlotIndex index = new SlotIndex();
+
+	/** Written with the lock held, but readable at any time. */
+	private volatile long allocated;
+}
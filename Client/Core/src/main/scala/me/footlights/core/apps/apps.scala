@@ -16,6 +16,7 @@
 import java.io.{ByteArrayOutputStream, IOException}
 import java.lang.reflect.Method
 import java.nio.ByteBuffer
+import java.nio.channels.ReadableByteChannel
 import java.net.{URI,URL}
 import java.security.AccessControlException
 import java.util.logging.{Level, Logger}
@@ -97,6 +98,9 @@ object AppWrapper {
 			override def save(bytes:ByteBuffer) =
 				footlights save bytes tee { case f:data.File => keychain store f.link }
 
+			override def save(channel:ReadableByteChannel) =
+				footlights save channel tee { case f:data.File => keychain store f.link }
+
 			override def open(name:String) =
 				appRootDir flatMap { footlights openat (name split "/", _) }
 
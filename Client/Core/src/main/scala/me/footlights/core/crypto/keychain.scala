@@ -186,7 +186,7 @@ object Keychain {
 
 				val key = SecretKey.newGenerator
 					.setAlgorithm(secret.getAlgorithm)
-					.setFingerprintAlgorithm(fingerprint.getAlgorithm.getAlgorithm)
+					.setFingerprintAlgorithm(fingerprint.getAlgorithmName)
 					.setBytes(secret.getEncoded)
 					.generate
 				val link = key.createLinkBuilder
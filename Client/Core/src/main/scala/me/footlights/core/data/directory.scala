@@ -190,11 +190,13 @@ class Directory(private val map:Map[String,Entry]) {
 			(size, name, entry.isDir, entry.link)
 		} toSeq
 
+		// Large directories, like large files, use large blocks.
+		val blockSize = BlockSizePolicy.byDefault forLength (entryBytes map { _._1.toLong } sum)
 
 		// Build content blocks in reverse order, adding entries until they are full.
 		var ciphertext = List[EncryptedBlock]()
 		var blocks = List(
-			Block.newBuilder setDesiredSize BlockSize addContent Directory.Terminator.toArray
+			Block.newBuilder setDesiredSize blockSize addContent Directory.Terminator.toArray
 		)
 
 		def createNewBlock = {
@@ -204,7 +206,7 @@ class Directory(private val map:Map[String,Entry]) {
 			// The first link is to the next block.
 			val b =
 				Block.newBuilder
-					.setDesiredSize(BlockSize)
+					.setDesiredSize(blockSize)
 					.addContent(Directory.Magic toArray)
 					.addLink(encrypted.link)
 
@@ -222,7 +224,8 @@ class Directory(private val map:Map[String,Entry]) {
 		// Future work.
 		var current = blocks.head
 		entryBytes.reverseIterator foreach { case Tuple4(size, name, isDir, link) =>
-			if (size > current.remaining) current = createNewBlock
+			if ((size > current.remaining) || (current.linksRemaining == 0))
+				current = createNewBlock
 
 			if (name.length > (Short.MaxValue / 2))
 				throw new FormatException("Name too long (%d B): '%s[...]'" format (
@@ -241,8 +244,6 @@ class Directory(private val map:Map[String,Entry]) {
 
 		current.build.encrypt :: ciphertext
 	}
-
-	private val BlockSize = 4096   // TODO: something more generic
 }
 
 object Directory {
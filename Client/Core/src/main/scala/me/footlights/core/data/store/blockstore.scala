@@ -40,12 +40,29 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 	@throws(classOf[java.io.IOException])
 	protected def put(name:Fingerprint, bytes:ByteBuffer)
 
+	/**
+	 * Put a block that is made up of several buffers (e.g. {@link Block#getByteBuffers}).
+	 *
+	 * Stores that can do gathering writes should override this; by default, we assemble the
+	 * buffers into one contiguous copy.
+	 */
+	@throws(classOf[java.io.IOException])
+	protected def put(name:Fingerprint, buffers:Array[ByteBuffer]): Unit =
+		put(name, Store gather buffers)
+
 	protected def get(name:Fingerprint): Option[ByteBuffer]
 
+	/**
+	 * Does this store already hold a block?
+	 *
+	 * Subclasses should override this if they can answer without retrieving the block.
+	 */
+	def contains(name:Fingerprint): Boolean = get(name).isDefined
+
 	if (cache == null) throw new NullPointerException("null cache")
 	if (cache.isDefined && cache.get == null) throw new NullPointerException("null cache")
 
-	def store(block:Block): Unit = store(block.name, block.getBytes)
+	def store(block:Block): Unit = store(block.name, block.getByteBuffers)
 	def store(block:EncryptedBlock): Unit = store(block.name, block.ciphertext)
 	def store(blocks:Iterable[EncryptedBlock]): Unit = {
 		blocks foreach { store(_) }
@@ -72,15 +89,12 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 	 */
 	def listBlocks:Iterable[Stat] = cache map { _.list } flatten
 
-	/** Retrieve a stored (and encrypted) {@link File}. */
-	def fetch(link:Link):Option[File] = {
-		val encryptedHeader = retrieveCiphertext(link)
-		encryptedHeader map { _.plaintext } map {
-			_.links map retrieveCiphertext
-		} filter { _.size > 0 } filter { _ forall { _.isDefined } } map { _.flatten } map {
-			File.from(encryptedHeader.get, _)
-		}
-	}
+	/**
+	 * Retrieve a stored (and encrypted) {@link File}.
+	 *
+	 * Only the header is retrieved now; content blocks are retrieved as the file is read.
+	 */
+	def fetch(link:Link):Option[File] = retrieveCiphertext(link) map { File.open(_, this) }
 
 	/** Retrieve a stored {@link Directory}. */
 	def fetchDirectory(link:Link):Either[Exception,Directory] = {
@@ -103,19 +117,39 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 	/**
 	 * If we have a cache, this method should not block for I/O. To ensure that the block has
 	 * really been written to disk, the network, etc., call {@link #flush()}.
+	 *
+	 * Blocks are named by their content, so a block that is already present (e.g. one with
+	 * deterministic padding that has been stored before) is not written again.
 	 */
-	private def store(name:Fingerprint, bytes:ByteBuffer): Unit =
+	private def store(name:Fingerprint, bytes:ByteBuffer): Unit = store(name, Array(bytes))
+
+	private def store(name:Fingerprint, buffers:Array[ByteBuffer]): Unit =
 		cache map { c =>
-			c.store(name, bytes.asReadOnlyBuffer)
-			synchronized {
+			// Blocks must stay in the cache until they have been flushed: every block in the
+			// journal holds exactly one pin, which flush() releases.
+			c pin name
+			c.store(name, buffers map { _.asReadOnlyBuffer })
+
+			val added = synchronized {
+				val added = !(journal contains name)
 				journal += name
 				notify
+				added
 			}
+
+			if (!added) c unpin name
 		} orElse {
-			put(name, bytes.asReadOnlyBuffer)
+			if (!alreadyHolds(name)) put(name, buffers map { _.asReadOnlyBuffer })
 			None
 		}
 
+	/**
+	 * Do we already hold a block? Only deterministically-padded blocks recur, so with random
+	 * padding we don't ask (which, for a remote store, would cost a round trip per block).
+	 */
+	private def alreadyHolds(name:Fingerprint) =
+		Block.deterministicPaddingByDefault && contains(name)
+
 
 	/** Wait until we have something to flush. */
 	override def await = {
@@ -123,6 +157,15 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 		synchronized { while (journal.isEmpty) wait() }
 	}
 
+	/**
+	 * Make everything that has been {@link #put} so far durable.
+	 *
+	 * Stores which acknowledge writes before they are durable (e.g. a {@link DiskStore} that
+	 * doesn't sync each write) should override this.
+	 */
+	@throws(classOf[java.io.IOException])
+	def sync(): Unit = {}
+
 	/** Flush any stored blocks to disk/network, blocking until all I/O is complete. */
 	override def flush = while (journal.size > 0) {
 		val toFlush = synchronized { journal }
@@ -136,7 +179,11 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 					new Exception("Cache inconsistency! %s not in cache %s" format (name, cache))
 				}
 			} flatMap { bytes =>
-				try { put(name, bytes); Right(name) }
+				try {
+					if (alreadyHolds(name)) log finer { "%s already holds %s" format (this, name) }
+					else put(name, bytes)
+					Right(name)
+				}
 				catch { case e:IOException => Left(e) }
 			}
 		}
@@ -144,8 +191,17 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 		for (Left(ex) <- flushResults) log log (WARNING, "Error flushing block store", ex)
 		var flushed = flushResults collect { case Right(name) => name}
 
+		// Blocks can only leave the journal (and be unpinned) once they are durable.
+		try sync
+		catch {
+			case e:IOException =>
+				log log (WARNING, "Error syncing block store", e)
+				flushed = Set()
+		}
+
 		synchronized {
 			journal --= flushed
+			cache foreach { c => flushed foreach c.unpin }
 			log fine "%s: flushed %d blocks, %d remain".format(this, flushed size, journal size)
 
 			if (journal.isEmpty) resetTimeout
@@ -165,13 +221,27 @@ abstract class Store protected(cache:Option[LocalStore]) extends me.footlights.c
 	private val log = java.util.logging.Logger getLogger classOf[Store].getCanonicalName
 }
 
+object Store {
+	/** Assemble several buffers into one (without copying if there is only one buffer). */
+	def gather(buffers:Array[ByteBuffer]) = buffers match {
+		case Array(single) => single
+		case _ =>
+			val all = ByteBuffer allocate { buffers map { _.remaining } sum }
+			buffers foreach { b => all put b.duplicate }
+			all.flip
+			all
+	}
+}
+
 
 
-/** A block store in memory. */
+/** A block store in memory (safe for concurrent readers, e.g. {@link File} read-ahead). */
 class MemoryStore extends LocalStore {
-	val blocks = collection.mutable.Map[Fingerprint,ByteBuffer]()
+	val blocks:collection.mutable.Map[Fingerprint,ByteBuffer] =
+		new java.util.concurrent.ConcurrentHashMap[Fingerprint,ByteBuffer]
 
 	override def put(name:Fingerprint, bytes:ByteBuffer) = blocks.put(name, bytes)
+	override def contains(name:Fingerprint) = blocks contains name
 	override def get(name:Fingerprint) = blocks.get(name) map { _.asReadOnlyBuffer }
 
 	override def list = for ((name,bytes) <- blocks) yield Stat(name, bytes.remaining)
@@ -209,11 +279,26 @@ class CASClient private[store](
 		}
 	}
 
-	override protected[store] def put(name:Fingerprint, bytes:ByteBuffer) = {
+	/** Ask the CAS whether it already has a block, without downloading it. */
+	override def contains(name:Fingerprint) =
+		downloadUrl(name) map { _.openConnection } collect { case http:HttpURLConnection =>
+			try {
+				http setRequestMethod "HEAD"
+				http.getResponseCode == HttpURLConnection.HTTP_OK
+			} catch {
+				case e:IOException => false
+			} finally http.disconnect
+		} getOrElse false
+
+	override protected[store] def put(name:Fingerprint, bytes:ByteBuffer):Unit =
+		put(name, Array(bytes))
+
+	/** Upload a block, writing its buffers straight to the connection (no contiguous copy). */
+	override protected[store] def put(name:Fingerprint, buffers:Array[ByteBuffer]):Unit = {
 		if (uploadKey.isEmpty) throw new IOException("No upload key set")
 
 		val textFields = Map("AUTHENTICATOR" -> uploadKey.get, "EXPECTED_NAME" -> name.encode)
-		val files = Map("upload" -> bytes)
+		val files = Map("upload" -> buffers)
 
 		val CRLF = "\r\n"
 		val boundary = "CASClientMIMEBoundary"
@@ -239,7 +324,7 @@ class CASClient private[store](
 			writer.flush
 		}
 
-		files foreach { case (name, bytes) =>
+		files foreach { case (name, buffers) =>
 			List(
 				boundaryLine,
 				"""Content-Disposition: form-data; name="FILE_CONTENTS"; """ +
@@ -251,13 +336,10 @@ class CASClient private[store](
 			) foreach { writer append _ append CRLF }
 			writer.flush
 
-			val copy = bytes.asReadOnlyBuffer
-			val buffer = new Array[Byte](math.min(4096, copy.remaining))
-			while (copy.hasRemaining) //binaryChannel write copy
-			{
-				val count = math.min(copy.remaining, buffer.length)
-				copy.get(buffer, 0, count)
-				out.write(buffer, 0, count)
+			val binaryChannel = Channels newChannel out
+			for (b <- buffers) {
+				val copy = b.asReadOnlyBuffer
+				while (copy.hasRemaining) binaryChannel write copy
 			}
 			out.flush
 
@@ -16,7 +16,7 @@
 import java.io.IOException
 import java.net.URI
 import java.nio.ByteBuffer
-import java.nio.channels.Channels
+import java.nio.channels.{Channels,ReadableByteChannel}
 
 import scala.collection.JavaConversions._
 
@@ -25,7 +25,7 @@ import me.footlights.api.support.Either._
 import me.footlights.core.{Footlights,HasBytes,IO}
 import me.footlights.core.crypto.{Fingerprint,Link,MutableKeychain}
 import me.footlights.core.data
-import me.footlights.core.data.{Directory,File}
+import me.footlights.core.data.{Directory,File,StreamingWriter}
 
 
 package me.footlights.core.data.store {
@@ -120,6 +120,17 @@ trait Filesystem extends Footlights {
 	override def save(data:ByteBuffer):Either[Exception,api.File] =
 		save { File.newBuilder.setContent(data).freeze }
 
+	/**
+	 * Save the content of a channel to a {@link File}, encrypting and storing blocks as the
+	 * data arrive (rather than reading everything into memory first).
+	 */
+	override def save(data:ReadableByteChannel):Either[Exception,api.File] =
+		try {
+			val link = StreamingWriter newWriter store write data
+			log fine { "streamed '%s'" format link }
+			open(link)
+		} catch { case ex:Exception => Left(ex) }
+
 	/** Save a {@link File} that has already been generated to the {@link Store}. */
 	def save(file:File) = {
 		store store file.toSave
@@ -193,13 +204,20 @@ trait Filesystem extends Footlights {
 	private val log = java.util.logging.Logger getLogger classOf[Filesystem].getCanonicalName
 }
 
-class Stat(val name: Fingerprint, val length: Long) {
+/**
+ * What we know about a stored block.
+ *
+ * @param accessed   when the block was last read or written (ms since the epoch), or 0 if the
+ *                   store doesn't know
+ */
+class Stat(val name: Fingerprint, val length: Long, val accessed: Long = 0) {
 	override val toString = "File '%s' (%d B)" format (name, length)
 }
 
 object Stat {
 	def apply(f:java.io.File) = new Stat(Fingerprint.decode(f.getName), f.length())
 	def apply(name:Fingerprint, length:Long) = new Stat(name, length)
+	def apply(name:Fingerprint, length:Long, accessed:Long) = new Stat(name, length, accessed)
 }
 
 }
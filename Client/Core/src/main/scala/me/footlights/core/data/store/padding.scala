@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.FileInputStream
+import java.util.logging.Level._
+import java.util.logging.Logger
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+import me.footlights.core.{FileBackedPreferences,Preferences}
+import me.footlights.core.crypto.{Fingerprint,Keychain,Link}
+import me.footlights.core.data.SizeClass
+
+
+package me.footlights.core.data.store {
+
+/**
+ * How much of the blocks in a {@link LocalStore} is padding.
+ *
+ * Blocks are stored encrypted, so we can only look inside the ones that we have keys for:
+ * those whose links we are given and those that they link to (transitively). Other blocks
+ * are only counted.
+ */
+class PaddingReport private[store] (
+		val blocks:Int, val bytes:Long,
+		val readable:Int, val readableBytes:Long, val padding:Long,
+		val geometricBytes:Long) {
+
+	/** The fraction of readable bytes that are padding. */
+	def overhead = fraction(padding, readableBytes)
+
+	/** The fraction of readable bytes that would be padding with geometric size classes. */
+	def geometricOverhead = fraction(geometricBytes - (readableBytes - padding), geometricBytes)
+
+	override def toString =
+		("%d blocks (%d B) stored, %d readable (%d B)\n" +
+			"  padding:                         %d B (%.1f%%)\n" +
+			"  padding with geometric classes:  %d B (%.1f%%)") format (
+				blocks, bytes, readable, readableBytes,
+				padding, 100 * overhead,
+				geometricBytes - (readableBytes - padding), 100 * geometricOverhead)
+
+	private def fraction(part:Long, whole:Long) =
+		if (whole == 0) 0.0 else part.toDouble / whole
+}
+
+object PaddingReport {
+	/** Measure the blocks in a store that can be reached from some {@link Link}s. */
+	def apply(store:LocalStore, roots:Iterable[Link]): PaddingReport = {
+		val stats = store.list
+
+		var (readable, readableBytes, padding, geometric) = (0, 0L, 0L, 0L)
+		val seen = mutable.Set[Fingerprint]()
+		val pending = mutable.Stack[Link]() pushAll roots
+
+		while (!pending.isEmpty) {
+			val link = pending.pop
+			if (seen add link.fingerprint) store retrieve link.fingerprint foreach { ciphertext =>
+				try {
+					val block = link decrypt ciphertext
+					val unpadded = block.bytes - block.paddingBytes
+
+					readable += 1
+					readableBytes += block.bytes
+					padding += block.paddingBytes
+					geometric += SizeClass.ceiling(unpadded, true)
+
+					pending pushAll block.links
+				} catch {
+					case e:Exception => log.log(FINE, "Unable to decrypt " + link.fingerprint, e)
+				}
+			}
+		}
+
+		new PaddingReport(stats.size, stats.map { _.length }.sum,
+			readable, readableBytes, padding, geometric)
+	}
+
+	/**
+	 * Report on the local block cache (or another directory of blocks), using keys from the
+	 * local keychain.
+	 *
+	 * Usage: {@code PaddingReport [block directory]}
+	 */
+	def main(args:Array[String]) {
+		val prefs = Preferences.create(Option(FileBackedPreferences.loadFromDefaultLocation))
+
+		val dir = args.headOption orElse { prefs getString FileBackedPreferences.CACHE_DIR_KEY }
+		val store = DiskStore.newBuilder
+			.setCache(None)
+			.setDirectory(new java.io.File(dir get))
+			.build
+
+		val keychain = prefs getString FileBackedPreferences.KEYCHAIN_KEY map {
+				new java.io.File(_) } filter { _.exists } map { f =>
+				Keychain.importKeyStore(new FileInputStream(f).getChannel)
+			} getOrElse Keychain()
+
+		println(apply(store, store.list flatMap { keychain getLink _.name }))
+	}
+
+	private val log = Logger getLogger classOf[PaddingReport].getCanonicalName
+}
+
+}
@@ -15,6 +15,7 @@
  */
 import java.io.{FileOutputStream}
 import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 
 import java.util.logging.{Level,Logger}
 
@@ -64,19 +65,89 @@ object Flusher
 			wait = () => target.synchronized { target.wait }
 		)
 
-	def apply(target:HasBytes, filename:java.io.File):Flusher = apply(
+	/**
+	 * Save an object's bytes to a file whenever it changes.
+	 *
+	 * Unless the durability mode is {@link Durability#SYNC_EACH}, changes are gathered up for
+	 * one group commit window ({@code io.commit.interval}) before saving.
+	 */
+	def apply(target:HasBytes, filename:java.io.File,
+			durability:Durability = Durability byDefault Preferences.getDefaultPreferences)
+			:Flusher = apply(
 			name = target.getClass().getSimpleName() + " => " + filename.getCanonicalFile(),
-			flush = () => {
-				val tmp = java.io.File.createTempFile("tmp-", "", filename.getParentFile)
+			flush = () => save(filename, durability) { _ write target.getBytes },
+			wait = () => {
+				target.synchronized { target.wait }
+				if (durability != Durability.SYNC_EACH) Thread sleep commitInterval()
+			}
+		)
 
-				val s = new FileOutputStream(tmp)
-				s.getChannel.write(target.getBytes)
-				s.close
+	/**
+	 * Replace a file's contents atomically: write a temporary file, sync it (unless the
+	 * durability mode is {@link Durability#ASYNC}) and rename it over the original.
+	 */
+	def save(file:java.io.File, durability:Durability)(write:FileChannel => Any) = {
+		val tmp = java.io.File.createTempFile("tmp-", "", file.getParentFile)
 
-				tmp renameTo filename
-			},
-			wait = () => { Thread sleep 500; target.synchronized { target.wait } }
-		)
+		val s = new FileOutputStream(tmp)
+		try {
+			write(s.getChannel)
+			if (durability != Durability.ASYNC) s.getChannel force true
+		} finally s.close
+
+		tmp renameTo file
+	}
+
+	/** How long to gather up changes for (in ms) when not syncing each one. */
+	private[core] def commitInterval(prefs:Preferences = Preferences.getDefaultPreferences):Long =
+		(prefs getInt "io.commit.interval" get).longValue
+}
+
+
+/**
+ * Saves snapshots of something (e.g. the keychain) as it changes, according to a
+ * {@link Durability} mode.
+ *
+ * With {@link Durability#SYNC_EACH}, every snapshot is saved before {@link #apply} returns.
+ * Otherwise, snapshots are saved (using {@link GroupCommit}'s window) on another thread, and
+ * only the latest snapshot in each window is saved; {@link #flush} saves it right away.
+ * A snapshot that fails to save stays the latest until it is replaced or saved.
+ */
+class SnapshotSaver[T](durability:Durability, prefs:Preferences)(save:T => Any)
+	extends java.io.Flushable {
+
+	/** Save a new snapshot (now or later). */
+	def apply(snapshot:T) = commit.commit {
+		synchronized {
+			latest = Some(snapshot)
+			commit appended 1
+		}
+	}
+
+	/** Save the latest snapshot, if it hasn't been saved already. */
+	override def flush = commit.barrier
+
+	private val commit = GroupCommit.create(
+		if (durability == Durability.SYNC_EACH) durability else Durability.GROUP_COMMIT,
+		prefs,
+		new GroupCommit.Syncer {
+			override def sync = {
+				val snapshot = SnapshotSaver.this.synchronized { latest }
+				snapshot foreach { s =>
+					try save(s)
+					catch {
+						case e:java.io.IOException => throw e
+						case e:Exception =>
+							throw new java.io.IOException("Unable to save " + s, e)
+					}
+				}
+
+				// Don't forget about a newer snapshot that arrived while we were saving.
+				SnapshotSaver.this.synchronized { if (latest eq snapshot) latest = None }
+			}
+		})
+
+	private var latest:Option[T] = None
 }
 
 }
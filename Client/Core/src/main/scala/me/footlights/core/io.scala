@@ -63,6 +63,12 @@ class IO(proxy:java.net.Proxy) {
 			}
 		}
 
+	/** Open a {@link java.io.File} for streaming (e.g. to {@link Footlights#save}). */
+	def reader(file:java.io.File): Either[Exception,ReadableByteChannel] =
+		if (!file.exists) Left(new IllegalArgumentException("%s does not exist" format file))
+		else try Right(new FileInputStream(file).getChannel)
+		catch { case ex:java.io.IOException => Left(ex) }
+
 	def writer(file:java.io.File) = new FileOutputStream(file).getChannel
 
 
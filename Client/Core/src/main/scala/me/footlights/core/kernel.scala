@@ -126,11 +126,22 @@ object Kernel {
 				}
 			} else Keychain()
 
-		val keychain = new MutableKeychain(keystore, (k:Keychain) => security.Privilege.sudo { () =>
-				val tmp = java.io.File.createTempFile("tmp-", "", keychainFile.getParentFile)
-				k exportKeyStore { new FileOutputStream(tmp) getChannel }
-				tmp renameTo keychainFile
+		val durability = Durability byDefault prefs
+		val saveKeychain = new SnapshotSaver[Keychain](durability, prefs)({ k =>
+				security.Privilege.sudo { () =>
+					Flusher.save(keychainFile, durability) { c => k exportKeyStore c }
+				}
 			})
+		val keychain = new MutableKeychain(keystore, saveKeychain(_))
+
+		// The latest keychain may still be waiting for its group commit window.
+		Runtime.getRuntime addShutdownHook new Thread("Save keychain") {
+			override def run =
+				try saveKeychain.flush
+				catch {
+					case e:java.io.IOException => log.log(SEVERE, "Error saving keychain", e)
+				}
+		}
 
 		val apps = new mutable.HashMap[URI,AppWrapper]
 		val uis = new mutable.HashSet[UI]
@@ -127,7 +127,22 @@ class Preferences(engine:Option[PreferenceStorageEngine])
 
 	private val defaultPrefs =
 		cryptoDefaults(security.CryptoBackend.get) +
+		("cache.memory.max" -> (64 << 20).toString) +
+		("cache.disk.segment" -> (64 << 20).toString) +
+		("cache.memory.offheap" -> "false") +
+		("io.durability" -> "sync_each") +
+		("io.commit.interval" -> "200") +
+		("io.commit.bytes" -> (8 << 20).toString) +
 		("init.setup" -> "http://footlights.me/settings/cas.json") +
+		("data.blocksize.blocks" -> "64") +
+		("data.blocksize.max" -> (1 << 20).toString) +
+		("data.blocksize.min" -> "4096") +
+		("data.chunking" -> "fixed") +
+		("data.compression" -> "none") +
+		("data.padding" -> "random") +
+		("data.padding.key" -> "footlights") +
+		("data.readahead" -> "4") +
+		("data.sizeclasses" -> "binary") +
 		("home" -> homeDir)
 
 	private val defaults = PreferenceStorageEngine wrap defaultPrefs
@@ -144,7 +159,8 @@ class Preferences(engine:Option[PreferenceStorageEngine])
 			("crypto.sym.keylen"     -> "256"),
 			("crypto.sym.padding"    -> "NOPADDING"),
 			("crypto.sig.algorithm"  -> "SHA256withRSA"),
-			("crypto.cert.validity"  -> (60 * 60 * 24 * 3650).toString)
+			("crypto.cert.validity"  -> (60 * 60 * 24 * 3650).toString),
+			("crypto.threads"        -> Runtime.getRuntime.availableProcessors.toString)
 		)
 
 		// Find a reasonable default symmetric cipher and mode.
@@ -303,13 +319,19 @@ final class FileBackedPreferences(properties:java.util.Properties, configFile:ja
 	def set[T](key:String, value:T):FileBackedPreferences = set(key, value.toString)
 
 	// Flushable implementation
-	override def await = synchronized { while (!dirty) wait() }
+	override def await = {
+		synchronized { while (!dirty) wait() }
+		if (durability != Durability.SYNC_EACH) Thread sleep { Flusher commitInterval settings }
+	}
+
 	override def flush = synchronized {
 		if (dirty) {
 			val comment = "Configuration options, auto-saved " +
 					java.text.DateFormat.getDateInstance().format(new java.util.Date())
 
-			properties.store(new java.io.FileOutputStream(configFile), comment)
+			Flusher.save(configFile, durability) { c =>
+				properties.store(java.nio.channels.Channels newOutputStream c, comment)
+			}
 			dirty = false
 		}
 	}
@@ -325,6 +347,10 @@ final class FileBackedPreferences(properties:java.util.Properties, configFile:ja
 
 	/** Have any options changed? */
 	private var dirty = false
+
+	/** Our own settings (e.g. io.durability) decide how hard we try to save them. */
+	private def settings = new Preferences(Option(this))
+	private def durability = Durability byDefault settings
 }
 
 final object FileBackedPreferences {
@@ -16,6 +16,7 @@
 import java.security.{AccessController, PrivilegedActionException, PrivilegedExceptionAction}
 import java.net.URI
 import java.nio.ByteBuffer
+import java.nio.channels.ReadableByteChannel
 
 import me.footlights.api.{Directory,File,KernelInterface}
 import me.footlights.core
@@ -41,6 +42,8 @@ trait KernelPrivilege extends Footlights {
 	abstract override def openat(path:Iterable[String], base:core.data.Directory) =
 		Privilege.sudo { () => super.openat(path, base) }
 	abstract override def save(data:ByteBuffer)    = Privilege.sudo { () => super.save(data) }
+	abstract override def save(data:ReadableByteChannel) =
+		Privilege.sudo { () => super.save(data) }
 	abstract override def saveLocalFile(f:File)    = Privilege.sudo { () => super.saveLocalFile(f) }
 	abstract override def promptUser(prompt:String, title:String, default:Option[String]) =
 		Privilege.sudo { () => super.promptUser(prompt, title, default) }
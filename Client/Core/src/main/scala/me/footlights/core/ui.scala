@@ -15,7 +15,7 @@
  */
 import java.net.URI
 import java.nio.ByteBuffer
-import java.nio.channels.Channels
+import java.nio.channels.{Channels,ReadableByteChannel}
 import java.util.logging.Logger
 
 import javax.swing
@@ -105,6 +105,12 @@ trait UIManager extends Footlights {
 		f
 	}
 
+	abstract override def save(data:ReadableByteChannel) = {
+		val f = super.save(data)
+		f map { new UI.FileSavedEvent(_) } map fire
+		f
+	}
+
 	abstract override def loadApplication(uri:URI) = {
 		val wrapper = super.loadApplication(uri)
 		wrapper map { new AppLoadedEvent(_) } foreach fire
@@ -160,7 +166,10 @@ trait SwingPowerboxes extends Footlights {
 			case _ => Left[Exception,java.io.File](new CanceledException)
 		}
 
-		filename flatMap io.read flatMap save
+		filename flatMap io.reader flatMap { in =>
+			try save(in)
+			finally in.close
+		}
 	}
 
 	override def saveLocalFile(file:me.footlights.api.File):Either[Exception,api.File] = {
@@ -94,6 +94,86 @@ public class FingerprintTest
 		testVectors(builder,testVectors);
 	}
 
+	/** BLAKE2b (from BouncyCastle) is a first-class naming algorithm. */
+	@Test public void testBLAKE2b256() throws Throwable
+	{
+		Fingerprint.Builder builder = Fingerprint.newBuilder()
+			.setAlgorithm("blake2b-256");
+
+		String[][] testVectors =
+		{
+			{ "", "0e5751c026e543b2e8ab2eb06099daa1d1e5df47778f7787faab45cdf12fe3a8" },
+			{ "d3", "c8fcb506e3c408ddb06199ea4e360f838fa34eae48e7cc27c67942287281bf15" },
+			{ "616263", "bddd813c634239723171ef3fee98579b94964e3bb1cb3e427262c8c068d52319" },
+		};
+
+		testVectors(builder,testVectors);
+
+		Fingerprint f = builder.setContent(new byte[] { 1, 2, 3 }).build();
+		assertTrue(f.encode().startsWith("urn:blake2b-256:"));
+		assertEquals(f, Fingerprint.decode(f.encode()));
+		assertEquals(32, f.getAlgorithm().getDigestLength());
+	}
+
+	/** Only algorithms with fixed identifiers are well-known; aliases aren't. */
+	@Test public void testWellKnownAlgorithms()
+	{
+		assertTrue(Fingerprint.isWellKnownAlgorithm("sha-256"));
+		assertTrue(Fingerprint.isWellKnownAlgorithm("SHA-256"));
+		assertTrue(Fingerprint.isWellKnownAlgorithm("blake2b-512"));
+		assertFalse(Fingerprint.isWellKnownAlgorithm("sha256"));
+		assertFalse(Fingerprint.isWellKnownAlgorithm("2.16.840.1.101.3.4.2.1"));
+	}
+
+	/** Digests come from a pool: streaming and one-shot hashing must not contaminate each other. */
+	@Test public void testPooledDigests() throws Throwable
+	{
+		byte[] first = Hex.decodeHex("11af".toCharArray());
+		byte[] second = Hex.decodeHex("d3".toCharArray());
+
+		Fingerprint.Builder streaming = Fingerprint.newBuilder().setAlgorithm("sha-256");
+		streaming.update(java.nio.ByteBuffer.wrap(first, 0, 1));
+
+		Fingerprint oneShot = Fingerprint.newBuilder()
+			.setAlgorithm("sha-256")
+			.setContent(second)
+			.build();
+
+		streaming.update(java.nio.ByteBuffer.wrap(first, 1, 1));
+		Fingerprint streamed = streaming.build();
+
+		assertEquals("28969cdfa74a12c82f3bad960b0b000aca2ac329deea5c2328ebc6f2ba9802c1",
+			oneShot.hex());
+		assertEquals("5ca7133fa735326081558ac312c620eeca9970d1e70a4b95533d956f072d1f98",
+			streamed.hex());
+		assertEquals("sha-256", streamed.getAlgorithmName());
+	}
+
+	/** Decoded and computed fingerprints should be interchangeable as map keys. */
+	@Test public void decodeRoundTrip() throws Throwable
+	{
+		Fingerprint computed = Fingerprint.newBuilder()
+			.setAlgorithm("SHA-256")
+			.setContent(new byte[] { 1, 2, 3 })
+			.build();
+
+		String name = computed.encode();
+		assertTrue(name.startsWith("urn:sha-256:"));
+		assertSame(name, computed.encode());
+
+		Fingerprint decoded = Fingerprint.decode(name);
+		assertEquals(computed, decoded);
+		assertEquals(computed.hashCode(), decoded.hashCode());
+		assertEquals(name, decoded.encode());
+		assertEquals(computed.toURI(), decoded.toURI());
+
+		Fingerprint sha1 = Fingerprint.newBuilder()
+			.setAlgorithm("sha-1")
+			.setContent(new byte[] { 1, 2, 3 })
+			.build();
+		assertFalse(computed.equals(sha1));
+	}
+
 
 	private void testVectors(Fingerprint.Builder builder, String[][] testVectors)
 			throws DecoderException
@@ -39,6 +39,22 @@ public class SecretKeyTest
 		assertTrue(k.keySpec.getEncoded().length > 0);
 	}
 
+	/** A key's fingerprint and URI are only derived when asked for, but mean what they did. */
+	@Test public void derivedForms() throws Throwable
+	{
+		byte[] secret = Hex.decodeHex("000102030405060708090a0b0c0d0e0f".toCharArray());
+		SecretKey k = SecretKey.newGenerator().setAlgorithm("AES").setBytes(secret).generate();
+
+		assertEquals(Fingerprint.of(secret), k.getFingerprint());
+		assertSame(k.getFingerprint(), k.getFingerprint());
+
+		assertEquals("AES:000102030405060708090a0b0c0d0e0f", k.toUri().toString());
+
+		SecretKey parsed = SecretKey.parse(k.toUri());
+		assertEquals(k, parsed);
+		assertEquals(k.hashCode(), parsed.hashCode());
+	}
+
 	/**
 	 * Test encryption and decryption using test vectors from
 	 * @url http://csrc.nist.gov/groups/STM/cavp/documents/aes/KAT_AES.zip.
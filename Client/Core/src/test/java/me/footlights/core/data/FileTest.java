@@ -16,10 +16,14 @@
 package me.footlights.core.data;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import me.footlights.core.data.File;
+import me.footlights.core.data.store.MemoryStore;
 
 import org.junit.Test;
 
@@ -48,13 +52,44 @@ public class FileTest
 			.freeze();
 
 		assertEquals(1, f.content().size());
-		assertEquals(2, f.toSave().size());
+		assertEquals(1, f.toSave().size());
 
 		byte[] dataOut = new byte[rawData.length];
 		f.content().get(0).get(dataOut);
 		assertArrayEquals(rawData, dataOut);
 	}
 
+	/** A file that fits in one block is stored inline in its header. */
+	@Test public void inline() throws Throwable
+	{
+		byte[] orig = "a short preference file".getBytes();
+
+		File f = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig, 0, 10), ByteBuffer.wrap(orig, 10, 13)))
+			.freeze();
+
+		assertEquals(Arrays.asList(f.encryptedHeader()), f.toSave());
+		assertTrue(f.encryptedHeader().plaintext().links().isEmpty());
+
+		MemoryStore store = new MemoryStore();
+		store.store(f.encryptedHeader());
+
+		File opened = File.open(f.encryptedHeader(), store);
+		assertEquals(orig.length, opened.stat().length());
+		assertEquals(1, opened.toSave().size());
+
+		byte[] copy = new byte[orig.length];
+		SeekableByteChannel channel = opened.getChannel(2);
+		channel.position(2);
+		assertEquals(orig.length - 2, channel.read(ByteBuffer.wrap(copy, 2, orig.length - 2)));
+		channel.position(0);
+		assertEquals(2, channel.read(ByteBuffer.wrap(copy, 0, 2)));
+		assertArrayEquals(orig, copy);
+
+		channel.position(orig.length);
+		assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+	}
+
 	/** Ensure that a file, composed of several blocks, can be viewed as a seamless unit. */
 	@Test public void seamlessView() throws Throwable
 	{
@@ -74,6 +109,159 @@ public class FileTest
 		assertArrayEquals(orig, copy);
 	}
 
+	/** Blocks encrypted in parallel should come out in the same order as serially. */
+	@Test public void parallelFreeze() throws Throwable
+	{
+		byte[] orig = new byte[100 * 32];
+		for (int i = 0; i < orig.length; i++) orig[i] = (byte) (i / 7);
+
+		File serial = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.setEncryptionPool(new ForkJoinPool(1))
+			.freeze();
+
+		File parallel = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.setEncryptionPool(new ForkJoinPool(4))
+			.freeze();
+
+		assertTrue(parallel.content().size() > 50);
+		assertEquals(serial.content(), parallel.content());
+
+		byte[] copy = new byte[orig.length];
+		int bytes = parallel.getInputStream().read(copy);
+		assertEquals(orig.length, bytes);
+		assertArrayEquals(orig, copy);
+	}
+
+	/** A file opened from a store should decrypt its blocks as they are read. */
+	@Test public void lazyRead() throws Throwable
+	{
+		byte[] orig = new byte[40 * 48];
+		for (int i = 0; i < orig.length; i++) orig[i] = (byte) (i * 31);
+
+		File f = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.freeze();
+
+		MemoryStore store = new MemoryStore();
+		for (EncryptedBlock b : f.toSave()) store.store(b);
+
+		File opened = File.open(f.encryptedHeader(), store);
+		assertEquals(f, opened);
+		assertEquals(orig.length, opened.stat().length());
+
+		ByteBuffer copy = ByteBuffer.allocate(orig.length + 1);
+		ReadableByteChannel channel = opened.getChannel(3);
+		while (channel.read(copy) >= 0);
+		channel.close();
+
+		assertEquals(orig.length, copy.position());
+		assertArrayEquals(orig, Arrays.copyOf(copy.array(), orig.length));
+	}
+
+	/** Seeking should land on the right byte, whichever block it is in. */
+	@Test public void seek() throws Throwable
+	{
+		byte[] orig = new byte[40 * 48];
+		for (int i = 0; i < orig.length; i++) orig[i] = (byte) (i * 7);
+
+		File f = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.freeze();
+
+		MemoryStore store = new MemoryStore();
+		for (EncryptedBlock b : f.toSave()) store.store(b);
+
+		SeekableByteChannel channel = File.open(f.encryptedHeader(), store).getChannel(2);
+		assertEquals(orig.length, channel.size());
+
+		ByteBuffer buffer = ByteBuffer.allocate(10);
+		for (int offset : new int[] { 1000, 3, 47, 48, 49, orig.length - 5, 1001 })
+		{
+			buffer.clear();
+			channel.position(offset);
+			channel.read(buffer);
+			buffer.flip();
+
+			int expected = Math.min(10, orig.length - offset);
+			assertEquals(expected, buffer.remaining());
+			for (int i = 0; buffer.hasRemaining(); i++)
+				assertEquals(orig[offset + i], buffer.get());
+
+			assertEquals(offset + expected, channel.position());
+		}
+
+		channel.position(orig.length + 10);
+		assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+		channel.close();
+	}
+
+	/** Files with more blocks than a header can link to should be indexed by a tree. */
+	@Test public void indexTree() throws Throwable
+	{
+		byte[] orig = new byte[1000 * 48];
+		for (int i = 0; i < orig.length; i++) orig[i] = (byte) (i * 13);
+
+		File f = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.setDesiredBlockSize(64)
+			.freeze();
+
+		assertEquals(1000, f.content().size());
+		assertTrue(f.encryptedHeader().plaintext().links().size() < 1000);
+		assertTrue(f.toSave().size() > 1001);
+
+		MemoryStore store = new MemoryStore();
+		for (EncryptedBlock b : f.toSave()) store.store(b);
+
+		File opened = File.open(f.encryptedHeader(), store);
+		assertEquals(orig.length, opened.stat().length());
+		assertEquals(f.toSave().size(), opened.toSave().size());
+
+		SeekableByteChannel channel = opened.getChannel(0);
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		for (int offset : new int[] { orig.length - 1, 0, 17 * 48 + 5, 289 * 48, 999 * 48 - 1 })
+		{
+			buffer.clear();
+			channel.position(offset);
+			assertEquals(1, channel.read(buffer));
+			assertEquals(orig[offset], buffer.get(0));
+		}
+		channel.close();
+	}
+
+	/** Large files should be split into larger blocks. */
+	@Test public void adaptiveBlockSize() throws Throwable
+	{
+		BlockSizePolicy policy = BlockSizePolicy.of(4096, 1 << 20, 64);
+		assertEquals(4096, policy.forLength(0));
+		assertEquals(4096, policy.forLength(64 * 4096));
+		assertEquals(8192, policy.forLength(64 * 4096 + 1));
+		assertEquals(1 << 20, policy.forLength(1L << 40));
+
+		byte[] orig = new byte[1 << 20];
+		File large = File.newBuilder()
+			.setContent(Arrays.asList(ByteBuffer.wrap(orig)))
+			.freeze();
+
+		int blockSize = BlockSizePolicy.byDefault().forLength(orig.length);
+		assertTrue(blockSize > 4096);
+		assertEquals(Block.newBuilder().setDesiredSize(blockSize).remaining(),
+			large.content().get(0).remaining());
+		assertTrue(large.content().size() < orig.length / 4096);
+
+		MemoryStore store = new MemoryStore();
+		for (EncryptedBlock b : large.toSave()) store.store(b);
+
+		File opened = File.open(large.encryptedHeader(), store);
+		assertEquals(orig.length, opened.stat().length());
+	}
+
 	/** Cowardly refuse to read past the end of a file. */
 	@Test public void doNotReadPastEnd() throws Throwable
 	{
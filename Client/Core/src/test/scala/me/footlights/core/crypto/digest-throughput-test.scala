@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.tags.Benchmarks
+
+
+package me.footlights.core.crypto {
+
+/**
+ * How quickly each naming algorithm can fingerprint blocks.
+ *
+ * This is a rough guide for choosing {@code crypto.hash.algorithm}, not a rigorous benchmark:
+ * each algorithm is warmed up and then timed over the same blocks. The timings are
+ * {@link me.footlights.core.tags.Benchmark}s, so they only run on request.
+ */
+@RunWith(classOf[JUnitRunner])
+class DigestThroughputTest extends Benchmarks with ShouldMatchers {
+	// Tests are registered as the suite is constructed, so this must come first.
+	private val Algorithms = List("sha-1", "sha-256", "sha-512", "blake2b-256", "blake2b-512")
+
+	"Each naming algorithm " - {
+		for (algorithm <- Algorithms) {
+			"should name a block the same way every time (%s)." format algorithm in {
+				val b = block(4096)
+				val reused = fingerprint(algorithm, b, 3)
+				val fresh = Fingerprint.newBuilder setAlgorithm algorithm setContent b build
+
+				reused should equal (fresh)
+				reused.getAlgorithmName should equal (algorithm)
+			}
+		}
+	}
+
+	"Fingerprinting 4 kiB and 1 MiB blocks " - {
+		for (algorithm <- Algorithms; size <- List(4096, 1 << 20)) {
+			benchmark("with %s (%d B)" format (algorithm, size)) {
+				val block = this.block(size)
+				val iterations = (TotalBytes / size) max 1
+
+				fingerprint(algorithm, block, iterations)
+				val start = System.nanoTime
+				val f = fingerprint(algorithm, block, iterations)
+				val seconds = (System.nanoTime - start) / 1e9
+
+				info("%-12s %8d B: %8.1f MB/s" format (
+					algorithm, size, iterations * size / seconds / 1e6))
+
+				f.getAlgorithmName should equal (algorithm)
+			}
+		}
+	}
+
+	private def block(size:Int) =
+		ByteBuffer wrap (Array.tabulate[Byte](size) { i => (i * 31).toByte })
+
+	private def fingerprint(algorithm:String, block:ByteBuffer, iterations:Int) = {
+		val builder = Fingerprint.newBuilder setAlgorithm algorithm
+		var f:Fingerprint = null
+		for (i <- 1 to iterations) f = builder setContent block build
+
+		f
+	}
+
+	/** How much to hash (after warming up) per algorithm and block size. */
+	private val TotalBytes = 64 << 20
+}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.data.FormatException
+
+
+package me.footlights.core.crypto {
+
+@RunWith(classOf[JUnitRunner])
+class BinaryLinkTest extends FreeSpec with ShouldMatchers {
+	"A Link should " - {
+		"use the compact binary format for well-known algorithms." in {
+			val bytes = link.getBytes
+
+			bytes.get(0) should equal ('L'.toByte)
+			bytes.get(1) should equal (2)
+			bytes.remaining should equal (6 + 32 + 32)
+		}
+
+		"survive a round trip through the binary format." in {
+			val copy = Link parse link.getBytes
+			copy should equal (link)
+			copy.fingerprint.encode should equal (link.fingerprint.encode)
+		}
+
+		"use the compact binary format for BLAKE2b names." in {
+			val fingerprint = Fingerprint.newBuilder
+				.setAlgorithm("blake2b-256")
+				.setContent("some block".getBytes)
+				.build
+
+			val blake = Link.newBuilder setFingerprint fingerprint setKey link.key build
+			val bytes = blake.getBytes
+			bytes.get(1) should equal (2)
+
+			val copy = Link parse bytes
+			copy should equal (blake)
+			copy.fingerprint.encode should startWith ("urn:blake2b-256:")
+		}
+
+		"still be readable in the original format." in {
+			val name = link.fingerprint.encode.getBytes("ascii")
+			val key = link.key.getKey.getEncoded
+			val algorithm = link.key.getAlgorithm.getBytes("ascii")
+
+			val bytes = ByteBuffer allocate (14 + name.length + algorithm.length + key.length)
+			me.footlights.core.Util setByteOrder bytes
+			bytes put "LINK\r\n".getBytes("ascii")
+			bytes putShort (name.length + algorithm.length + key.length).toShort
+			bytes putShort name.length.toShort
+			bytes putShort algorithm.length.toShort
+			bytes putShort (8 * key.length).toShort
+			bytes put name put algorithm put key
+			bytes.flip
+
+			Link parse bytes should equal (link)
+		}
+
+		"fall back to the original format for other algorithms." in {
+			val key = SecretKey.newGenerator
+				.setAlgorithm("JonCipher")
+				.setBytes(new Array[Byte](8))
+				.generate
+
+			val other = Link.newBuilder setFingerprint link.fingerprint setKey key build
+
+			val bytes = other.getBytes
+			bytes.get(1) should equal ('I'.toByte)
+			Link parse bytes should equal (other)
+		}
+
+		"reject truncated binary links." in {
+			val bytes = link.getBytes
+			bytes.limit(bytes.limit - 1)
+
+			evaluating { Link parse bytes } should produce [FormatException]
+		}
+
+		"reject unknown algorithm identifiers." in {
+			for (offset <- List(2, 3)) {
+				val bytes = ByteBuffer allocate link.bytes
+				bytes put link.getBytes
+				bytes.flip
+				bytes.put(offset, 0x7f.toByte)
+
+				evaluating { Link parse bytes } should produce [FormatException]
+			}
+		}
+
+		"reject digests of the wrong length for their algorithm." in {
+			val original = link.getBytes
+			val bytes = new Array[Byte](original.remaining)
+			original get bytes
+
+			// Keep the header and key, but only 7 bytes of the SHA-256 digest.
+			val digestLength = bytes(4)
+			val truncated =
+				(bytes take 6) ++ (bytes slice (6, 6 + 7)) ++ (bytes drop 6 + digestLength)
+			truncated(4) = 7
+
+			val input = ByteBuffer wrap truncated
+			evaluating { Link parse input } should produce [FormatException]
+		}
+	}
+
+	private val link = {
+		val fingerprint = Fingerprint.newBuilder
+			.setAlgorithm("sha-256")
+			.setContent("some block".getBytes)
+			.build
+
+		val key = SecretKey.newGenerator
+			.setAlgorithm("AES")
+			.setBytes((1 to 32).map { _.toByte }.toArray)
+			.generate
+
+		Link.newBuilder setFingerprint fingerprint setKey key build
+	}
+}
+
+}
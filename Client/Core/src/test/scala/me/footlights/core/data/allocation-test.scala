@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.lang.management.ManagementFactory
+import java.net.URI
+
+import org.apache.commons.codec.binary.Hex
+
+import org.junit.runner.RunWith
+
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.crypto.{Fingerprint,Link,SecretKey}
+import me.footlights.core.tags.Benchmarks
+
+
+package me.footlights.core.data {
+
+/**
+ * How much memory the data path allocates per block.
+ *
+ * The baseline is the same work plus what {@link SecretKey}s used to do as soon as they were
+ * created: hash the key into a fingerprint and hex-encode it into a URI. If keys really put
+ * this off, asking for their fingerprint and URI afterwards should cost about as much as the
+ * baseline's extra work (rather than nothing, which would mean it had already been done).
+ */
+@RunWith(classOf[JUnitRunner])
+class AllocationTest extends Benchmarks with ShouldMatchers {
+	"Per-block allocation should " - {
+		val block = Block.newBuilder setDesiredSize 4096 addContent new Array[Byte](1000) build
+		val encrypted = block.encrypt
+		val linkBytes = encrypted.link.getBytes
+
+		benchmark("not include unused key fingerprints or URIs when encrypting.") {
+			compare("Block.encrypt", block.encrypt.link.key)
+		}
+
+		benchmark("not include unused key fingerprints or URIs when decrypting.") {
+			compare("Link.parse + decrypt", {
+				val link = Link parse linkBytes.duplicate
+				link decrypt encrypted.ciphertext
+				link.key
+			})
+		}
+	}
+
+	private def compare(name:String, key: => SecretKey) = threads match {
+		case Some(t) =>
+			val lazyBytes = allocated(t, key)
+			val eagerBytes = allocated(t, deriveEagerly(key))
+			val forcedBytes = allocated(t, { val k = key; k.getFingerprint; k.toUri })
+
+			info("%-22s %6d B/block (eager baseline: %d B/block)" format (
+				name, lazyBytes, eagerBytes))
+
+			(forcedBytes - lazyBytes) should be >= ((eagerBytes - lazyBytes) / 2)
+
+		case None => info("Per-thread allocation counting not supported by this JVM")
+	}
+
+	/** What a {@link SecretKey}'s constructor used to derive from every key. */
+	private def deriveEagerly(key:SecretKey) = {
+		val secret = key.getKey.getEncoded
+		Fingerprint.newBuilder.setContent(secret).build
+		new URI(key.getAlgorithm, new String(Hex encodeHex secret), null)
+	}
+
+	/** Average bytes allocated by the current thread per evaluation (after warming up). */
+	private def allocated(t:com.sun.management.ThreadMXBean, f: => Any) = {
+		for (i <- 1 to Iterations) f
+
+		val id = Thread.currentThread.getId
+		val before = t getThreadAllocatedBytes id
+		for (i <- 1 to Iterations) f
+
+		(t.getThreadAllocatedBytes(id) - before) / Iterations
+	}
+
+	private val Iterations = 2000
+
+	private val threads = ManagementFactory.getThreadMXBean match {
+		case t:com.sun.management.ThreadMXBean if t.isThreadAllocatedMemorySupported => Some(t)
+		case _ => None
+	}
+}
+
+}
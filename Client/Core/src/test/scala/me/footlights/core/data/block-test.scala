@@ -123,6 +123,24 @@ class BlockTest extends FreeSpec with BeforeAndAfter with MockitoSugar with Shou
 			parsed should equal (original)
 		}
 
+		"parse blocks in place, without copying their content." in {
+			val original = Block.newBuilder()
+				.addContent(List[Byte](1, 2, 3, 4).toArray)
+				.addLink(link)
+				.build
+
+			val bytes = ByteBuffer allocate original.bytes
+			bytes put original.getBytes
+			bytes.flip
+
+			val parsed = Block parse bytes
+			parsed.name should equal (original.name)
+
+			val offset = original.bytes - original.getByteBuffers.last.remaining - 4
+			bytes.put(offset, 42:Byte)
+			parsed.content.get(0) should equal (42)
+		}
+
 		"create blocks of multiple valid power-of-two sizes." in {
 			(for (i <- 4 to 16) yield 1 << i) map { size =>
 				(Block.newBuilder setDesiredSize size build).bytes should equal (size)
@@ -137,6 +155,55 @@ class BlockTest extends FreeSpec with BeforeAndAfter with MockitoSugar with Shou
 			}
 		}
 
+		"create and parse blocks in geometric size classes." in {
+			List(16, 32, 64, 80, 96, 112, 128, 160, 5120, 7168) map { size =>
+				val block = Block.newBuilder setGeometricSizes true setDesiredSize size build
+
+				block.bytes should equal (size)
+				Block parse block.getBytes should equal (block)
+			}
+		}
+
+		"filter out sizes that are not geometric size classes." in {
+			List(20, 24, 48, 72, 81, 4100) map { size =>
+				evaluating {
+					Block.newBuilder setGeometricSizes true setDesiredSize size build
+				} should produce [FormatException]
+			}
+		}
+
+		"fit blocks into the smallest geometric size class." in {
+			val block = Block.newBuilder()
+				.setGeometricSizes(true)
+				.addContent(new Array[Byte](4100))
+				.build
+
+			block.bytes should equal (5120)
+			block.paddingBytes should be < (block.bytes / 5)
+		}
+
+		"write power-of-two sizes the original way." in {
+			val block = Block.newBuilder setGeometricSizes true setDesiredSize 4096 build
+			val binary = Block.newBuilder setGeometricSizes false setDesiredSize 4096 build
+
+			block.getBytes should equal (binary.getBytes)
+		}
+
+		"serialize blocks as a list of buffers for gathering writes." in {
+			val block = Block.newBuilder()
+				.addContent(List[Byte](1, 2, 3).toArray)
+				.addContent(List[Byte](4, 5).toArray)
+				.addLink(link)
+				.build
+
+			val buffers = block.getByteBuffers
+			buffers.map(_.remaining).sum should equal (block.bytes)
+			Store gather buffers should equal (block.getBytes)
+
+			block.content.remaining should equal (5)
+			Block parse block.getBytes should equal (block)
+		}
+
 		"name blocks correctly." in {
 			val block = Block.newBuilder()
 				.addContent { List[Byte](1,2,3).toArray }
@@ -151,6 +218,135 @@ class BlockTest extends FreeSpec with BeforeAndAfter with MockitoSugar with Shou
 		}
 	}
 
+	"Encrypting a block should " - {
+		"name large, multi-segment ciphertext correctly." in {
+			val block = Block.newBuilder()
+				.addContent(ByteBuffer allocate 40000)
+				.build
+
+			val encrypted = block.encrypt
+			encrypted.name should equal (Fingerprint of encrypted.ciphertext)
+			encrypted.link.decrypt(encrypted.ciphertext) should equal (block)
+		}
+
+		"not decrypt the ciphertext that it just produced." in {
+			val block = Block.newBuilder addContent { List[Byte](1,2,3).toArray } build
+
+			block.encrypt.plaintext should be theSameInstanceAs (block)
+		}
+	}
+
+	"Counter-mode encryption should " - {
+		val block = Block.newBuilder
+			.setDesiredSize(1 << 20)
+			.addContent(Array.tabulate[Byte](1000000) { i => (i / 3).toByte })
+			.build
+
+		val serial = block.encrypt
+		val parallel = EncryptionEngine.encrypt(block, serial.link.key, true)
+
+		"produce different ciphertext from CBC." in {
+			parallel.ciphertext.remaining should equal (serial.ciphertext.remaining)
+			parallel.ciphertext should not equal (serial.ciphertext)
+			parallel.name should equal (Fingerprint of parallel.ciphertext)
+		}
+
+		"be deterministic (for convergent encryption)." in {
+			EncryptionEngine.encrypt(block, serial.link.key, true).name should equal (parallel.name)
+		}
+
+		"be readable alongside CBC blocks." in {
+			val decrypted = parallel.link decrypt parallel.ciphertext
+			decrypted should equal (block)
+			decrypted.name should equal (block.name)
+
+			serial.link decrypt serial.ciphertext should equal (block)
+		}
+	}
+
+	"Deterministic padding should " - {
+		def build(content:Array[Byte], key:Array[Byte] = "k".getBytes) =
+			Block.newBuilder
+				.setPaddingKey(key)
+				.addContent(content)
+				.setDesiredSize(256)
+				.build
+				.encrypt
+
+		"give identical content identical names." in {
+			val content = List[Byte](1,2,3).toArray
+			build(content).name should equal (build(content).name)
+		}
+
+		"depend on the content and the key." in {
+			val content = List[Byte](1,2,3).toArray
+			build(content).name should not equal (build(List[Byte](1,2,4).toArray).name)
+			build(content).name should not equal (build(content, "j".getBytes).name)
+		}
+
+		"still decrypt correctly." in {
+			val encrypted = build(List[Byte](1,2,3).toArray)
+			encrypted.link.decrypt(encrypted.ciphertext) should equal (encrypted.plaintext)
+		}
+	}
+
+	"Compression should " - {
+		val text = ("All work and no play makes Jack a dull boy. " * 100).getBytes
+
+		def build(content:Array[Byte], compress:Boolean = true) =
+			Block.newBuilder setCompression compress addContent content build
+
+		"shrink text-like content." in {
+			build(text).bytes should be < (build(text, false).bytes / 4)
+		}
+
+		"be transparent to readers." in {
+			val block = build(text)
+			val parsed = Block parse block.getBytes
+
+			parsed should equal (block)
+			parsed.content should equal (ByteBuffer wrap text)
+
+			val encrypted = block.encrypt
+			(encrypted.link decrypt encrypted.ciphertext).content should equal (ByteBuffer wrap text)
+		}
+
+		"be skipped when content doesn't shrink." in {
+			val random = new Array[Byte](3000)
+			new java.util.Random(42) nextBytes random
+
+			// With deterministic padding, the only possible difference is compression.
+			def padded(compress:Boolean) = Block.newBuilder
+				.setPaddingKey("k".getBytes)
+				.setCompression(compress)
+				.addContent(random)
+				.build
+
+			padded(true).getBytes should equal (padded(false).getBytes)
+		}
+
+		"reject content that doesn't inflate to the promised length." in {
+			val block = build(text)
+			val bytes = ByteBuffer allocate block.bytes
+			bytes put block.getBytes
+			bytes.flip
+
+			// The compressed content starts with its uncompressed length.
+			bytes.putInt(16, text.length + 1)
+			evaluating { Block parse bytes } should produce [FormatException]
+		}
+
+		"refuse to inflate more than the compressed content could hold." in {
+			val block = build(text)
+			val bytes = ByteBuffer allocate block.bytes
+			bytes put block.getBytes
+			bytes.flip
+
+			bytes.putInt(16, Int.MaxValue)
+			evaluating { Block parse bytes } should produce [FormatException]
+		}
+	}
+
 	private val prefs = Preferences.loadFromDefaultLocation
 
 	private val cryptoProvider = security.CryptoBackend.get
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.data.store.MemoryStore
+
+
+package me.footlights.core.data {
+
+@RunWith(classOf[JUnitRunner])
+class ContentChunkingTest extends FreeSpec with ShouldMatchers {
+	"Content-defined chunking should " - {
+		"produce chunks that fit the block size class." in {
+			val chunker = ContentChunker forBlockSize BlockSize
+			val chunks = cdc(original)
+
+			chunks.init foreach { _.remaining should be >= (chunker.maximum / 4) }
+			chunks foreach { _.remaining should be <= chunker.maximum }
+			chunks.map(_.remaining).sum should equal (original.length)
+		}
+
+		"not depend on how the content is buffered." in {
+			val pieces = (original grouped 1000 map ByteBuffer.wrap).toList
+			val rechunked = Block.rechunk(pieces, ContentChunker forBlockSize BlockSize)
+
+			rechunked.toList should equal (cdc(original))
+		}
+
+		"cut the same chunks when streaming." in {
+			val store = new MemoryStore
+			val link = StreamingWriter.newWriter(store)
+				.setDesiredBlockSize(BlockSize)
+				.setContentDefinedChunking(true)
+				.write(Channels newChannel new ByteArrayInputStream(original))
+
+			val file = (store fetch link).get
+			val content = file.content.toList
+
+			content should equal (cdc(original))
+		}
+
+		"produce files that can be read and seeked." in {
+			val store = new MemoryStore
+			val file = File.newBuilder
+				.setContent(ByteBuffer wrap original)
+				.setContentDefinedChunking(true)
+				.setDesiredBlockSize(512)
+				.freeze
+
+			file.toSave foreach { b => store store b }
+			val opened = File.open(file.encryptedHeader, store)
+			opened.stat.length should equal (original.length)
+
+			val channel = opened getChannel 2
+			val buffer = ByteBuffer allocate 8
+			for (offset <- List(100000, 0, 511, 512, 77777, original.length - 3)) {
+				buffer.clear
+				channel position offset
+				channel read buffer
+				buffer.flip
+
+				for (i <- 0 until buffer.remaining) buffer.get(i) should equal (original(offset + i))
+			}
+
+			channel position (original.length + 1)
+			(channel read buffer) should equal (-1)
+		}
+
+		"let a store skip the unchanged blocks of an edited file." in {
+			val store = new MemoryStore
+			def save(data:Array[Byte]) = cdc(data) map { chunk =>
+					Block.newBuilder
+						.setPaddingKey("k".getBytes)
+						.setDesiredSize(BlockSize)
+						.addContent(chunk)
+						.build
+						.encrypt
+				} foreach { b => store store b }
+
+			save(original)
+			val before = store.blocks.size
+
+			save(insert(original, original.length / 2, "Hello, world!".getBytes))
+			store.blocks.size - before should be <= 2
+		}
+
+		"re-store far fewer bytes than fixed-size chunking after edits." in {
+			for ((workload, edited) <- edits) {
+				val fixedBytes = changed(fixed(original), fixed(edited))
+				val cdcBytes = changed(cdc(original), cdc(edited))
+
+				info("%-24s fixed: %8d B   content-defined: %8d B   saved: %5.1f%%" format (
+					workload, fixedBytes, cdcBytes, 100.0 * (fixedBytes - cdcBytes) / fixedBytes))
+			}
+
+			val (_, prepended) = edits.head
+			changed(cdc(original), cdc(prepended)) should be < (original.length / 10)
+			changed(fixed(original), fixed(prepended)) should be > (original.length / 2)
+		}
+	}
+
+
+	private val BlockSize = 4096
+
+	/** Text-like content: words drawn from a small vocabulary. */
+	private val original = {
+		val random = new scala.util.Random(42)
+		val words = (1 to 500) map { _ => random.nextString(1 + random.nextInt(8)) }
+		val text = new StringBuilder
+		while (text.length < (1 << 20)) text append words(random nextInt words.length) append ' '
+
+		text.toString.getBytes("UTF-8") take (1 << 20)
+	}
+
+	private def insert(data:Array[Byte], at:Int, bytes:Array[Byte]) =
+		(data take at) ++ bytes ++ (data drop at)
+
+	private def delete(data:Array[Byte], at:Int, len:Int) = (data take at) ++ (data drop (at + len))
+
+	private def overwrite(data:Array[Byte], at:Int, bytes:Array[Byte]) =
+		(data take at) ++ bytes ++ (data drop (at + bytes.length))
+
+	/** Typical edits: a few bytes added, removed or changed here and there. */
+	private val edits = List(
+		"prepend 1 B" -> insert(original, 0, Array[Byte](42)),
+		"insert 100 B at 1/3" -> insert(original, original.length / 3, new Array[Byte](100)),
+		"delete 5 KiB at 1/2" -> delete(original, original.length / 2, 5000),
+		"overwrite 10 B x 10" -> ((original /: (1 to 10)) {
+				(data, i) => overwrite(data, i * data.length / 11, "0123456789".getBytes) }),
+		"append 64 KiB" -> (original ++ original.take(1 << 16))
+	)
+
+	private def cdc(data:Array[Byte]) =
+		Block.rechunk(ByteBuffer.wrap(data) :: Nil, ContentChunker forBlockSize BlockSize)
+			.toList
+
+	private def fixed(data:Array[Byte]) =
+		Block.rechunk(ByteBuffer.wrap(data) :: Nil,
+			Block.newBuilder.setDesiredSize(BlockSize).remaining).toList
+
+	/** How many bytes of content are in new chunks (which would need to be stored). */
+	private def changed(before:List[ByteBuffer], after:List[ByteBuffer]) = {
+		val old = before.toSet
+		(after filterNot old.contains map { _.remaining }).sum
+	}
+}
+
+}
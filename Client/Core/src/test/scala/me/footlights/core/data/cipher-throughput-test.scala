@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.runner.RunWith
+
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.tags.Benchmarks
+
+
+package me.footlights.core.data {
+
+/**
+ * How quickly large blocks can be encrypted (and named) and decrypted in CBC mode, which is
+ * serial, and in counter mode, which is split across {@code crypto.threads} threads.
+ *
+ * Each mode is timed with one caller and with one caller per core (where CBC gets to use
+ * every core too, one block per caller). Like
+ * {@link me.footlights.core.crypto.DigestThroughputTest}, this is a rough guide rather than
+ * a rigorous benchmark, so it only runs on request.
+ */
+@RunWith(classOf[JUnitRunner])
+class CipherThroughputTest extends Benchmarks with ShouldMatchers {
+	// Tests are registered as the suite is constructed, so this must come first.
+	private val Cores = Runtime.getRuntime.availableProcessors
+
+	"Both modes should round-trip a block." in {
+		val b = block(64 << 10)
+		val key = b.encrypt.link.key
+
+		for (counterMode <- List(false, true)) {
+			val e = EncryptionEngine.encrypt(b, key, counterMode)
+			e.link decrypt e.ciphertext should equal (b)
+		}
+	}
+
+	"Encrypting and decrypting " - {
+		val sizes = List(64 << 10, 256 << 10, 1 << 20, 4 << 20)
+		for (size <- sizes; threads <- List(1, Cores).distinct) {
+			benchmark("%d kiB blocks on %d thread(s)" format (size >> 10, threads)) {
+				val b = block(size)
+				val key = b.encrypt.link.key
+				val iterations = (TotalBytes / size / threads) max 4
+
+				// Total MB/s of all threads, each doing f repeatedly (after warming up).
+				def rate(f: => Any) = {
+					def time = {
+						val callers = for (t <- 1 to threads) yield new Thread {
+							override def run = for (i <- 1 to iterations) f
+						}
+
+						val start = System.nanoTime
+						callers foreach { _.start }
+						callers foreach { _.join }
+						System.nanoTime - start
+					}
+
+					time
+					threads.toDouble * iterations * size / time * 1000
+				}
+
+				val cbc = EncryptionEngine.encrypt(b, key, false)
+				val ctr = EncryptionEngine.encrypt(b, key, true)
+
+				info("%5d kiB x%2d  encrypt: CBC %6.0f MB/s, CTR %6.0f MB/s" format (
+					size >> 10, threads,
+					rate { EncryptionEngine.encrypt(b, key, false) },
+					rate { EncryptionEngine.encrypt(b, key, true) }))
+
+				info("%5d kiB x%2d  decrypt: CBC %6.0f MB/s, CTR %6.0f MB/s" format (
+					size >> 10, threads,
+					rate { cbc.link decrypt cbc.ciphertext },
+					rate { ctr.link decrypt ctr.ciphertext }))
+
+				ctr.link decrypt ctr.ciphertext should equal (b)
+			}
+		}
+	}
+
+	private def block(size:Int) = Block.newBuilder
+		.setDesiredSize(size)
+		.addContent(Array.tabulate[Byte](size / 2) { i => (i * 31).toByte })
+		.build
+
+	/** How much to encrypt (after warming up) per mode and block size. */
+	private val TotalBytes = 64 << 20
+}
+
+}
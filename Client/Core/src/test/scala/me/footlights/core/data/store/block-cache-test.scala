@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.crypto.Fingerprint
+import me.footlights.core.data.Block
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class BlockCacheTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+
+	private var cache:BlockCache = _
+	before { cache = new BlockCache(Capacity) }
+
+	"A BlockCache" - {
+		"should return the same bytes that get stored" in {
+			val block = Block.newBuilder()
+				.addContent(List[Byte](1, 2, 3, 4).toArray)
+				.build
+
+			cache store block
+			Block parse { cache retrieve block.name get } should equal(block)
+		}
+
+		"should stay within its byte budget" in {
+			for (i <- 1 to 1000) cache.put(name(i), ByteBuffer allocate BlockSize)
+
+			cache.weight should be <= (Capacity.toLong)
+			cache.evictions should be > (0L)
+			cache.list.size should be <= (Capacity / BlockSize)
+		}
+
+		"should refuse blocks larger than its budget" in {
+			cache.put(name(1), ByteBuffer allocate (2 * Capacity))
+
+			cache contains name(1) should equal (false)
+			cache.weight should equal (0L)
+		}
+
+		"should count hits and misses" in {
+			cache.put(name(1), ByteBuffer allocate BlockSize)
+
+			cache get name(1) should be ('defined)
+			cache get name(2) should equal (None)
+
+			cache.hits should equal (1L)
+			cache.misses should equal (1L)
+		}
+
+		"should keep frequently-used blocks through a scan" in {
+			val hot = 1 to 100
+			for (round <- 1 to 10; i <- hot) {
+				if (!(cache contains name(i))) cache.put(name(i), ByteBuffer allocate BlockSize)
+				cache get name(i)
+			}
+
+			// Read lots of blocks once each, as when reading a large file.
+			for (i <- 1000 until 5000)
+				if (cache get name(i) isEmpty) cache.put(name(i), ByteBuffer allocate BlockSize)
+
+			(hot count { i => cache contains name(i) }) should be >= (90)
+		}
+
+		"should never evict pinned blocks" in {
+			val pinned = 1 to (2 * Capacity / BlockSize)
+			pinned foreach { i => cache pin name(i) }
+			pinned foreach { i => cache.put(name(i), ByteBuffer allocate BlockSize) }
+
+			pinned foreach { i => cache contains name(i) should equal (true) }
+			cache.weight should be > (Capacity.toLong)
+
+			pinned foreach { i => cache unpin name(i) }
+			cache.weight should be <= (Capacity.toLong)
+		}
+
+		"should hand out read-only buffers" in {
+			cache.put(name(1), ByteBuffer allocate BlockSize)
+			(cache get name(1) get).isReadOnly should equal (true)
+		}
+	}
+
+	private def name(i:Int) = Fingerprint of { ByteBuffer.allocate(4).putInt(0, i) }
+
+	private val BlockSize = 4096
+	private val Capacity = 1 << 20
+}
+
+}
@@ -17,6 +17,7 @@
 import java.io.IOException
 import java.net.URL
 import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit.SECONDS
 import java.util.logging.Level._
 import java.util.logging.Logger
 
@@ -32,7 +33,7 @@ import org.scalatest.junit.JUnitRunner
 import org.scalatest.matchers.ShouldMatchers
 import org.scalatest.mock.MockitoSugar
 
-import me.footlights.core.Preferences
+import me.footlights.core.{Durability,PreferenceStorageEngine,Preferences}
 import me.footlights.core.crypto.Fingerprint
 import me.footlights.core.data.Block
 import me.footlights.core.data
@@ -45,14 +46,18 @@ package me.footlights.core.data.store {
 @RunWith(classOf[JUnitRunner])
 class DiskStoreTest extends FreeSpec with BeforeAndAfter with MockitoSugar with ShouldMatchers {
 
+	private var dir:java.io.File = _
 	private var store:DiskStore = _
 	before {
-		store = DiskStore.newBuilder()
-			.createTemporaryDirectory()
-			.setCache(None)
-			.build
+		dir = java.io.File.createTempFile("cache", "dir")
+		dir.delete
+		dir.mkdir
+
+		store = open()
 	}
 
+	after { store.close }
+
 	"A DiskStore" - {
 		"should be able to store plaintext" in {
 			store store b1
@@ -74,6 +79,194 @@ class DiskStoreTest extends FreeSpec with BeforeAndAfter with MockitoSugar with
 			store store file.toSave
 			store fetch file.link should equal (Some(file))
 		}
+
+		"should not use a file per block" in {
+			for (i <- 1 to 100) put(i, 4096)
+			dir.list should have length (1)
+		}
+
+		"should find its blocks again when reopened" in {
+			val names = for (i <- 1 to 100) yield put(i, 1000 * i)
+			store.close
+			store = open()
+
+			for ((name, i) <- names.zipWithIndex)
+				store get name should equal (Some(content(i + 1, 1000 * (i + 1))))
+
+			store.list.size should equal (names.size)
+		}
+
+		"should ignore a record torn by a crash" in {
+			val kept = put(1, 4096)
+			val torn = put(2, 4096)
+			store.close
+
+			val segment = new java.io.RandomAccessFile(segments.head, "rw")
+			segment setLength (segment.length - 100)
+			segment.close
+
+			store = open()
+			store contains kept should equal (true)
+			store contains torn should equal (false)
+
+			// The store should still be usable after throwing the torn record away.
+			put(2, 4096) should equal (torn)
+			store.close
+			store = open()
+			store get torn should equal (Some(content(2, 4096)))
+		}
+
+		"should reclaim the space used by removed blocks" in {
+			store.close
+			store = open(new Preferences(Option(
+				PreferenceStorageEngine wrap Map("cache.disk.segment" -> (64 << 10).toString))))
+
+			val names = for (i <- 1 to 200) yield put(i, 4096)
+			val count = segments.length
+			count should be > (4)
+
+			for ((name, i) <- names.zipWithIndex if i % 4 != 0) store remove name
+			for (i <- 1 to count) store.flush
+
+			segments.length should be < (count / 2)
+			for ((name, i) <- names.zipWithIndex)
+				store contains name should equal (i % 4 == 0)
+
+			store.close
+			store = open()
+			for ((name, i) <- names.zipWithIndex if i % 4 == 0)
+				store get name should equal (Some(content(i + 1, 4096)))
+		}
+
+		"should import blocks stored a file each" in {
+			store.close
+
+			val bytes = content(1, 4096)
+			val name = Fingerprint of bytes.duplicate
+			val f = new java.io.FileOutputStream(new java.io.File(dir, name.encode))
+			f.getChannel write bytes.duplicate
+			f.close
+
+			store = open()
+			store get name should equal (Some(bytes))
+			new java.io.File(dir, name.encode).exists should equal (false)
+		}
+
+		"should list its blocks from a checkpointed index" in {
+			val names = for (i <- 1 to 100) yield put(i, 1000)
+			store get names.head should equal (Some(content(1, 1000)))
+			val accessed = (store.list map { s => (s.name, s.accessed) }).toMap
+
+			store.close
+			new java.io.File(dir, "index").exists should equal (true)
+
+			store = open()
+			(store.list map { _.name }).toSet should equal (names.toSet)
+			(store.list map { s => (s.name, s.accessed) }).toMap should equal (accessed)
+			accessed(names.head) should be > (0L)
+		}
+
+		"should replay what was written after its last checkpoint" in {
+			val kept = for (i <- 1 to 10) yield put(i, 1000)
+			store.close
+			store = open()
+
+			// Don't close the store this time: its index isn't checkpointed again.
+			val later = for (i <- 11 to 20) yield put(i, 1000)
+			store remove kept.head
+			store = open()
+
+			for (name <- kept.tail ++ later) store contains name should equal (true)
+			store contains kept.head should equal (false)
+			store.list.size should equal (19)
+		}
+
+		"should rebuild a corrupt index from its segments" in {
+			val names = for (i <- 1 to 10) yield put(i, 1000)
+			store.close
+
+			val index = new java.io.RandomAccessFile(new java.io.File(dir, "index"), "rw")
+			index seek 30
+			index write 0xff
+			index.close
+
+			store = open()
+			for ((name, i) <- names.zipWithIndex)
+				store get name should equal (Some(content(i + 1, 1000)))
+		}
+
+		"should sync each write by default" in {
+			store.durability should equal (Durability.SYNC_EACH)
+			write(1, 4096).isDone should equal (true)
+		}
+
+		"should sync a group of writes together" in {
+			store.close
+			store = open(commitAfter(interval = 100), Durability.GROUP_COMMIT)
+
+			val writes = for (i <- 1 to 100) yield write(i, 4096)
+			for (w <- writes) w.get(10, SECONDS)
+		}
+
+		"should sync a group of writes once it is big enough" in {
+			store.close
+			store = open(commitAfter(interval = 60000, bytes = 64 << 10), Durability.GROUP_COMMIT)
+
+			val writes = for (i <- 1 to 100) yield write(i, 4096)
+			writes.head.get(10, SECONDS)
+			writes.last.isDone should equal (false)
+
+			store.flush
+			for (w <- writes) w.isDone should equal (true)
+		}
+
+		"should only sync asynchronous writes when flushed" in {
+			store.close
+			store = open(commitAfter(interval = 100), Durability.ASYNC)
+
+			val writes = for (i <- 1 to 10) yield write(i, 4096)
+			Thread sleep 300
+			for (w <- writes) w.isDone should equal (false)
+
+			store.flush
+			for (w <- writes) w.isDone should equal (true)
+		}
+	}
+
+	private def open(prefs:Preferences = Preferences.getDefaultPreferences,
+			durability:Durability = null) =
+		DiskStore.newBuilder()
+			.setPreferences(prefs)
+			.setDirectory(dir)
+			.setCache(None)
+			.setDurability(durability)
+			.build
+
+	private def segments = dir.listFiles filter { _.getName endsWith ".log" }
+
+	private def commitAfter(interval:Int, bytes:Int = 8 << 20) =
+		new Preferences(Option(PreferenceStorageEngine wrap Map(
+			"io.commit.interval" -> interval.toString,
+			"io.commit.bytes" -> bytes.toString)))
+
+	/** Put some unique content into the store directly. */
+	private def put(i:Int, length:Int) = {
+		val bytes = content(i, length)
+		val name = Fingerprint of bytes.duplicate
+		store.put(name, bytes)
+		name
+	}
+
+	/** Write some unique content, returning the write's durability future. */
+	private def write(i:Int, length:Int) = {
+		val bytes = content(i, length)
+		store.write(Fingerprint of bytes.duplicate, bytes)
+	}
+
+	private def content(i:Int, length:Int) = {
+		val bytes = ByteBuffer allocate length
+		bytes putInt (0, i)
+		bytes
 	}
 
 	private val b1 = Block.newBuilder()
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.data.{Block,File}
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class PaddingReportTest extends FreeSpec with ShouldMatchers {
+	"A PaddingReport should " - {
+		"count the padding in blocks that it can decrypt." in {
+			val store = new MemoryStore
+			val file = File.newBuilder
+				.setContent(ByteBuffer allocate 10000)
+				.setDesiredBlockSize(4096)
+				.freeze
+
+			file.toSave foreach { store store _ }
+			store store { Block.newBuilder addContent new Array[Byte](100) build }
+
+			val report = PaddingReport(store, file.link :: Nil)
+			report.blocks should equal (store.blocks.size)
+			report.readable should equal (file.toSave.size)
+			report.padding should be > (0L)
+			report.padding should be < report.readableBytes
+		}
+
+		"estimate less padding with geometric size classes." in {
+			val store = new MemoryStore
+			val file = File.newBuilder
+				.setContent(ByteBuffer allocate 18000)
+				.setDesiredBlockSize(8192)
+				.freeze
+
+			file.toSave foreach { store store _ }
+
+			val report = PaddingReport(store, file.link :: Nil)
+			report.geometricOverhead should be < report.overhead
+		}
+	}
+}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.crypto.Fingerprint
+import me.footlights.core.data.Block
+import me.footlights.core.data
+
+
+package me.footlights.core.data.store {
+
+@RunWith(classOf[JUnitRunner])
+class SlabCacheTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+
+	private var cache:SlabCache = _
+	before { cache = new SlabCache(Capacity) }
+
+	"A SlabCache" - {
+		"should return the same bytes that get stored" in {
+			val block = Block.newBuilder()
+				.addContent(List[Byte](1, 2, 3, 4).toArray)
+				.build
+
+			cache store block
+			Block parse { cache retrieve block.name get } should equal(block)
+		}
+
+		"should keep blocks off the heap" in {
+			cache.put(name(1), content(1, 5000))
+
+			val bytes = cache get name(1) get
+
+			bytes.isDirect should equal (true)
+			bytes.isReadOnly should equal (true)
+			bytes should equal (content(1, 5000))
+		}
+
+		"should not change buffers that it has handed out" in {
+			cache.put(name(1), content(1, 4096))
+			val bytes = cache get name(1) get
+
+			// Make enough popular blocks to push the first one out.
+			for (i <- 2 to 1000) {
+				cache.put(name(i), content(i, 4096))
+				for (j <- 1 to 3) cache get name(i)
+			}
+
+			cache contains name(1) should equal (false)
+			bytes should equal (content(1, 4096))
+		}
+
+		"should reclaim slabs as blocks are evicted" in {
+			for (i <- 1 to 5000) cache.put(name(i), content(i, List(100, 4096, 20000)(i % 3)))
+
+			// At most twice the budget, plus a partly-filled slab for each size class.
+			cache.weight should be <= (Capacity.toLong)
+			cache.allocated should be <= (4L * Capacity)
+		}
+
+		"should keep blocks larger than a slab" in {
+			val length = SlabCache.SLAB_SIZE + 17
+			val big = new SlabCache(4 * SlabCache.SLAB_SIZE)
+			big.put(name(1), content(1, length))
+
+			big get name(1) should equal (Some(content(1, length)))
+		}
+
+		"should work as a DiskStore's cache" in {
+			val blocks = List(4, 5000, 100000) map { n =>
+				Block.newBuilder addContent new Array[Byte](n) build
+			}
+			val file = data.File.newBuilder setContent (blocks map { _.getBytes }) freeze
+
+			val store = DiskStore.newBuilder()
+				.createTemporaryDirectory()
+				.setCache(Option(cache))
+				.build
+
+			store store file.toSave
+			store fetch file.link should equal (Some(file))
+		}
+	}
+
+	private def name(i:Int) = Fingerprint of { ByteBuffer.allocate(4).putInt(0, i) }
+	private def content(i:Int, length:Int) =
+		ByteBuffer wrap { Array.tabulate[Byte](length) { j => (i * 7 + j).toByte } }
+
+	private val Capacity = 1 << 20
+}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{BeforeAndAfter,FreeSpec}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+import me.footlights.core.data.store.MemoryStore
+
+
+package me.footlights.core.data {
+
+@RunWith(classOf[JUnitRunner])
+class StreamingWriterTest extends FreeSpec with BeforeAndAfter with ShouldMatchers {
+	private var store:MemoryStore = _
+	before { store = new MemoryStore() }
+
+	"A StreamingWriter" - {
+		"should store a file that reads back unchanged." in {
+			val data = (0 until 10000) map { i => (i % 251).toByte } toArray
+
+			val link = StreamingWriter.newWriter(store)
+				.setDesiredBlockSize(512)
+				.setWindow(3)
+				.write(Channels newChannel new ByteArrayInputStream(data))
+
+			// Header plus at least one block per 512 B of content.
+			store.blocks.size should be > (data.length / 512 + 1)
+
+			val file = store fetch link get
+			val copy = ByteBuffer allocate data.length
+			file.content foreach { b => copy put b }
+
+			copy.array should equal (data)
+		}
+
+		"should choose a block size from the expected length." in {
+			val data = new Array[Byte](1 << 20)
+
+			val link = StreamingWriter.newWriter(store)
+				.setExpectedLength(data.length)
+				.write(Channels newChannel new ByteArrayInputStream(data))
+
+			val file = store fetch link get
+			val blockSize = BlockSizePolicy.byDefault forLength data.length
+
+			file.content.head.remaining should equal (
+				Block.newBuilder setDesiredSize blockSize remaining)
+			file.stat.length should equal (data.length)
+		}
+
+		"should store a small file in a single block." in {
+			val data = "Hello, world!".getBytes
+
+			val link = StreamingWriter.newWriter(store)
+				.write(Channels newChannel new ByteArrayInputStream(data))
+
+			store.blocks.size should equal (1)
+			(store fetch link).get.copyContents should equal (ByteBuffer wrap data)
+		}
+
+		"should inline the same files as File.freeze, even with content-defined chunking." in {
+			// Content-defined chunks can end anywhere past a quarter of a block, so files
+			// around half a block long might be cut up unless inlining is decided first.
+			val blockSize = 4096
+			val max = Block.newBuilder setDesiredSize blockSize remaining
+
+			for (length <- (max / 4) to (max / 2) by 64) {
+				val random = new scala.util.Random(length)
+				val data = Array.fill[Byte](length) { random.nextInt.toByte }
+
+				val frozen = File.newBuilder
+					.setContent(ByteBuffer wrap data)
+					.setContentDefinedChunking(true)
+					.setDesiredBlockSize(blockSize)
+					.freeze
+
+				val store = new MemoryStore
+				val link = StreamingWriter.newWriter(store)
+					.setContentDefinedChunking(true)
+					.setDesiredBlockSize(blockSize)
+					.write(Channels newChannel new ByteArrayInputStream(data))
+
+				val streamed = (store fetch link).get
+				store.blocks.size should equal (frozen.toSave.size)
+				streamed.content.toList should equal (frozen.content.toList)
+				streamed.copyContents should equal (ByteBuffer wrap data)
+			}
+		}
+
+		"should store an empty file." in {
+			val link = StreamingWriter.newWriter(store)
+				.write(Channels newChannel new ByteArrayInputStream(new Array[Byte](0)))
+
+			store.blocks.size should equal (1)
+		}
+	}
+}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Jonathan Anderson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit.SECONDS
+
+import org.junit.runner.RunWith
+
+import org.scalatest.FreeSpec
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.matchers.ShouldMatchers
+
+package me.footlights.core {
+
+@RunWith(classOf[JUnitRunner])
+class GroupCommitTest extends FreeSpec with ShouldMatchers {
+	"A GroupCommit" - {
+		"should sync each commit in SYNC_EACH mode" in {
+			val commit = group(Durability.SYNC_EACH)
+			for (i <- 1 to 10) (commit commit (commit appended 100)).isDone should equal (true)
+			commit.syncs should equal (10)
+		}
+
+		"should not sync what is already on disk" in {
+			val commit = group(Durability.SYNC_EACH)
+			commit synced (commit appended 100)
+			(commit commit 100).isDone should equal (true)
+			commit.syncs should equal (0)
+		}
+
+		"should gather commits into one sync in GROUP_COMMIT mode" in {
+			val commit = group(Durability.GROUP_COMMIT, interval = 100)
+			val commits = for (i <- 1 to 10) yield commit commit (commit appended 100)
+
+			for (c <- commits) c.get(10, SECONDS)
+			commit.syncs should equal (1)
+		}
+
+		"should sync once enough bytes are waiting" in {
+			val commit = group(Durability.GROUP_COMMIT, maxBytes = 1000)
+			val commits = for (i <- 1 to 10) yield commit commit (commit appended 100)
+
+			commits.last.isDone should equal (true)
+			commit.syncs should equal (1)
+		}
+
+		"should wait for a barrier in ASYNC mode" in {
+			val commit = group(Durability.ASYNC, interval = 1)
+			val c = commit commit (commit appended 100)
+
+			Thread sleep 50
+			c.isDone should equal (false)
+
+			commit.barrier
+			c.isDone should equal (true)
+			commit.syncs should equal (1)
+		}
+
+		"should report failed syncs" in {
+			val commit = new GroupCommit(Durability.ASYNC, 60000, 1 << 20, new GroupCommit.Syncer {
+				override def sync = throw new IOException("disk on fire")
+			})
+
+			val c = commit commit (commit appended 100)
+			intercept[IOException] { commit.barrier }
+			intercept[ExecutionException] { c.get }
+		}
+	}
+
+	private def group(mode:Durability, interval:Long = 60000, maxBytes:Long = 1 << 20) =
+		new GroupCommit(mode, interval, maxBytes, new GroupCommit.Syncer { override def sync = {} })
+}
+
+}
@@ -15,7 +15,22 @@
  */
 package me.footlights.core.tags
 
-import org.scalatest.Tag
+import org.scalatest.{FreeSpec,Tag}
 
 object InternetAccess extends Tag("me.footlights.tags.InternetAccess")
 object LocalCAS extends Tag("me.footlights.tags.LocalCAS")
+
+/**
+ * Long-running performance measurements, which are ignored unless the
+ * {@code footlights.benchmarks} system property is set (mvn test -Dfootlights.benchmarks=true).
+ */
+object Benchmark extends Tag("me.footlights.tags.Benchmark") {
+	def enabled = java.lang.Boolean getBoolean "footlights.benchmarks"
+}
+
+/** A suite that registers {@link Benchmark}s. */
+trait Benchmarks extends FreeSpec {
+	protected def benchmark(name:String)(f: => Unit) =
+		if (Benchmark.enabled) name taggedAs(Benchmark) in f
+		else name taggedAs(Benchmark) ignore f
+}
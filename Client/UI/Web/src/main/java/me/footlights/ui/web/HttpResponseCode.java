@@ -20,6 +20,7 @@ package me.footlights.ui.web;
 enum HttpResponseCode
 {
 	OK                (200, "OK"),
+	BAD_REQUEST       (400, "Bad Request"),
 	FORBIDDEN         (403, "Forbidden"),
 	FILE_NOT_FOUND    (404, "File Not Found"),
 	OTHER_ERROR       (500, "Internal Server Error"),
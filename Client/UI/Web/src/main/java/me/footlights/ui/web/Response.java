@@ -39,6 +39,9 @@ class Response
 	/** Shorthand for {@link #newBuilder().setError({@link FileNotFoundException}).build()}. */
 	static Response error(FileNotFoundException e) { return newBuilder().setError(e).build(); }
 
+	/** Shorthand for {@link #newBuilder().setError({@link IllegalArgumentException}).build()}. */
+	static Response error(IllegalArgumentException e) { return newBuilder().setError(e).build(); }
+
 	/** Shorthand for {@link #newBuilder().setError({@link SecurityException}).build()}. */
 	static Response error(SecurityException e) { return newBuilder().setError(e).build(); }
 
@@ -80,6 +83,7 @@ class Response
 		}
 
 		public Builder setError(FileNotFoundException e) { return setError(FILE_NOT_FOUND, e); }
+		public Builder setError(IllegalArgumentException e) { return setError(BAD_REQUEST, e); }
 		public Builder setError(SecurityException e) { return setError(FORBIDDEN, e); }
 		public Builder setError(Throwable t) { return setError(OTHER_ERROR, t); }
 
@@ -16,7 +16,7 @@
 import java.io.FileNotFoundException
 import java.net.{InetSocketAddress,URI}
 import java.nio.ByteBuffer
-import java.nio.channels.{ServerSocketChannel,SocketChannel}
+import java.nio.channels.{Channels,ServerSocketChannel,SocketChannel}
 import java.util.logging.Level.{FINE,INFO,WARNING,SEVERE}
 import java.util.logging.Logger
 
@@ -63,7 +63,16 @@ abstract class Context(base:Class[_]) extends WebServer {
 			case File =>
 				val r = Response.newBuilder
 				val path = remainder.path match { case URLEncoded(path) => path }
-				openFile(path) foreach { file => r setResponse file.getInputStream }
+				openFile(path) foreach { file =>
+					// Clients may ask for content from an offset (e.g. to resume a video).
+					offset(remainder) match {
+						case Left(e) => r setError e
+						case Right(offset) =>
+							val channel = file.getChannel
+							offset foreach { channel position _ }
+							r setResponse { Channels newInputStream channel }
+					}
+				}
 				r.build
 
 			case StaticContent =>
@@ -77,6 +86,18 @@ abstract class Context(base:Class[_]) extends WebServer {
 		}
 	}
 
+	/** The optional "offset" query parameter, which must be a non-negative number of bytes. */
+	private def offset(req:WebRequest): Either[IllegalArgumentException,Option[Long]] =
+		Option(req.query get "offset") map { s =>
+			try {
+				val offset = s.toLong
+				if (offset < 0) Left(new IllegalArgumentException("Negative offset: " + s))
+				else Right(Some(offset))
+			} catch {
+				case e:NumberFormatException => Left(e)
+			}
+		} getOrElse Right(None)
+
 	private def getStaticContent(request:WebRequest) = {
 		val path = request.path
 		if (path contains "..") throw new SecurityException("'..' present in " + request)
@@ -68,6 +68,7 @@ public final class AmazonUploader implements Uploader
 	 *  - invalid request
 	 *  - not authorized
 	 *  - incorrect size
+	 *  - content does not match the expected name (hashed with the algorithm it names)
 	 * 
 	 * @return the name of the uploaded file (which is a fingerprint)
 	 */
@@ -79,17 +80,29 @@ public final class AmazonUploader implements Uploader
 		if (!checkAuth(block.getAuthorization()))
 			throw new AccessControlException("Authorization failure");
 
+		// The expected name (if any) says which algorithm to check it with.
+		String expectedName = block.getExpectedName();
+		String[] nameParts = expectedName.split(":");
+		if (nameParts.length == 3) checkAlgorithm(nameParts[1]);
+
+		final Fingerprint expected =
+			expectedName.isEmpty() ? null : Fingerprint.decode(expectedName);
+
+		String algorithm = block.getFingerprintAlgorithm();
+		if (!algorithm.isEmpty()) checkAlgorithm(algorithm);
+		else if (expected != null) algorithm = expected.getAlgorithmName();
+
 		// Does the actual fingerprint match the expected one (if any)?
 		Fingerprint.Builder fingerprintBuilder =
 			Fingerprint.newBuilder()
 				.setContent(block.getBytes());
 
-		if (!block.getFingerprintAlgorithm().isEmpty())
-			fingerprintBuilder.setAlgorithm(block.getFingerprintAlgorithm());
+		if (!algorithm.isEmpty())
+			fingerprintBuilder.setAlgorithm(algorithm);
 
-		final String actualName = fingerprintBuilder.build().encode();
-		String expected = block.getExpectedName();
-		if (!expected.isEmpty() && !expected.equals(actualName))
+		final Fingerprint actual = fingerprintBuilder.build();
+		final String actualName = actual.encode();
+		if ((expected != null) && !expected.equals(actual))
 			throw new IllegalArgumentException(
 					"Block name (" + actualName
 					 + ") does not match expected name (" + block.getExpectedName()
@@ -119,6 +132,16 @@ public final class AmazonUploader implements Uploader
 		return (authenticator.equals(authSecret));
 	}
 
+	/**
+	 * Only accept hash algorithms with fixed identifiers: naming any other algorithm (or alias)
+	 * would register it for as long as the server runs.
+	 */
+	private static void checkAlgorithm(String name)
+	{
+		if (!Fingerprint.isWellKnownAlgorithm(name))
+			throw new IllegalArgumentException("Unsupported hash algorithm '" + name + "'");
+	}
+
 	private String getMandatoryPreference(String name) throws ConfigurationError
 	{
 		scala.Option<String> value = prefs.getString(name);
@@ -31,7 +31,11 @@ interface Uploader
 		ByteBuffer getBytes();
 
 		String getAuthorization();
+
+		/** How to name the block, or "" for the expected name's algorithm (or the default). */
 		String getFingerprintAlgorithm();
+
+		/** The name that the client expects, e.g. "urn:blake2b-256:...", or "". */
 		String getExpectedName();
 	}
 